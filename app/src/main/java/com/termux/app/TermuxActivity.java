@@ -1,15 +1,25 @@
 package com.termux.app;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.LinkedHashSet;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.termux.R;
 import com.termux.drawer.DrawerLayout;
+import com.termux.terminal.EmulatorDebug;
+import com.termux.terminal.TerminalEmulator;
 import com.termux.terminal.TerminalSession;
 import com.termux.terminal.TerminalSession.SessionChangedCallback;
+import com.termux.terminal.TranscriptSnapshot;
 import com.termux.view.TerminalKeyListener;
 import com.termux.view.TerminalView;
 
@@ -40,6 +50,7 @@ import android.support.annotation.Nullable;
 import android.text.SpannableString;
 import android.text.Spanned;
 import android.text.TextUtils;
+import android.util.Log;
 import android.text.style.StyleSpan;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -585,7 +596,7 @@ public final class TermuxActivity extends Activity implements ServiceConnection
 		return false;
 	}
 
-	static LinkedHashSet<CharSequence> extractUrls(String text) {
+	static LinkedHashSet<CharSequence> extractUrls(CharSequence text) {
 		// Pattern for recognizing a URL, based off RFC 3986
 		// http://stackoverflow.com/questions/5713558/detect-and-extract-url-from-a-string
 		final Pattern urlPattern = Pattern.compile(
@@ -596,15 +607,69 @@ public final class TermuxActivity extends Activity implements ServiceConnection
 		while (matcher.find()) {
 			int matchStart = matcher.start(1);
 			int matchEnd = matcher.end();
-			String url = text.substring(matchStart, matchEnd);
+			String url = text.subSequence(matchStart, matchEnd).toString();
 			urlSet.add(url);
 		}
 		return urlSet;
 	}
 
+	/** Show the URLs in the transcript of the current session, which is scanned on a background thread. */
 	void showUrlSelection() {
-		String text = getCurrentTermSession().getEmulator().getScreen().getTranscriptText();
-		LinkedHashSet<CharSequence> urlSet = extractUrls(text);
+		final TerminalSession session = getCurrentTermSession();
+		if (session == null) return;
+		// Scanned from a snapshot, so that the emulator is not locked from drawing and emulation during the scan:
+		final TranscriptSnapshot transcript;
+		final TerminalEmulator emulator = session.getEmulator();
+		synchronized (emulator) {
+			transcript = emulator.getScreen().snapshotTranscript();
+		}
+		new Thread("UrlExtractor") {
+			@Override
+			public void run() {
+				final LinkedHashSet<CharSequence> urlSet = new LinkedHashSet<>();
+				// Match a logical line at a time, which finds wrapped URLs without building up the whole transcript:
+				final StringBuilder line = new StringBuilder();
+				final Writer lineMatcher = new Writer() {
+					@Override
+					public void write(char[] text, int offset, int length) {
+						for (int i = offset; i < offset + length; i++) {
+							if (text[i] == '\n') {
+								urlSet.addAll(extractUrls(line));
+								line.setLength(0);
+							} else {
+								line.append(text[i]);
+							}
+						}
+					}
+
+					@Override
+					public void flush() {
+					}
+
+					@Override
+					public void close() {
+					}
+				};
+				try {
+					transcript.writeText(lineMatcher);
+				} catch (IOException e) {
+					// Only thrown when reading spilled history fails, in which case the URLs found so far are shown:
+					Log.e(EmulatorDebug.LOG_TAG, "Error reading transcript", e);
+				} finally {
+					transcript.close();
+				}
+				urlSet.addAll(extractUrls(line));
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (!isFinishing()) showUrlDialog(urlSet);
+					}
+				});
+			}
+		}.start();
+	}
+
+	private void showUrlDialog(LinkedHashSet<CharSequence> urlSet) {
 		if (urlSet.isEmpty()) {
 			new AlertDialog.Builder(this).setMessage(R.string.select_url_no_found).show();
 			return;
@@ -644,12 +709,48 @@ public final class TermuxActivity extends Activity implements ServiceConnection
 		dialog.show();
 	}
 
+	/** Write the transcript of the current session to a new file in the home directory, streaming it on a background thread. */
+	void saveTranscript() {
+		final TerminalSession session = getCurrentTermSession();
+		if (session == null) return;
+		final String fileName = "transcript-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".txt";
+		final File file = new File(TermuxService.HOME_PATH, fileName);
+		// Written from a snapshot, so that the emulator is not locked from drawing and emulation during the write:
+		final TranscriptSnapshot transcript;
+		final TerminalEmulator emulator = session.getEmulator();
+		synchronized (emulator) {
+			transcript = emulator.getScreen().snapshotTranscript();
+		}
+		new Thread("TranscriptWriter") {
+			@Override
+			public void run() {
+				String error = null;
+				try (FileOutputStream out = new FileOutputStream(file)) {
+					transcript.writeText(out.getChannel());
+				} catch (IOException e) {
+					Log.e(EmulatorDebug.LOG_TAG, "Error saving transcript", e);
+					error = e.getMessage();
+				} finally {
+					transcript.close();
+				}
+				final String message = (error == null) ? getString(R.string.save_transcript_done, file.getAbsolutePath())
+						: getString(R.string.save_transcript_failed, error);
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						Toast.makeText(TermuxActivity.this, message, Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		}.start();
+	}
+
 	@Override
 	public boolean onContextItemSelected(MenuItem item) {
 		switch (item.getItemId()) {
 		case CONTEXTMENU_SELECT_ID:
 			CharSequence[] items = new CharSequence[] { getString(R.string.select_text), getString(R.string.select_url),
-					getString(R.string.select_all_and_share) };
+					getString(R.string.select_all_and_share), getString(R.string.save_transcript) };
 			new AlertDialog.Builder(this).setItems(items, new DialogInterface.OnClickListener() {
 				@Override
 				public void onClick(DialogInterface dialog, int which) {
@@ -663,13 +764,20 @@ public final class TermuxActivity extends Activity implements ServiceConnection
 					case 2:
 						TerminalSession session = getCurrentTermSession();
 						if (session != null) {
+							final String transcript;
+							synchronized (session.getEmulator()) {
+								transcript = session.getEmulator().getScreen().getTranscriptText();
+							}
 							Intent intent = new Intent(Intent.ACTION_SEND);
 							intent.setType("text/plain");
-							intent.putExtra(Intent.EXTRA_TEXT, session.getEmulator().getScreen().getTranscriptText().trim());
+							intent.putExtra(Intent.EXTRA_TEXT, transcript);
 							intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.share_transcript_title));
 							startActivity(Intent.createChooser(intent, getString(R.string.share_transcript_chooser_title)));
 						}
 						break;
+					case 3:
+						saveTranscript();
+						break;
 					}
 					dialog.dismiss();
 				}
@@ -7,9 +7,11 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.DialogInterface.OnDismissListener;
+import android.os.SystemClock;
+import android.system.ErrnoException;
 import android.system.Os;
+import android.text.format.Formatter;
 import android.util.Log;
-import android.util.Pair;
 import android.view.WindowManager;
 
 import com.termux.R;
@@ -18,13 +20,25 @@ import com.termux.terminal.EmulatorDebug;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 /**
  * Install the Termux bootstrap packages if necessary by following the below steps:
@@ -38,15 +52,48 @@ import java.util.zip.ZipInputStream;
  * 
  * (4) The architecture is determined and an appropriate bootstrap zip url is determined in {@link #determineZipUrl()}.
  * 
- * (5) The zip, containing entries relative to the $PREFIX, is is downloaded and extracted by a zip input stream
- * continously encountering zip file entries:
+ * (5) The zip, containing entries relative to the $PREFIX, is downloaded to a temporary file with its progress and
+ * throughput shown, which may also be done from a file: url. It is then extracted by
+ * {@link #extract(File, String, FileLinker, ProgressReporter)}:
  * 
- * (5.1) If the zip entry encountered is SYMLINKS.txt, go through it and remember all symlinks to setup.
+ * (5.1) The directories are created and SYMLINKS.txt is read to remember all symlinks to setup.
  * 
- * (5.2) For every other zip entry, extract it into $STAGING_PREFIX and set execute permissions if necessary.
+ * (5.2) Every other zip entry is extracted into $STAGING_PREFIX in parallel by a bounded thread pool.
+ * 
+ * (5.3) The symlinks are created and execute permissions set where necessary, in one batch per thread.
+ * 
+ * (6) $STAGING_PREFIX is renamed to $PREFIX.
  */
 final class TermuxInstaller {
 
+	/** The size of the buffers used when downloading and extracting. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/** The maximum number of threads extracting files at the same time. */
+	private static final int MAX_EXTRACTION_THREADS = 4;
+	/** The minimum time between updates of the progress dialog. */
+	private static final long PROGRESS_INTERVAL_MILLIS = 250;
+
+	/** Creates the symlinks and sets the execute permissions of extracted files. */
+	interface FileLinker {
+		void symlink(String oldPath, String newPath) throws Exception;
+
+		void makeExecutable(String path) throws Exception;
+	}
+
+	/** The {@link FileLinker} used when installing, through {@link Os}. */
+	static final FileLinker OS_LINKER = new FileLinker() {
+		@Override
+		public void symlink(String oldPath, String newPath) throws ErrnoException {
+			Os.symlink(oldPath, newPath);
+		}
+
+		@Override
+		public void makeExecutable(String path) throws ErrnoException {
+			//noinspection OctalInteger
+			Os.chmod(path, 0700);
+		}
+	};
+
 	/** Performs setup if necessary. */
 	static void setupIfNeeded(final Activity activity, final Runnable whenDone) {
 		// Termux can only be run as the primary user (device owner) since only that
@@ -82,46 +129,14 @@ final class TermuxInstaller {
 						deleteFolder(STAGING_PREFIX_FILE);
 					}
 
-					final byte[] buffer = new byte[8096];
-					final List<Pair<String, String>> symlinks = new ArrayList<>(50);
-
 					final URL zipUrl = determineZipUrl();
-					try (ZipInputStream zipInput = new ZipInputStream(zipUrl.openStream())) {
-						ZipEntry zipEntry;
-						while ((zipEntry = zipInput.getNextEntry()) != null) {
-							if (zipEntry.getName().equals("SYMLINKS.txt")) {
-								BufferedReader symlinksReader = new BufferedReader(new InputStreamReader(zipInput));
-								String line;
-								while ((line = symlinksReader.readLine()) != null) {
-									String[] parts = line.split("←");
-									if (parts.length != 2) throw new RuntimeException("Malformed symlink line: " + line);
-									String oldPath = parts[0];
-									String newPath = STAGING_PREFIX_PATH + "/" + parts[1];
-									symlinks.add(Pair.create(oldPath, newPath));
-								}
-							} else {
-								String zipEntryName = zipEntry.getName();
-								File targetFile = new File(STAGING_PREFIX_PATH, zipEntryName);
-								if (zipEntry.isDirectory()) {
-									if (!targetFile.mkdirs()) throw new RuntimeException("Failed to create directory: " + targetFile.getAbsolutePath());
-								} else {
-									try (FileOutputStream outStream = new FileOutputStream(targetFile)) {
-										int readBytes;
-										while ((readBytes = zipInput.read(buffer)) != -1)
-											outStream.write(buffer, 0, readBytes);
-									}
-									if (zipEntryName.startsWith("bin/") || zipEntryName.startsWith("libexec") || zipEntryName.startsWith("lib/apt/methods")) {
-										//noinspection OctalInteger
-										Os.chmod(targetFile.getAbsolutePath(), 0700);
-									}
-								}
-							}
-						}
-					}
-
-					if (symlinks.isEmpty()) throw new RuntimeException("No SYMLINKS.txt encountered");
-					for (Pair<String, String> symlink : symlinks) {
-						Os.symlink(symlink.first, symlink.second);
+					final File zipFile = new File(activity.getCacheDir(), "bootstrap.zip");
+					final ProgressReporter reporter = new ProgressReporter(activity, progress);
+					try {
+						download(zipUrl, zipFile, reporter);
+						extract(zipFile, STAGING_PREFIX_PATH, OS_LINKER, reporter);
+					} finally {
+						zipFile.delete();
 					}
 
 					if (!STAGING_PREFIX_FILE.renameTo(PREFIX_FILE)) {
@@ -175,6 +190,182 @@ final class TermuxInstaller {
 		}.start();
 	}
 
+	/** Download a url, which may also be a file: url, to a file. */
+	static void download(URL url, File file, ProgressReporter reporter) throws IOException {
+		URLConnection connection = url.openConnection();
+		final long totalBytes = connection.getContentLength();
+		reporter.start();
+		try (InputStream in = connection.getInputStream(); FileOutputStream out = new FileOutputStream(file)) {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			long downloadedBytes = 0;
+			int readBytes;
+			while ((readBytes = in.read(buffer)) != -1) {
+				out.write(buffer, 0, readBytes);
+				downloadedBytes += readBytes;
+				reporter.downloaded(downloadedBytes, totalBytes);
+			}
+		}
+	}
+
+	/**
+	 * Extract a downloaded bootstrap zip into the staging prefix. Directories are created and SYMLINKS.txt is read
+	 * first, after which the files are extracted in parallel and the symlinks and execute permissions applied in one
+	 * batch per thread.
+	 */
+	static void extract(File zipFile, final String stagingPrefixPath, final FileLinker linker, final ProgressReporter reporter) throws Exception {
+		// The old and new path of each symlink:
+		final List<String[]> symlinks = new ArrayList<>(50);
+		final List<String> executables = new ArrayList<>();
+		final List<ZipEntry> fileEntries = new ArrayList<>();
+		final int threadCount = Math.max(1, Math.min(MAX_EXTRACTION_THREADS, Runtime.getRuntime().availableProcessors()));
+		final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			try (final ZipFile zip = new ZipFile(zipFile)) {
+				Enumeration<? extends ZipEntry> entries = zip.entries();
+				while (entries.hasMoreElements()) {
+					ZipEntry zipEntry = entries.nextElement();
+					String zipEntryName = zipEntry.getName();
+					if (zipEntryName.equals("SYMLINKS.txt")) {
+						BufferedReader symlinksReader = new BufferedReader(new InputStreamReader(zip.getInputStream(zipEntry), StandardCharsets.UTF_8));
+						String line;
+						while ((line = symlinksReader.readLine()) != null) {
+							String[] parts = line.split("←");
+							if (parts.length != 2) throw new RuntimeException("Malformed symlink line: " + line);
+							symlinks.add(new String[] { parts[0], stagingPrefixPath + "/" + parts[1] });
+						}
+					} else if (zipEntry.isDirectory()) {
+						File targetDirectory = new File(stagingPrefixPath, zipEntryName);
+						if (!targetDirectory.mkdirs()) throw new RuntimeException("Failed to create directory: " + targetDirectory.getAbsolutePath());
+					} else {
+						fileEntries.add(zipEntry);
+						if (zipEntryName.startsWith("bin/") || zipEntryName.startsWith("libexec") || zipEntryName.startsWith("lib/apt/methods")) {
+							executables.add(new File(stagingPrefixPath, zipEntryName).getAbsolutePath());
+						}
+					}
+				}
+				if (symlinks.isEmpty()) throw new RuntimeException("No SYMLINKS.txt encountered");
+
+				// A buffer per thread, as allocating one per file would churn through memory:
+				final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+					@Override
+					protected byte[] initialValue() {
+						return new byte[BUFFER_SIZE];
+					}
+				};
+				final AtomicInteger extractedFiles = new AtomicInteger();
+				final AtomicLong extractedBytes = new AtomicLong();
+				final List<Future<?>> extractions = new ArrayList<>(fileEntries.size());
+				reporter.start();
+				for (final ZipEntry zipEntry : fileEntries) {
+					extractions.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							final byte[] buffer = buffers.get();
+							long fileBytes = 0;
+							try (InputStream in = zip.getInputStream(zipEntry);
+									FileOutputStream outStream = new FileOutputStream(new File(stagingPrefixPath, zipEntry.getName()))) {
+								int readBytes;
+								while ((readBytes = in.read(buffer)) != -1) {
+									outStream.write(buffer, 0, readBytes);
+									fileBytes += readBytes;
+								}
+							}
+							reporter.extracted(extractedFiles.incrementAndGet(), fileEntries.size(), extractedBytes.addAndGet(fileBytes));
+							return null;
+						}
+					}));
+				}
+				awaitAll(extractions);
+			}
+
+			final List<Future<?>> batches = new ArrayList<>(threadCount);
+			for (int i = 0; i < threadCount; i++) {
+				final int batch = i;
+				batches.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for (int j = batch; j < symlinks.size(); j += threadCount)
+							linker.symlink(symlinks.get(j)[0], symlinks.get(j)[1]);
+						for (int j = batch; j < executables.size(); j += threadCount)
+							linker.makeExecutable(executables.get(j));
+						return null;
+					}
+				}));
+			}
+			awaitAll(batches);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** Wait for tasks to complete, throwing the exception of the first failed one after cancelling the others. */
+	private static void awaitAll(List<Future<?>> futures) throws Exception {
+		try {
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+				}
+			}
+		} finally {
+			// Does nothing for those already done:
+			for (Future<?> future : futures)
+				future.cancel(true);
+		}
+	}
+
+	/** Shows the progress and throughput of an installation step in the progress dialog. Overridden by tests. */
+	static class ProgressReporter {
+		private final Activity mActivity;
+		private final ProgressDialog mProgress;
+		private long mStartTime, mLastReportTime;
+
+		ProgressReporter(Activity activity, ProgressDialog progress) {
+			mActivity = activity;
+			mProgress = progress;
+		}
+
+		/** Start measuring the throughput of a new step. */
+		synchronized void start() {
+			mStartTime = SystemClock.elapsedRealtime();
+			mLastReportTime = 0;
+		}
+
+		void downloaded(long bytes, long totalBytes) {
+			if (!shouldReport(bytes == totalBytes)) return;
+			show(mActivity.getString(R.string.bootstrap_installer_downloading, Formatter.formatShortFileSize(mActivity, bytes),
+					totalBytes < 0 ? "?" : Formatter.formatShortFileSize(mActivity, totalBytes), formatThroughput(bytes)));
+		}
+
+		void extracted(int files, int totalFiles, long bytes) {
+			if (!shouldReport(files == totalFiles)) return;
+			show(mActivity.getString(R.string.bootstrap_installer_extracting, files, totalFiles, formatThroughput(bytes)));
+		}
+
+		/** Limit updates to one per {@link #PROGRESS_INTERVAL_MILLIS}, and the last one. */
+		private synchronized boolean shouldReport(boolean done) {
+			long now = SystemClock.elapsedRealtime();
+			if (!done && now - mLastReportTime < PROGRESS_INTERVAL_MILLIS) return false;
+			mLastReportTime = now;
+			return true;
+		}
+
+		private synchronized String formatThroughput(long bytes) {
+			long elapsedMillis = Math.max(1, SystemClock.elapsedRealtime() - mStartTime);
+			return Formatter.formatShortFileSize(mActivity, bytes * 1000 / elapsedMillis);
+		}
+
+		private void show(final String message) {
+			mActivity.runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					mProgress.setMessage(message);
+				}
+			});
+		}
+	}
+
 	/** Get bootstrap zip url for this systems cpu architecture. */
 	static URL determineZipUrl() throws MalformedURLException {
 		String arch = System.getProperty("os.arch");
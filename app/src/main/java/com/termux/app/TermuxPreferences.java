@@ -1,6 +1,7 @@
 package com.termux.app;
 
 import com.termux.terminal.TerminalSession;
+import com.termux.terminal.WcWidth;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -15,6 +16,14 @@ final class TermuxPreferences {
 	private static final String FONTSIZE_KEY = "fontsize";
 	private static final String CURRENT_SESSION_KEY = "current_session";
 	private static final String SHOW_WELCOME_DIALOG_KEY = "intro_dialog";
+	private static final String EMULATION_THREAD_KEY = "emulation_thread";
+	private static final String TRANSCRIPT_ROWS_KEY = "transcript_rows";
+	private static final String SPILL_TRANSCRIPT_KEY = "spill_transcript";
+	private static final String AMBIGUOUS_WIDE_KEY = "ambiguous_wide";
+	private static final String EMOJI_WIDE_KEY = "emoji_wide";
+	private static final String SHARED_IO_LOOP_KEY = "shared_io_loop";
+	private static final String SESSION_POOL_SIZE_KEY = "session_pool_size";
+	private static final int MAX_SESSION_POOL_SIZE = 4;
 
 	private boolean mFullScreen;
 	private int mFontSize;
@@ -86,4 +95,54 @@ final class TermuxPreferences {
 		PreferenceManager.getDefaultSharedPreferences(context).edit().putBoolean(SHOW_WELCOME_DIALOG_KEY, false).apply();
 	}
 
+	/** If new sessions should process output from their process on a separate thread instead of the main thread. */
+	public static boolean isEmulateOnSeparateThread(Context context) {
+		return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(EMULATION_THREAD_KEY, false);
+	}
+
+	/** The number of rows of the screen and its history for new sessions. */
+	public static int getTranscriptRows(Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		try {
+			return Math.max(100, Integer.parseInt(prefs.getString(TRANSCRIPT_ROWS_KEY, Integer.toString(TerminalSession.DEFAULT_TRANSCRIPT_ROWS))));
+		} catch (NumberFormatException | ClassCastException e) {
+			return TerminalSession.DEFAULT_TRANSCRIPT_ROWS;
+		}
+	}
+
+	/**
+	 * If history exceeding {@link #getTranscriptRows(Context)} should be kept in a file instead of dropped. Off by
+	 * default, as the file is only limited by the free space of internal storage.
+	 */
+	public static boolean isSpillTranscript(Context context) {
+		return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SPILL_TRANSCRIPT_KEY, false);
+	}
+
+	/** The widths of East Asian Ambiguous and emoji presentation characters for new sessions. */
+	public static WcWidth getWcWidth(Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		return WcWidth.get(prefs.getBoolean(AMBIGUOUS_WIDE_KEY, false), prefs.getBoolean(EMOJI_WIDE_KEY, false));
+	}
+
+	/** If new sessions should do their pty I/O on a loop shared by all sessions instead of on threads of their own. */
+	public static boolean isSharedIoLoop(Context context) {
+		return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SHARED_IO_LOOP_KEY, false);
+	}
+
+	/** The number of sessions to start ahead of time so that new sessions show up at once, 0 to not do that. */
+	public static int getSessionPoolSize(Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		try {
+			return Math.max(0, Math.min(MAX_SESSION_POOL_SIZE, Integer.parseInt(prefs.getString(SESSION_POOL_SIZE_KEY, "0"))));
+		} catch (NumberFormatException | ClassCastException e) {
+			return 0;
+		}
+	}
+
+	/** If a preference is one with which new sessions are created, so that sessions started ahead of time are outdated. */
+	public static boolean isNewSessionKey(String key) {
+		return EMULATION_THREAD_KEY.equals(key) || TRANSCRIPT_ROWS_KEY.equals(key) || SPILL_TRANSCRIPT_KEY.equals(key)
+				|| AMBIGUOUS_WIDE_KEY.equals(key) || EMOJI_WIDE_KEY.equals(key) || SHARED_IO_LOOP_KEY.equals(key);
+	}
+
 }
@@ -7,6 +7,8 @@ import java.util.List;
 
 import com.termux.R;
 import com.termux.terminal.EmulatorDebug;
+import com.termux.terminal.TerminalEmulator;
+import com.termux.terminal.TerminalIoLoop;
 import com.termux.terminal.TerminalSession;
 import com.termux.terminal.TerminalSession.SessionChangedCallback;
 
@@ -21,6 +23,7 @@ import android.content.res.Resources;
 import android.net.Uri;
 import android.net.wifi.WifiManager;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.util.Log;
@@ -45,6 +48,8 @@ public final class TermuxService extends Service implements SessionChangedCallba
 	public static final String FILES_PATH = "/data/data/com.termux/files";
 	public static final String PREFIX_PATH = FILES_PATH + "/usr";
 	public static final String HOME_PATH = FILES_PATH + "/home";
+	/** Directory where history exceeding the in-memory transcript of sessions is spilled to, if enabled. */
+	public static final String TRANSCRIPTS_PATH = FILES_PATH + "/transcripts";
 
 	private static final int NOTIFICATION_ID = 1337;
 
@@ -64,6 +69,8 @@ public final class TermuxService extends Service implements SessionChangedCallba
 
 	private final IBinder mBinder = new LocalBinder();
 
+	private final Handler mMainThreadHandler = new Handler();
+
 	/**
 	 * The terminal sessions which this service manages.
 	 *
@@ -72,6 +79,14 @@ public final class TermuxService extends Service implements SessionChangedCallba
 	 */
 	final List<TerminalSession> mTerminalSessions = new ArrayList<>();
 
+	/** The loop doing the pty I/O of sessions if {@link TermuxPreferences#isSharedIoLoop(Context)}, created when first needed. */
+	private TerminalIoLoop mIoLoop;
+	/** If the native library lacks the I/O loop, in which case sessions keep doing their I/O on their own threads. */
+	private boolean mIoLoopUnavailable;
+
+	/** Sessions started ahead of time to be handed out by {@link #createTermSession(String, String[], String, boolean)}. */
+	private final TermuxSessionPool mSessionPool = new TermuxSessionPool(this);
+
 	/** Note that the service may often outlive the activity, so need to clear this reference. */
 	SessionChangedCallback mSessionChangeCallback;
 
@@ -147,6 +162,13 @@ public final class TermuxService extends Service implements SessionChangedCallba
 	@Override
 	public void onCreate() {
 		startForeground(NOTIFICATION_ID, buildNotification());
+
+		// No sessions exist yet, so any spilled transcripts are left over from a killed process:
+		File[] staleTranscripts = new File(TRANSCRIPTS_PATH).listFiles();
+		if (staleTranscripts != null) {
+			for (File staleTranscript : staleTranscripts)
+				staleTranscript.delete();
+		}
 	}
 
 	/** Update the shown foreground service notification after making any changes that affect it. */
@@ -218,8 +240,11 @@ public final class TermuxService extends Service implements SessionChangedCallba
 
 		stopForeground(true);
 
-		for (int i = 0; i < mTerminalSessions.size(); i++)
+		mSessionPool.close();
+		for (int i = 0; i < mTerminalSessions.size(); i++) {
 			mTerminalSessions.get(i).finishIfRunning();
+			closeEmulator(mTerminalSessions.get(i));
+		}
 		mTerminalSessions.clear();
 	}
 
@@ -228,6 +253,26 @@ public final class TermuxService extends Service implements SessionChangedCallba
 	}
 
 	TerminalSession createTermSession(String executablePath, String[] arguments, String cwd, boolean failSafe) {
+		// Only sessions with the default shell, working directory and environment are pooled:
+		final boolean poolable = executablePath == null && arguments == null && cwd == null && !failSafe;
+		TerminalSession session = poolable ? mSessionPool.take() : null;
+		if (session == null) session = newTermSession(executablePath, arguments, cwd, failSafe);
+		mTerminalSessions.add(session);
+		updateNotification();
+		if (poolable) {
+			// Refill after the new session has been shown, so that its size is known:
+			mMainThreadHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					mSessionPool.refill();
+				}
+			});
+		}
+		return session;
+	}
+
+	/** Start a session which is not yet managed by this service. May be called on a background thread. */
+	TerminalSession newTermSession(String executablePath, String[] arguments, String cwd, boolean failSafe) {
 		new File(HOME_PATH).mkdirs();
 
 		if (cwd == null) cwd = HOME_PATH;
@@ -299,15 +344,39 @@ public final class TermuxService extends Service implements SessionChangedCallba
 			System.arraycopy(arguments, 0, args, 1, arguments.length);
 		}
 
-		TerminalSession session = new TerminalSession(executablePath, cwd, args, env, this);
-		mTerminalSessions.add(session);
-		updateNotification();
-		return session;
+		TerminalIoLoop ioLoop = null;
+		if (TermuxPreferences.isSharedIoLoop(this)) {
+			synchronized (this) {
+				if (mIoLoop == null && !mIoLoopUnavailable) {
+					try {
+						mIoLoop = new TerminalIoLoop();
+					} catch (UnsatisfiedLinkError e) {
+						Log.w(EmulatorDebug.LOG_TAG, "No shared I/O loop in native library, using per-session threads", e);
+						mIoLoopUnavailable = true;
+					}
+				}
+				ioLoop = mIoLoop;
+			}
+		}
+
+		File transcriptSpillDirectory = TermuxPreferences.isSpillTranscript(this) ? new File(TRANSCRIPTS_PATH) : null;
+		return new TerminalSession(executablePath, cwd, args, env, this, TermuxPreferences.isEmulateOnSeparateThread(this),
+				TermuxPreferences.getTranscriptRows(this), transcriptSpillDirectory, TermuxPreferences.getWcWidth(this), ioLoop);
+	}
+
+	/** Delete the spilled transcript of a session which is no longer going to be shown. */
+	static void closeEmulator(TerminalSession session) {
+		TerminalEmulator emulator = session.getEmulator();
+		if (emulator == null) return;
+		synchronized (emulator) {
+			emulator.close();
+		}
 	}
 
 	public int removeTermSession(TerminalSession sessionToRemove) {
 		int indexOfRemoved = mTerminalSessions.indexOf(sessionToRemove);
 		mTerminalSessions.remove(indexOfRemoved);
+		closeEmulator(sessionToRemove);
 		if (mTerminalSessions.isEmpty() && mWakeLock == null) {
 			// Finish if there are no sessions left and the wake lock is not held, otherwise keep the service alive if
 			// holding wake lock since there may be daemon processes (e.g. sshd) running.
@@ -318,29 +387,43 @@ public final class TermuxService extends Service implements SessionChangedCallba
 		return indexOfRemoved;
 	}
 
+	/** The callback to forward changes of a session to, or null if none or if the session is still in the pool. */
+	private SessionChangedCallback getCallbackFor(TerminalSession session) {
+		return mSessionPool.isPooled(session) ? null : mSessionChangeCallback;
+	}
+
 	@Override
 	public void onTitleChanged(TerminalSession changedSession) {
-		if (mSessionChangeCallback != null) mSessionChangeCallback.onTitleChanged(changedSession);
+		SessionChangedCallback callback = getCallbackFor(changedSession);
+		if (callback != null) callback.onTitleChanged(changedSession);
 	}
 
 	@Override
 	public void onSessionFinished(final TerminalSession finishedSession) {
-		if (mSessionChangeCallback != null) mSessionChangeCallback.onSessionFinished(finishedSession);
+		if (mSessionPool.remove(finishedSession)) {
+			closeEmulator(finishedSession);
+			return;
+		}
+		SessionChangedCallback callback = getCallbackFor(finishedSession);
+		if (callback != null) callback.onSessionFinished(finishedSession);
 	}
 
 	@Override
 	public void onTextChanged(TerminalSession changedSession) {
-		if (mSessionChangeCallback != null) mSessionChangeCallback.onTextChanged(changedSession);
+		SessionChangedCallback callback = getCallbackFor(changedSession);
+		if (callback != null) callback.onTextChanged(changedSession);
 	}
 
 	@Override
 	public void onClipboardText(TerminalSession session, String text) {
-		if (mSessionChangeCallback != null) mSessionChangeCallback.onClipboardText(session, text);
+		SessionChangedCallback callback = getCallbackFor(session);
+		if (callback != null) callback.onClipboardText(session, text);
 	}
 
 	@Override
 	public void onBell(TerminalSession session) {
-		if (mSessionChangeCallback != null) mSessionChangeCallback.onBell(session);
+		SessionChangedCallback callback = getCallbackFor(session);
+		if (callback != null) callback.onBell(session);
 	}
 
 }
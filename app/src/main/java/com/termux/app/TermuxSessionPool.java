@@ -0,0 +1,173 @@
+package com.termux.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.termux.terminal.EmulatorDebug;
+import com.termux.terminal.TerminalEmulator;
+import com.termux.terminal.TerminalSession;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Sessions with the default shell started ahead of time, so that a new session can be shown at once instead of after
+ * its shell has started and run its profile and its emulator has been allocated.
+ *
+ * Sessions are created on a background thread with their emulator at the size of the last sized session, and are only
+ * handed out and otherwise accessed on the main thread. The number kept is limited by
+ * {@link TermuxPreferences#getSessionPoolSize(android.content.Context)} and by a budget for the estimated memory used by
+ * their transcripts. The pool is drained when a preference with which sessions are created changes.
+ */
+final class TermuxSessionPool implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+	/** The transcripts of pooled sessions may use at most this fraction of the maximum heap size. */
+	private static final int MEMORY_BUDGET_DIVISOR = 8;
+	/**
+	 * Estimated bytes used by a cell of a full row of a transcript: one and a half chars of text capacity, an int of
+	 * style and a short indexing the text of the column.
+	 */
+	private static final int BYTES_PER_FULL_CELL = 9;
+	/** Estimated bytes used by a line of compact history beyond its text, for its offsets, wrap flag and style runs. */
+	private static final int BYTES_PER_COMPACT_LINE = 24;
+
+	private final TermuxService mService;
+	private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+	/** Running sessions ready to be handed out. */
+	private final List<TerminalSession> mSessions = new ArrayList<>();
+	/** All sessions created by the pool and not yet handed out, including those being created. */
+	private final Set<TerminalSession> mUnclaimed = Collections.synchronizedSet(new HashSet<TerminalSession>());
+	/** The number of sessions being created on the background thread. */
+	private int mPendingCount;
+	/** Incremented when draining, so that sessions being created with the previous preferences are finished. */
+	private int mGeneration;
+	private boolean mListening;
+	private boolean mClosed;
+
+	TermuxSessionPool(TermuxService service) {
+		mService = service;
+	}
+
+	/** Take a pooled session which is still running, or return null if there is none. */
+	TerminalSession take() {
+		while (!mSessions.isEmpty()) {
+			TerminalSession session = mSessions.remove(0);
+			mUnclaimed.remove(session);
+			if (session.isRunning()) return session;
+			TermuxService.closeEmulator(session);
+		}
+		return null;
+	}
+
+	/** If a session was created by the pool and has not been handed out, so that its changes should be ignored. */
+	boolean isPooled(TerminalSession session) {
+		return mUnclaimed.contains(session);
+	}
+
+	/** Forget a session if pooled, returning whether it was. */
+	boolean remove(TerminalSession session) {
+		mSessions.remove(session);
+		return mUnclaimed.remove(session);
+	}
+
+	/**
+	 * Start creating sessions in the background until the pool is full, sized like the most recent session of the
+	 * service which has been sized. Does nothing if none has.
+	 */
+	void refill() {
+		if (mClosed) return;
+		TerminalEmulator sizedEmulator = null;
+		for (TerminalSession session : mService.getSessions())
+			if (session.getEmulator() != null) sizedEmulator = session.getEmulator();
+		if (sizedEmulator == null) return;
+		final int columns = sizedEmulator.mColumns, rows = sizedEmulator.mRows;
+		final int generation = mGeneration;
+		if (!mListening) {
+			PreferenceManager.getDefaultSharedPreferences(mService).registerOnSharedPreferenceChangeListener(this);
+			mListening = true;
+		}
+
+		long sessionBytes = estimateTranscriptBytes(TermuxPreferences.getTranscriptRows(mService), columns);
+		long maxSessions = Runtime.getRuntime().maxMemory() / MEMORY_BUDGET_DIVISOR / sessionBytes;
+		int targetSize = (int) Math.min(TermuxPreferences.getSessionPoolSize(mService), maxSessions);
+
+		for (; mSessions.size() + mPendingCount < targetSize; mPendingCount++) {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					TerminalSession session = null;
+					try {
+						session = mService.newTermSession(null, null, null, false);
+						// Before output is processed, which may call back to the service:
+						mUnclaimed.add(session);
+						session.updateSize(columns, rows);
+					} catch (RuntimeException e) {
+						Log.e(EmulatorDebug.LOG_TAG, "Error creating pooled session", e);
+					}
+					final TerminalSession createdSession = session;
+					mMainThreadHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							mPendingCount--;
+							if (createdSession == null) return;
+							if (mClosed) {
+								createdSession.finishIfRunning();
+								TermuxService.closeEmulator(createdSession);
+							} else if (generation != mGeneration) {
+								// Created with outdated preferences, so replace it:
+								createdSession.finishIfRunning();
+								refill();
+							} else {
+								mSessions.add(createdSession);
+							}
+						}
+					});
+				}
+			});
+		}
+	}
+
+	/**
+	 * The estimated memory used by a full transcript: up to {@link TerminalEmulator#FULL_TRANSCRIPT_ROWS} full rows, and
+	 * compact lines for the rest assuming they are half filled with text of two bytes per char.
+	 */
+	static long estimateTranscriptBytes(int transcriptRows, int columns) {
+		final int fullRows = Math.min(transcriptRows, TerminalEmulator.FULL_TRANSCRIPT_ROWS);
+		final long compactLines = transcriptRows - fullRows;
+		return (long) fullRows * columns * BYTES_PER_FULL_CELL + compactLines * (columns + BYTES_PER_COMPACT_LINE);
+	}
+
+	@Override
+	public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+		if (mClosed || !TermuxPreferences.isNewSessionKey(key)) return;
+		// Finished sessions are forgotten through remove() once their process has exited:
+		mGeneration++;
+		for (TerminalSession session : mSessions)
+			session.finishIfRunning();
+		mSessions.clear();
+		refill();
+	}
+
+	/** Finish the pooled sessions and stop creating new ones. */
+	void close() {
+		mClosed = true;
+		if (mListening) PreferenceManager.getDefaultSharedPreferences(mService).unregisterOnSharedPreferenceChangeListener(this);
+		mExecutor.shutdown();
+		for (TerminalSession session : mSessions) {
+			session.finishIfRunning();
+			TermuxService.closeEmulator(session);
+		}
+		mSessions.clear();
+		mUnclaimed.clear();
+	}
+
+}
@@ -1,108 +1,242 @@
 package com.termux.terminal;
 
-/** A circular byte buffer allowing one producer and one consumer thread. */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A circular byte buffer allowing one producer and one consumer thread.
+ *
+ * The two threads only communicate through the volatile {@link #mHead} and {@link #mTail} positions, so no lock is
+ * taken when passing data. The exception is {@link #write(byte[], int, int)}, which several threads may call as input to
+ * a process comes both from the user and from replies of the emulator: those writes are serialized by a lock of their
+ * own, so that each is queued whole. A thread only parks when finding the queue empty (consumer) or full (producer), after
+ * registering itself in {@link #mWaitingReader} or {@link #mWaitingWriter} so that the other side unparks it.
+ *
+ * The buffer is a direct one so that a channel can read into and write from it without copying, see
+ * {@link #readFrom(ReadableByteChannel)} and {@link #writeTo(WritableByteChannel)}, and the consumer can process data
+ * in place with {@link #peek()}.
+ */
 final class ByteQueue {
 
-	private final byte[] mBuffer;
-	private int mHead;
-	private int mStoredBytes;
-	private boolean mOpen = true;
+	private final ByteBuffer mBuffer;
+	/** Views of {@link #mBuffer} with positions and limits of their own, only used by the producer and consumer. */
+	private final ByteBuffer mProducerView, mConsumerView;
+	/** The total number of bytes read. Only written by the consumer. */
+	private volatile long mHead;
+	/** The total number of bytes written. Only written by the producer. */
+	private volatile long mTail;
+	private volatile boolean mOpen = true;
+	/** Held by {@link #write(byte[], int, int, Runnable)} to make its caller the only producer. */
+	private final Object mWriteLock = new Object();
+	/** The consumer thread if parked waiting for the queue to become non-empty, else null. */
+	private volatile Thread mWaitingReader;
+	/** The producer thread if parked waiting for the queue to become non-full, else null. */
+	private volatile Thread mWaitingWriter;
 
 	public ByteQueue(int size) {
-		mBuffer = new byte[size];
+		mBuffer = ByteBuffer.allocateDirect(size);
+		mProducerView = mBuffer.duplicate();
+		mConsumerView = mBuffer.duplicate();
 	}
 
-	public synchronized void close() {
+	public void close() {
 		mOpen = false;
-		notify();
+		unpark(mWaitingReader);
+		unpark(mWaitingWriter);
 	}
 
-	public synchronized int read(byte[] buffer, boolean block) {
-		while (mStoredBytes == 0 && mOpen) {
-			if (block) {
-				try {
-					wait();
-				} catch (InterruptedException e) {
-					// Ignore.
-				}
-			} else {
-				return 0;
-			}
+	public int read(byte[] buffer, boolean block) {
+		if (block) {
+			awaitData();
+		} else if (mTail == mHead && mOpen) {
+			return 0;
 		}
 		if (!mOpen) return -1;
 
-		int totalRead = 0;
-		int bufferLength = mBuffer.length;
-		boolean wasFull = bufferLength == mStoredBytes;
-		int length = buffer.length;
-		int offset = 0;
-		while (length > 0 && mStoredBytes > 0) {
-			int oneRun = Math.min(bufferLength - mHead, mStoredBytes);
-			int bytesToCopy = Math.min(length, oneRun);
-			System.arraycopy(mBuffer, mHead, buffer, offset, bytesToCopy);
-			mHead += bytesToCopy;
-			if (mHead >= bufferLength) mHead = 0;
-			mStoredBytes -= bytesToCopy;
-			length -= bytesToCopy;
-			offset += bytesToCopy;
-			totalRead += bytesToCopy;
+		int bytesRead = 0;
+		ByteBuffer data;
+		// At most two runs, as the data may wrap around the end of the buffer:
+		while (bytesRead < buffer.length && (data = peek()) != null) {
+			final int run = Math.min(data.remaining(), buffer.length - bytesRead);
+			data.get(buffer, bytesRead, run);
+			skip(run);
+			bytesRead += run;
 		}
-		if (wasFull) notify();
-		return totalRead;
+		return bytesRead;
 	}
 
 	/**
-	 * Attempt to write the specified portion of the provided buffer to the queue.
-	 * 
+	 * Attempt to write the specified portion of the provided buffer to the queue. May be called from several threads,
+	 * with each write queued without others in between.
+	 *
 	 * Returns whether the output was totally written, false if it was closed before.
 	 */
 	public boolean write(byte[] buffer, int offset, int lengthToWrite) {
+		return write(buffer, offset, lengthToWrite, null);
+	}
+
+	/**
+	 * Write like {@link #write(byte[], int, int)}, running onQueued (if not null) each time part of the data has been
+	 * queued, for a consumer which does not park on this queue.
+	 */
+	public boolean write(byte[] buffer, int offset, int lengthToWrite, Runnable onQueued) {
 		if (lengthToWrite + offset > buffer.length) {
 			throw new IllegalArgumentException("length + offset > buffer.length");
 		} else if (lengthToWrite <= 0) {
 			throw new IllegalArgumentException("length <= 0");
 		}
 
-		final int bufferLength = mBuffer.length;
-
-		synchronized (this) {
+		synchronized (mWriteLock) {
 			while (lengthToWrite > 0) {
-				while (bufferLength == mStoredBytes && mOpen) {
-					try {
-						wait();
-					} catch (InterruptedException e) {
-						// Ignore.
-					}
-				}
-				if (!mOpen) return false;
-				final boolean wasEmpty = mStoredBytes == 0;
-				int bytesToWriteBeforeWaiting = Math.min(lengthToWrite, bufferLength - mStoredBytes);
-				lengthToWrite -= bytesToWriteBeforeWaiting;
-
-				while (bytesToWriteBeforeWaiting > 0) {
-					int tail = mHead + mStoredBytes;
-					int oneRun;
-					if (tail >= bufferLength) {
-						// Buffer: [.............]
-						// ________________H_______T
-						// =>
-						// Buffer: [.............]
-						// ___________T____H
-						// onRun= _____----_
-						tail = tail - bufferLength;
-						oneRun = mHead - tail;
-					} else {
-						oneRun = bufferLength - tail;
-					}
-					int bytesToCopy = Math.min(oneRun, bytesToWriteBeforeWaiting);
-					System.arraycopy(buffer, offset, mBuffer, tail, bytesToCopy);
-					offset += bytesToCopy;
-					bytesToWriteBeforeWaiting -= bytesToCopy;
-					mStoredBytes += bytesToCopy;
-				}
-				if (wasEmpty) notify();
+				if (!awaitSpace()) return false;
+				final int bytesWritten = offer(buffer, offset, lengthToWrite);
+				if (bytesWritten < 0) return false;
+				offset += bytesWritten;
+				lengthToWrite -= bytesWritten;
+				if (onQueued != null) onQueued.run();
 			}
 		}
 		return true;
 	}
+
+	/**
+	 * Write as much of the specified portion of the provided buffer as fits without blocking.
+	 *
+	 * Returns the number of bytes written, or -1 if the queue is closed.
+	 */
+	public int offer(byte[] buffer, int offset, int length) {
+		if (!mOpen) return -1;
+		final int bufferLength = mBuffer.capacity();
+		final long tail = mTail;
+		final int bytesToWrite = Math.min(length, bufferLength - (int) (tail - mHead));
+		if (bytesToWrite <= 0) return 0;
+
+		final int tailIndex = (int) (tail % bufferLength);
+		final int firstRun = Math.min(bytesToWrite, bufferLength - tailIndex);
+		mProducerView.position(tailIndex);
+		mProducerView.put(buffer, offset, firstRun);
+		if (firstRun < bytesToWrite) {
+			mProducerView.position(0);
+			mProducerView.put(buffer, offset + firstRun, bytesToWrite - firstRun);
+		}
+
+		mTail = tail + bytesToWrite;
+		unpark(mWaitingReader);
+		return bytesToWrite;
+	}
+
+	/**
+	 * Read from a channel straight into the free space of the queue, up to where it wraps around. Only called by the
+	 * producer.
+	 *
+	 * Returns the number of bytes read, 0 if the queue is full or the channel is non-blocking with nothing to read, or
+	 * -1 at end of stream or if the queue is closed.
+	 */
+	public int readFrom(ReadableByteChannel channel) throws IOException {
+		if (!mOpen) return -1;
+		final int bufferLength = mBuffer.capacity();
+		final long tail = mTail;
+		final int freeSpace = bufferLength - (int) (tail - mHead);
+		if (freeSpace == 0) return 0;
+
+		final int tailIndex = (int) (tail % bufferLength);
+		mProducerView.limit(tailIndex + Math.min(freeSpace, bufferLength - tailIndex));
+		mProducerView.position(tailIndex);
+		final int bytesRead;
+		try {
+			bytesRead = channel.read(mProducerView);
+		} finally {
+			// Back to the whole buffer for offer():
+			mProducerView.clear();
+		}
+		if (bytesRead > 0) {
+			mTail = tail + bytesRead;
+			unpark(mWaitingReader);
+		}
+		return bytesRead;
+	}
+
+	/** The number of bytes which can be written without blocking. Only called by the producer. */
+	public int freeSpace() {
+		return mBuffer.capacity() - (int) (mTail - mHead);
+	}
+
+	/** Block the producer until the queue is not full. Returns false if it was closed before. */
+	public boolean awaitSpace() {
+		final long tail = mTail;
+		final int bufferLength = mBuffer.capacity();
+		while (mHead + bufferLength == tail && mOpen) {
+			mWaitingWriter = Thread.currentThread();
+			// Check again after registering, since a read or close in between would not have seen us:
+			if (mHead + bufferLength == tail && mOpen) park();
+			mWaitingWriter = null;
+		}
+		return mOpen;
+	}
+
+	/** Block the consumer until the queue is not empty. Returns false if it was closed before. */
+	public boolean awaitData() {
+		final long head = mHead;
+		while (mTail == head && mOpen) {
+			mWaitingReader = Thread.currentThread();
+			// Check again after registering, since a write or close in between would not have seen us:
+			if (mTail == head && mOpen) park();
+			mWaitingReader = null;
+		}
+		return mOpen;
+	}
+
+	/**
+	 * Get the queued data up to where it wraps around, as a buffer whose position and limit delimit it, without
+	 * removing it from the queue. The data stays valid until removed with {@link #skip(int)}. Only called by the
+	 * consumer.
+	 *
+	 * Returns null if the queue is empty or closed.
+	 */
+	public ByteBuffer peek() {
+		if (!mOpen) return null;
+		final int bufferLength = mBuffer.capacity();
+		final long head = mHead;
+		final int available = (int) (mTail - head);
+		if (available == 0) return null;
+
+		final int headIndex = (int) (head % bufferLength);
+		mConsumerView.limit(headIndex + Math.min(available, bufferLength - headIndex));
+		mConsumerView.position(headIndex);
+		return mConsumerView;
+	}
+
+	/** Remove bytes from the queue after having processed them through {@link #peek()}. Only called by the consumer. */
+	public void skip(int count) {
+		mHead += count;
+		unpark(mWaitingWriter);
+	}
+
+	/**
+	 * Write queued data to a channel straight from the queue, up to where it wraps around. Only called by the consumer.
+	 *
+	 * Returns the number of bytes written, 0 if the queue is empty or the channel is non-blocking and would block, or
+	 * -1 if the queue is closed.
+	 */
+	public int writeTo(WritableByteChannel channel) throws IOException {
+		final ByteBuffer data = peek();
+		if (data == null) return mOpen ? 0 : -1;
+		final int bytesWritten = channel.write(data);
+		if (bytesWritten > 0) skip(bytesWritten);
+		return bytesWritten;
+	}
+
+	private void park() {
+		LockSupport.park(this);
+		// Interrupts are ignored, so clear the flag to avoid spinning while it is set:
+		Thread.interrupted();
+	}
+
+	private static void unpark(Thread thread) {
+		if (thread != null) LockSupport.unpark(thread);
+	}
+
 }
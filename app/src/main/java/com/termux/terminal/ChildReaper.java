@@ -0,0 +1,137 @@
+package com.termux.terminal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * A single thread reaping the exited processes of all {@link TerminalSession}:s, instead of each session having a
+ * thread blocking in waitpid(2) for its process.
+ *
+ * Only registered processes are reaped, one pid at a time, so children of the app started by anyone else are left to
+ * their owners. The thread blocks until any child has exited without reaping it, and then reaps those registered
+ * processes which have exited. A registered process which is no longer a child, as someone else reaped it, is
+ * reported as having exited with status 0.
+ *
+ * If the native library lacks the methods for this, each process is waited for on a thread of its own instead.
+ */
+final class ChildReaper {
+
+	/**
+	 * How long to wait before looking at the registered processes again after a child which is not registered has
+	 * exited, since it stays a zombie until its owner reaps it and waiting again would return at once.
+	 */
+	private static final int UNREGISTERED_EXIT_POLL_MILLIS = 100;
+
+	/** The sessions whose processes have not yet exited, by process id. */
+	private static final Map<Integer, TerminalSession> sSessions = new HashMap<>();
+	private static Thread sThread;
+	/** Set if the native library lacks {@link JNI#awaitChildExit()}, after which the reaper thread is not used. */
+	private static boolean sThreadPerProcess;
+
+	private ChildReaper() {
+	}
+
+	/** Call {@link TerminalSession#onProcessExited(int)} when the process of a session exits. */
+	static void register(int pid, TerminalSession session) {
+		synchronized (ChildReaper.class) {
+			if (!sThreadPerProcess) {
+				sSessions.put(pid, session);
+				if (sThread == null) {
+					sThread = new Thread("TermuxChildReaper") {
+						@Override
+						public void run() {
+							reap();
+						}
+					};
+					sThread.setDaemon(true);
+					sThread.start();
+				}
+				ChildReaper.class.notifyAll();
+				return;
+			}
+		}
+		waitOnOwnThread(pid, session);
+	}
+
+	private static void reap() {
+		final int[] exitStatus = new int[1];
+		try {
+			while (true) {
+				reapRegistered(exitStatus);
+
+				synchronized (ChildReaper.class) {
+					// Waiting with no children would fail at once, so wait for a process to be registered:
+					if (sSessions.isEmpty()) {
+						awaitRegistration();
+						continue;
+					}
+				}
+
+				// With no children left (-1), the registered processes have been reaped by someone else, which
+				// reapRegistered() reports:
+				final int pid = JNI.awaitChildExit();
+				final boolean registered;
+				synchronized (ChildReaper.class) {
+					registered = sSessions.containsKey(pid);
+				}
+				if (pid > 0 && !registered) sleep(UNREGISTERED_EXIT_POLL_MILLIS);
+			}
+		} catch (UnsatisfiedLinkError e) {
+			Log.w(EmulatorDebug.LOG_TAG, "No child reaper in native library, waiting for each process on its own thread", e);
+			final Map<Integer, TerminalSession> sessions;
+			synchronized (ChildReaper.class) {
+				sThreadPerProcess = true;
+				sessions = new HashMap<>(sSessions);
+				sSessions.clear();
+			}
+			for (Map.Entry<Integer, TerminalSession> entry : sessions.entrySet())
+				waitOnOwnThread(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/** Reap the registered processes which have exited, and report those which are no longer children. */
+	private static void reapRegistered(int[] exitStatus) {
+		final Integer[] pids;
+		synchronized (ChildReaper.class) {
+			pids = sSessions.keySet().toArray(new Integer[sSessions.size()]);
+		}
+		for (int pid : pids) {
+			final int result = JNI.pollChildExit(pid, exitStatus);
+			if (result == 0) continue;
+			final TerminalSession session;
+			synchronized (ChildReaper.class) {
+				session = sSessions.remove(pid);
+			}
+			session.onProcessExited(result > 0 ? exitStatus[0] : 0);
+		}
+	}
+
+	private static void waitOnOwnThread(final int pid, final TerminalSession session) {
+		new Thread("TermSessionWaiter[pid=" + pid + "]") {
+			@Override
+			public void run() {
+				session.onProcessExited(JNI.waitFor(pid));
+			}
+		}.start();
+	}
+
+	/** Wait for {@link #register(int, TerminalSession)} to be called. Must hold the lock on the class. */
+	private static void awaitRegistration() {
+		try {
+			ChildReaper.class.wait();
+		} catch (InterruptedException e) {
+			// Ignore.
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			// Ignore.
+		}
+	}
+
+}
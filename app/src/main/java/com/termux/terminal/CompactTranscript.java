@@ -0,0 +1,348 @@
+package com.termux.terminal;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Lines of history which have been moved out of the {@link TerminalRow} ring of a {@link TerminalBuffer}, stored packed
+ * into primitive arrays to keep the memory cost of a long transcript down.
+ *
+ * Lines are stored in chunks of {@link #LINES_PER_CHUNK} lines. The text of a chunk is kept in a single char[] with
+ * trailing spaces trimmed from each line, and the styles as runs of equal style, so that a typical line costs about
+ * two bytes per visible character plus a few bytes of bookkeeping instead of a full row of text, styles and column
+ * index.
+ *
+ * Once the maximum number of lines is reached the oldest line is dropped for each line added, unless a directory to
+ * spill to has been given. In that case the oldest chunk is instead appended to a {@link TranscriptSpillFile} each time
+ * the maximum is exceeded by a full chunk, so that the history is only limited by disk space.
+ *
+ * For searching, each chunk has a bloom filter of the case folded pairs of adjacent characters in its text, which is
+ * kept in memory also for spilled chunks so that chunks which cannot contain a match need not be read.
+ */
+final class CompactTranscript {
+
+	/** The number of lines in each chunk. The arrays of a chunk are trimmed to size when it becomes full. */
+	static final int LINES_PER_CHUNK = 256;
+	/** The number of longs in the bigram filter of each chunk, giving 4096 bits or two bits per line of history. */
+	static final int BIGRAM_FILTER_LONGS = 64;
+
+	static final class Chunk {
+		char[] mText = new char[LINES_PER_CHUNK * 16];
+		int mTextUsed;
+		/** The end in {@link #mText} of the trimmed text of each line. */
+		final int[] mTextEnd = new int[LINES_PER_CHUNK];
+		/** The {@link TerminalRow#getSpaceUsed()} of each line, including the trimmed trailing spaces. */
+		final short[] mSpaceUsed = new short[LINES_PER_CHUNK];
+		final boolean[] mLineWrap = new boolean[LINES_PER_CHUNK];
+		/** The style of each run of columns with equal style. */
+		int[] mRunStyle = new int[LINES_PER_CHUNK];
+		/** The column after the last column of each run. */
+		short[] mRunEnd = new short[LINES_PER_CHUNK];
+		int mRunsUsed;
+		/** The end in {@link #mRunStyle} of the runs of each line. */
+		final int[] mLineRunEnd = new int[LINES_PER_CHUNK];
+		int mLines;
+		/** See {@link #addBigrams(char[], int, int, long[])}. */
+		final long[] mBigrams = new long[BIGRAM_FILTER_LONGS];
+
+		void trimToSize() {
+			mText = Arrays.copyOf(mText, mTextUsed);
+			mRunStyle = Arrays.copyOf(mRunStyle, mRunsUsed);
+			mRunEnd = Arrays.copyOf(mRunEnd, mRunsUsed);
+		}
+
+		Chunk copy() {
+			final Chunk copy = new Chunk();
+			copy.mText = Arrays.copyOf(mText, mTextUsed);
+			copy.mTextUsed = mTextUsed;
+			System.arraycopy(mTextEnd, 0, copy.mTextEnd, 0, LINES_PER_CHUNK);
+			System.arraycopy(mSpaceUsed, 0, copy.mSpaceUsed, 0, LINES_PER_CHUNK);
+			System.arraycopy(mLineWrap, 0, copy.mLineWrap, 0, LINES_PER_CHUNK);
+			copy.mRunStyle = Arrays.copyOf(mRunStyle, mRunsUsed);
+			copy.mRunEnd = Arrays.copyOf(mRunEnd, mRunsUsed);
+			copy.mRunsUsed = mRunsUsed;
+			System.arraycopy(mLineRunEnd, 0, copy.mLineRunEnd, 0, LINES_PER_CHUNK);
+			copy.mLines = mLines;
+			System.arraycopy(mBigrams, 0, copy.mBigrams, 0, BIGRAM_FILTER_LONGS);
+			return copy;
+		}
+	}
+
+	private final int mMaxLines;
+	private final int mColumns;
+	private final ArrayList<Chunk> mChunks = new ArrayList<>();
+	/** The index in the first chunk of the oldest line in memory. */
+	private int mFirstLine;
+	/** The number of lines stored, including the {@link #mSpilledLines}. */
+	private int mSize;
+
+	/** The directory to create {@link #mSpillFile} in, or null if lines should be dropped instead of spilled. */
+	private File mSpillDirectory;
+	/** The file holding the oldest {@link #mSpilledLines} lines, created when first needed. */
+	private TranscriptSpillFile mSpillFile;
+	private int mSpilledLines;
+	/** The bigram filters of the spilled chunks, {@link #BIGRAM_FILTER_LONGS} longs for each. */
+	private long[] mSpilledBigrams = new long[0];
+	/** The spilled chunk last read, and its block in {@link #mSpillFile} or -1 if none. */
+	private Chunk mSpillReadChunk;
+	private int mSpillReadBlock = -1;
+
+	/**
+	 * @param maxLines
+	 *            the maximum number of lines kept in memory, 0 to not keep any.
+	 * @param columns
+	 *            the number of columns of all rows added.
+	 * @param spillDirectory
+	 *            the directory to create a file in to spill lines exceeding maxLines to, or null to drop those lines.
+	 */
+	CompactTranscript(int maxLines, int columns, File spillDirectory) {
+		if (maxLines < 0) throw new IllegalArgumentException("maxLines < 0");
+		mMaxLines = maxLines;
+		mColumns = columns;
+		mSpillDirectory = (maxLines == 0) ? null : spillDirectory;
+	}
+
+	int getMaxLines() {
+		return mMaxLines;
+	}
+
+	File getSpillDirectory() {
+		return mSpillDirectory;
+	}
+
+	int getColumns() {
+		return mColumns;
+	}
+
+	/** The number of lines stored, including those spilled to disk. */
+	int size() {
+		return mSize;
+	}
+
+	/** Add a copy of a row as the newest line, dropping or spilling the oldest lines if full. */
+	void add(TerminalRow row) {
+		if (mMaxLines == 0) return;
+
+		Chunk chunk = mChunks.isEmpty() ? null : mChunks.get(mChunks.size() - 1);
+		if (chunk == null || chunk.mLines == LINES_PER_CHUNK) {
+			if (chunk != null) chunk.trimToSize();
+			mChunks.add(chunk = new Chunk());
+		}
+
+		final int line = chunk.mLines++;
+		final int spaceUsed = row.getSpaceUsed();
+		final char[] text = row.mText;
+		int trimmedLength = spaceUsed;
+		while (trimmedLength > 0 && text[trimmedLength - 1] == ' ')
+			trimmedLength--;
+		if (chunk.mTextUsed + trimmedLength > chunk.mText.length)
+			chunk.mText = Arrays.copyOf(chunk.mText, Math.max(chunk.mText.length * 2, chunk.mTextUsed + trimmedLength));
+		System.arraycopy(text, 0, chunk.mText, chunk.mTextUsed, trimmedLength);
+		addBigrams(text, 0, trimmedLength, chunk.mBigrams);
+		chunk.mTextUsed += trimmedLength;
+		chunk.mTextEnd[line] = chunk.mTextUsed;
+		chunk.mSpaceUsed[line] = (short) spaceUsed;
+		chunk.mLineWrap[line] = row.mLineWrap;
+
+		final int[] styles = row.mStyle;
+		for (int column = 0; column < mColumns;) {
+			final int style = styles[column];
+			int runEnd = column + 1;
+			while (runEnd < mColumns && styles[runEnd] == style)
+				runEnd++;
+			if (chunk.mRunsUsed == chunk.mRunStyle.length) {
+				chunk.mRunStyle = Arrays.copyOf(chunk.mRunStyle, chunk.mRunsUsed * 2);
+				chunk.mRunEnd = Arrays.copyOf(chunk.mRunEnd, chunk.mRunsUsed * 2);
+			}
+			chunk.mRunStyle[chunk.mRunsUsed] = style;
+			chunk.mRunEnd[chunk.mRunsUsed] = (short) runEnd;
+			chunk.mRunsUsed++;
+			column = runEnd;
+		}
+		chunk.mLineRunEnd[line] = chunk.mRunsUsed;
+		mSize++;
+
+		if (mSpillDirectory != null) {
+			// Spill whole chunks, so that the lines in memory always start at the beginning of the first chunk:
+			if (mSize - mSpilledLines >= mMaxLines + LINES_PER_CHUNK) spillFirstChunk();
+		} else {
+			dropLinesAboveMax();
+		}
+	}
+
+	private void dropLinesAboveMax() {
+		while (mSize > mMaxLines) {
+			mSize--;
+			if (++mFirstLine == LINES_PER_CHUNK) {
+				mChunks.remove(0);
+				mFirstLine = 0;
+			}
+		}
+	}
+
+	private void spillFirstChunk() {
+		try {
+			if (mSpillFile == null) mSpillFile = new TranscriptSpillFile(mSpillDirectory);
+			final Chunk chunk = mChunks.get(0);
+			mSpillFile.append(chunk);
+			final int spilledChunks = mSpilledLines / LINES_PER_CHUNK;
+			if (mSpilledBigrams.length < (spilledChunks + 1) * BIGRAM_FILTER_LONGS)
+				mSpilledBigrams = Arrays.copyOf(mSpilledBigrams, Math.max(16, spilledChunks * 2) * BIGRAM_FILTER_LONGS);
+			System.arraycopy(chunk.mBigrams, 0, mSpilledBigrams, spilledChunks * BIGRAM_FILTER_LONGS, BIGRAM_FILTER_LONGS);
+			mChunks.remove(0);
+			mSpilledLines += LINES_PER_CHUNK;
+		} catch (IOException e) {
+			Log.e(EmulatorDebug.LOG_TAG, "Error spilling transcript, dropping old lines instead", e);
+			close();
+		}
+	}
+
+	/**
+	 * Delete the spilled lines and the file holding them, if any, and drop lines exceeding the maximum from now on.
+	 * Should be called when the transcript is no longer needed.
+	 */
+	void close() {
+		mSpillDirectory = null;
+		if (mSpillFile != null) {
+			mSpillFile.close();
+			mSpillFile = null;
+		}
+		mSize -= mSpilledLines;
+		mSpilledLines = 0;
+		mSpilledBigrams = new long[0];
+		mSpillReadChunk = null;
+		mSpillReadBlock = -1;
+		dropLinesAboveMax();
+	}
+
+	/**
+	 * A copy of this transcript which is not affected by later changes, so that it can be read on another thread. The
+	 * full chunks, which are no longer modified, are shared with the copy and so is the spill file. Nothing should be
+	 * added to the copy, which should be closed when no longer needed.
+	 */
+	CompactTranscript snapshot() {
+		final CompactTranscript copy = new CompactTranscript(mMaxLines, mColumns, null);
+		copy.mChunks.addAll(mChunks);
+		// The newest chunk is still being added to, and is trimmed when the next one is started:
+		final int newest = mChunks.size() - 1;
+		if (newest >= 0) copy.mChunks.set(newest, mChunks.get(newest).copy());
+		copy.mFirstLine = mFirstLine;
+		copy.mSize = mSize;
+		if (mSpillFile != null) copy.mSpillFile = mSpillFile.retain();
+		copy.mSpilledLines = mSpilledLines;
+		copy.mSpilledBigrams = mSpilledBigrams;
+		return copy;
+	}
+
+	/** Fold case for searching, cheaply for ASCII. */
+	static char foldCase(char c) {
+		if (c < 128) return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+		return Character.toLowerCase(c);
+	}
+
+	/** Set the bits of a bigram filter for each pair of adjacent, case folded, chars in a range of text. */
+	static void addBigrams(char[] text, int start, int end, long[] filter) {
+		if (end - start < 2) return;
+		char previous = foldCase(text[start]);
+		for (int i = start + 1; i < end; i++) {
+			final char current = foldCase(text[i]);
+			final int bit = (((previous << 16) | current) * 0x9E3779B9) >>> 20;
+			filter[bit >>> 6] |= 1L << bit;
+			previous = current;
+		}
+	}
+
+	/**
+	 * The index of the first line of the chunk containing the specified line, which is negative if the oldest lines of
+	 * the chunk have been dropped.
+	 */
+	int getChunkStart(int index) {
+		return index - lineInChunk(index);
+	}
+
+	/**
+	 * If the chunk containing the specified line may contain a match of text whose bigrams are in the specified filter.
+	 * False positives are possible, false negatives not.
+	 */
+	boolean mightContain(int index, long[] needleBigrams) {
+		final long[] bigrams;
+		final int offset;
+		if (index < mSpilledLines) {
+			bigrams = mSpilledBigrams;
+			offset = (index / LINES_PER_CHUNK) * BIGRAM_FILTER_LONGS;
+		} else {
+			bigrams = mChunks.get((mFirstLine + index - mSpilledLines) / LINES_PER_CHUNK).mBigrams;
+			offset = 0;
+		}
+		for (int i = 0; i < BIGRAM_FILTER_LONGS; i++)
+			if ((bigrams[offset + i] & needleBigrams[i]) != needleBigrams[i]) return false;
+		return true;
+	}
+
+	/**
+	 * Restore a line into a row.
+	 *
+	 * @param index
+	 *            the line to restore, where 0 is the oldest line.
+	 * @param row
+	 *            the row to overwrite, which must have the same number of columns as this transcript.
+	 * @return the row passed in.
+	 */
+	TerminalRow get(int index, TerminalRow row) {
+		final Chunk chunk = restoreText(index, row);
+		if (chunk == null) return row;
+		final int line = lineInChunk(index);
+		int column = 0;
+		for (int run = (line == 0) ? 0 : chunk.mLineRunEnd[line - 1]; run < chunk.mLineRunEnd[line]; run++) {
+			final int runEnd = chunk.mRunEnd[run];
+			Arrays.fill(row.mStyle, column, runEnd, chunk.mRunStyle[run]);
+			column = runEnd;
+		}
+		return row;
+	}
+
+	/** Restore only the text and line wrap of a line into a row, leaving its styles as they are. */
+	TerminalRow getText(int index, TerminalRow row) {
+		restoreText(index, row);
+		return row;
+	}
+
+	/** Restore the text of a line, returning the chunk holding it or null if it could not be read. */
+	private Chunk restoreText(int index, TerminalRow row) {
+		if (index < 0 || index >= mSize) throw new IllegalArgumentException("index=" + index + ", size=" + mSize);
+		final Chunk chunk;
+		if (index < mSpilledLines) {
+			final int block = index / LINES_PER_CHUNK;
+			if (block != mSpillReadBlock) {
+				if (mSpillReadChunk == null) mSpillReadChunk = new Chunk();
+				mSpillReadBlock = -1;
+				try {
+					mSpillFile.read(block, mSpillReadChunk);
+				} catch (IOException e) {
+					Log.e(EmulatorDebug.LOG_TAG, "Error reading spilled transcript", e);
+					row.clear(TextStyle.NORMAL);
+					return null;
+				}
+				mSpillReadBlock = block;
+			}
+			chunk = mSpillReadChunk;
+		} else {
+			chunk = mChunks.get((mFirstLine + index - mSpilledLines) / LINES_PER_CHUNK);
+		}
+
+		final int line = lineInChunk(index);
+		final int textStart = (line == 0) ? 0 : chunk.mTextEnd[line - 1];
+		row.setText(chunk.mText, textStart, chunk.mTextEnd[line] - textStart, chunk.mSpaceUsed[line]);
+		row.mLineWrap = chunk.mLineWrap[line];
+		return chunk;
+	}
+
+	private int lineInChunk(int index) {
+		return (index < mSpilledLines) ? (index % LINES_PER_CHUNK) : ((mFirstLine + index - mSpilledLines) % LINES_PER_CHUNK);
+	}
+
+}
@@ -1,5 +1,7 @@
 package com.termux.terminal;
 
+import java.nio.ByteBuffer;
+
 /**
  * Native methods for creating and managing pseudoterminal subprocesses. C code is in jni/termux.c.
  */
@@ -40,6 +42,23 @@ final class JNI {
 	 */
 	public static native int waitFor(int processId);
 
+	/**
+	 * Wait for any child process to have exited, without reaping it, see {@link ChildReaper}.
+	 * 
+	 * @return the process id of an exited child process, or -1 if there are no child processes.
+	 */
+	public static native int awaitChildExit();
+
+	/**
+	 * Reap a child process if it has exited, without blocking.
+	 * 
+	 * @param exitStatus
+	 *            An array of size one to which the exit status of the process is written. If >= 0, the exit status of
+	 *            the process. If < 0, the signal causing the process to stop negated.
+	 * @return the process id if reaped, 0 if still running or -1 if not a child process, as when already reaped.
+	 */
+	public static native int pollChildExit(int processId, int[] exitStatus);
+
 	/**
 	 * Send SIGHUP to a process group.
 	 * 
@@ -52,4 +71,50 @@ final class JNI {
 	/** Close a file descriptor through the close(2) system call. */
 	public static native void close(int fileDescriptor);
 
+	/**
+	 * Create an epoll(7) instance for a {@link TerminalIoLoop}, with an eventfd registered in it for waking up
+	 * {@link #waitForIo(int, int, int[])}.
+	 * 
+	 * @param wakeFd
+	 *            A one-element array to which the eventfd will be written.
+	 * @return the epoll file descriptor.
+	 */
+	public static native int createIoLoop(int[] wakeFd);
+
+	/**
+	 * Set the events a file descriptor is watched for by an epoll instance, making it non-blocking.
+	 * 
+	 * @param id
+	 *            The id reported for the file descriptor by {@link #waitForIo(int, int, int[])}.
+	 * @param events
+	 *            {@link TerminalIoLoop#EVENT_READ} and/or {@link TerminalIoLoop#EVENT_WRITE}, or 0 to stop watching.
+	 */
+	public static native void setIoEvents(int epollFd, int fd, int id, int events);
+
+	/**
+	 * Wait until a file descriptor watched by an epoll instance is ready or {@link #wakeIoLoop(int)} is called.
+	 * 
+	 * @param ready
+	 *            An array to which pairs of id and ready events of file descriptors will be written.
+	 * @return the number of pairs written, which is 0 if woken up by {@link #wakeIoLoop(int)}.
+	 */
+	public static native int waitForIo(int epollFd, int wakeFd, int[] ready);
+
+	/** Wake up a thread in {@link #waitForIo(int, int, int[])} from another thread. */
+	public static native void wakeIoLoop(int wakeFd);
+
+	/**
+	 * Read from a file descriptor straight into a region of a direct buffer, blocking unless it is non-blocking.
+	 * 
+	 * @return the number of bytes read, 0 if none available or -1 at end of file or on error.
+	 */
+	public static native int read(int fd, ByteBuffer buffer, int offset, int length);
+
+	/**
+	 * Write a region of a direct buffer to a file descriptor, blocking unless it is non-blocking.
+	 * 
+	 * @return the number of bytes written, which is 0 if it would block, or -1 on error.
+	 */
+	public static native int write(int fd, ByteBuffer buffer, int offset, int length);
+
 }
@@ -0,0 +1,181 @@
+package com.termux.terminal;
+
+import java.util.Arrays;
+
+/**
+ * An index of the logical lines in the history of a {@link TerminalBuffer}, that is of the runs of rows joined by
+ * {@link TerminalRow#mLineWrap}, kept up to date as rows are scrolled into the history so that finding the extent of a
+ * line does not need a scan of its rows.
+ *
+ * Rows are identified by the number of rows added before them, so that adding rows at the bottom and dropping them at
+ * the top leaves the numbers of the other rows unchanged.
+ */
+final class LogicalLineIndex {
+
+	/** The number of the first row of each line. */
+	private long[] mLineFirstRow = new long[64];
+	private int[] mLineRows = new int[64];
+	/** The number of code points of each line, counting trailing spaces only on wrapped rows. */
+	private int[] mLineCodePoints = new int[64];
+	/** The lines in use are those from mFirstLine (inclusive) to mFirstLine+mLineCount (exclusive). */
+	private int mFirstLine, mLineCount;
+	/** The number of the next row to be added. */
+	private long mNextRow;
+	/** If the newest row wraps into the row added next. */
+	private boolean mLastRowWrapped;
+
+	/** The number of code points in a row, counting trailing spaces only if it wraps. */
+	static int codePointsOf(TerminalRow row) {
+		final char[] text = row.mText;
+		int end = row.getSpaceUsed();
+		if (!row.mLineWrap)
+			while (end > 0 && text[end - 1] == ' ')
+				end--;
+		int codePoints = end;
+		for (int i = 0; i < end; i++)
+			if (Character.isLowSurrogate(text[i])) codePoints--;
+		return codePoints;
+	}
+
+	void clear() {
+		mFirstLine = mLineCount = 0;
+		mNextRow = 0;
+		mLastRowWrapped = false;
+	}
+
+	/** The number the next row added will get, which is also the number of rows added minus those removed. */
+	long getNextRow() {
+		return mNextRow;
+	}
+
+	/** Add a row as the newest one, continuing the last line if its newest row wraps. */
+	void addRow(TerminalRow row) {
+		final int lastLine = mFirstLine + mLineCount - 1;
+		final boolean continuesLine = mLineCount > 0 && mLineFirstRow[lastLine] + mLineRows[lastLine] == mNextRow && mLastRowWrapped;
+		if (continuesLine) {
+			mLineRows[lastLine]++;
+			mLineCodePoints[lastLine] += codePointsOf(row);
+		} else {
+			final int line = allocateLine();
+			mLineFirstRow[line] = mNextRow;
+			mLineRows[line] = 1;
+			mLineCodePoints[line] = codePointsOf(row);
+		}
+		mLastRowWrapped = row.mLineWrap;
+		mNextRow++;
+	}
+
+	/**
+	 * Remove the newest row, such as when it is moved back from the history to the screen.
+	 *
+	 * @param row
+	 *            the row being removed, whose contents must not have changed since it was added.
+	 * @param previousRowWrapped
+	 *            if the row before it wraps into it.
+	 */
+	void removeNewestRow(TerminalRow row, boolean previousRowWrapped) {
+		mNextRow--;
+		mLastRowWrapped = previousRowWrapped;
+		if (mLineCount == 0) return;
+		final int lastLine = mFirstLine + mLineCount - 1;
+		if (--mLineRows[lastLine] == 0) {
+			mLineCount--;
+		} else {
+			mLineCodePoints[lastLine] -= codePointsOf(row);
+		}
+	}
+
+	/** Forget lines which end before the specified row, which are no longer kept in the history. */
+	void dropRowsBefore(long row) {
+		while (mLineCount > 0 && mLineFirstRow[mFirstLine] + mLineRows[mFirstLine] <= row) {
+			mFirstLine++;
+			mLineCount--;
+		}
+		if (mLineCount == 0) mFirstLine = 0;
+	}
+
+	/**
+	 * Place the lines of another index, whose rows are older than those of this one, before the lines of this index.
+	 * Rows of the older index are renumbered so that its newest row immediately precedes the row numbered firstRow.
+	 */
+	void prepend(LogicalLineIndex older, long firstRow) {
+		final int olderLines = older.mLineCount;
+		if (olderLines == 0) return;
+		final long offset = firstRow - older.mNextRow;
+		final int capacity = Integer.highestOneBit(olderLines + mLineCount) * 2;
+		final long[] lineFirstRow = new long[capacity];
+		final int[] lineRows = new int[capacity];
+		final int[] lineCodePoints = new int[capacity];
+		for (int i = 0; i < olderLines; i++) {
+			lineFirstRow[i] = older.mLineFirstRow[older.mFirstLine + i] + offset;
+			lineRows[i] = older.mLineRows[older.mFirstLine + i];
+			lineCodePoints[i] = older.mLineCodePoints[older.mFirstLine + i];
+		}
+		System.arraycopy(mLineFirstRow, mFirstLine, lineFirstRow, olderLines, mLineCount);
+		System.arraycopy(mLineRows, mFirstLine, lineRows, olderLines, mLineCount);
+		System.arraycopy(mLineCodePoints, mFirstLine, lineCodePoints, olderLines, mLineCount);
+		int lineCount = olderLines + mLineCount;
+		if (older.mLastRowWrapped && mLineCount > 0 && mLineFirstRow[mFirstLine] == firstRow) {
+			// The newest row of the older index wraps into the first line of this one:
+			lineRows[olderLines - 1] += lineRows[olderLines];
+			lineCodePoints[olderLines - 1] += lineCodePoints[olderLines];
+			System.arraycopy(lineFirstRow, olderLines + 1, lineFirstRow, olderLines, mLineCount - 1);
+			System.arraycopy(lineRows, olderLines + 1, lineRows, olderLines, mLineCount - 1);
+			System.arraycopy(lineCodePoints, olderLines + 1, lineCodePoints, olderLines, mLineCount - 1);
+			lineCount--;
+		}
+		mLineFirstRow = lineFirstRow;
+		mLineRows = lineRows;
+		mLineCodePoints = lineCodePoints;
+		mFirstLine = 0;
+		mLineCount = lineCount;
+	}
+
+	/** The line containing the specified row, or -1 if the row is not in any indexed line. */
+	int findLine(long row) {
+		int low = mFirstLine, high = mFirstLine + mLineCount - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			if (mLineFirstRow[middle] > row) {
+				high = middle - 1;
+			} else if (mLineFirstRow[middle] + mLineRows[middle] <= row) {
+				low = middle + 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/** The number of the first row of a line, which may have been dropped from the history. */
+	long getLineFirstRow(int line) {
+		return mLineFirstRow[line];
+	}
+
+	int getLineRows(int line) {
+		return mLineRows[line];
+	}
+
+	/** The number of code points of a line, including those of rows which may have been dropped from the history. */
+	int getLineCodePoints(int line) {
+		return mLineCodePoints[line];
+	}
+
+	private int allocateLine() {
+		if (mFirstLine + mLineCount == mLineFirstRow.length) {
+			if (mFirstLine > mLineFirstRow.length / 2) {
+				System.arraycopy(mLineFirstRow, mFirstLine, mLineFirstRow, 0, mLineCount);
+				System.arraycopy(mLineRows, mFirstLine, mLineRows, 0, mLineCount);
+				System.arraycopy(mLineCodePoints, mFirstLine, mLineCodePoints, 0, mLineCount);
+				mFirstLine = 0;
+			} else {
+				final int newCapacity = mLineFirstRow.length * 2;
+				mLineFirstRow = Arrays.copyOf(mLineFirstRow, newCapacity);
+				mLineRows = Arrays.copyOf(mLineRows, newCapacity);
+				mLineCodePoints = Arrays.copyOf(mLineCodePoints, newCapacity);
+			}
+		}
+		return mFirstLine + mLineCount++;
+	}
+
+}
@@ -1,10 +1,25 @@
 package com.termux.terminal;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * A circular buffer of {@link TerminalRow}:s which keeps notes about what is visible on a logical screen and the scroll
  * history.
  * 
  * See {@link #externalToInternalRow(int)} for how to map from logical screen rows to array indices.
+ * 
+ * History lines pushed out of the circular buffer are moved into a {@link CompactTranscript}, if created with room for
+ * one, and are available through {@link #getRow(int)} as rows above those in the circular buffer.
+ * 
+ * Rows joined by {@link TerminalRow#mLineWrap} form logical lines, which are indexed for the history as rows scroll
+ * into it, see {@link #getLogicalLineStart(int)}.
  */
 public final class TerminalBuffer {
 
@@ -13,10 +28,45 @@ public final class TerminalBuffer {
 	int mTotalRows;
 	/** The number of rows and columns visible on the screen. */
 	int mScreenRows, mColumns;
-	/** The number of rows kept in history. */
+	/** The widths of code points in {@link #mLines}. */
+	final WcWidth mWcWidth;
+	/** The number of rows kept in history in {@link #mLines}. */
 	private int mActiveTranscriptRows = 0;
+	/** Older history lines which have been pushed out of {@link #mLines}. */
+	private CompactTranscript mCompactTranscript;
+	/** Row which lines of {@link #mCompactTranscript} are restored into by {@link #getRow(int)}. */
+	private TerminalRow mCompactRow;
+	/** Row which lines of {@link #mCompactTranscript} are restored into when searching. */
+	private TerminalRow mSearchRow;
+	/**
+	 * History lines still in the number of columns from before a resize, oldest first, which
+	 * {@link #reflowPendingHistory(int)} reflows into {@link #mReflowedHistory} before they become visible above
+	 * {@link #mCompactTranscript}. Another resize before they have been reflowed adds the history since the previous
+	 * one, in its number of columns, and restarts the reflow. Empty if none.
+	 */
+	private final ArrayList<CompactTranscript> mPendingReflow = new ArrayList<>();
+	/** The transcript of {@link #mPendingReflow} and its line to reflow next. */
+	private int mPendingReflowSource, mPendingReflowNext;
+	private CompactTranscript mReflowedHistory;
+	/** The row lines of {@link #mPendingReflow} are restored into, and the row being filled with reflowed text. */
+	private TerminalRow mReflowSourceRow, mReflowRow;
+	/** The next column to output to in {@link #mReflowRow}. */
+	private int mReflowColumn;
+	/** The logical lines of {@link #mReflowedHistory}, placed before those of {@link #mLineIndex} when done. */
+	private LogicalLineIndex mReflowedLineIndex;
+	/** The logical lines of the history, see {@link #getLogicalLineStart(int)}. */
+	private final LogicalLineIndex mLineIndex = new LogicalLineIndex();
 	/** The index in the circular buffer where the visible screen starts. */
 	private int mScreenFirstRow = 0;
+	/**
+	 * Which screen rows have changed since the last call to {@link #clearDirtyRows()}, indexed by external row. When the
+	 * whole screen scrolls the flags are shifted along with the content, see {@link #getScrolledRowsSinceClear()}.
+	 */
+	private boolean[] mDirtyRows;
+	/** If every screen row should be considered changed, such as after a resize. */
+	private boolean mAllRowsDirty = true;
+	/** The number of times the whole screen has scrolled up one line since the last call to {@link #clearDirtyRows()}. */
+	private int mScrolledRowsSinceClear;
 
 	/**
 	 * Create a transcript screen.
@@ -30,20 +80,92 @@ public final class TerminalBuffer {
 	 *            the top of the screen.
 	 */
 	public TerminalBuffer(int columns, int totalRows, int screenRows) {
+		this(columns, totalRows, screenRows, 0, null, WcWidth.DEFAULT);
+	}
+
+	/**
+	 * Create a transcript screen which keeps additional history in a {@link CompactTranscript}.
+	 * 
+	 * @param compactTranscriptRows
+	 *            the number of history lines to keep in compact form when they are pushed out of the totalRows kept as
+	 *            {@link TerminalRow}:s.
+	 * @param spillDirectory
+	 *            directory to spill history lines exceeding compactTranscriptRows to a file in, or null to drop them.
+	 * @param wcWidth
+	 *            the widths of code points in the rows of the screen.
+	 */
+	public TerminalBuffer(int columns, int totalRows, int screenRows, int compactTranscriptRows, File spillDirectory, WcWidth wcWidth) {
+		mWcWidth = wcWidth;
+		mCompactTranscript = new CompactTranscript(compactTranscriptRows, columns, spillDirectory);
 		mColumns = columns;
 		mTotalRows = totalRows;
 		mScreenRows = screenRows;
 		mLines = new TerminalRow[totalRows];
+		mDirtyRows = new boolean[screenRows];
 
 		blockSet(0, 0, columns, screenRows, ' ', TextStyle.NORMAL);
 	}
 
 	public String getTranscriptText() {
-		return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows).trim();
+		final StringBuilder builder = new StringBuilder();
+		try {
+			writeTranscriptText(builder);
+		} catch (IOException e) {
+			// A StringBuilder does not throw.
+			throw new AssertionError(e);
+		}
+		return builder.toString();
 	}
 
 	public String getSelectedText(int selX1, int selY1, int selX2, int selY2) {
+		return getSelectedText(selX1, selY1, selX2, selY2, false);
+	}
+
+	/** Get the text of a selection, trimmed of surrounding whitespace without copying it once more if trim is set. */
+	public String getSelectedText(int selX1, int selY1, int selX2, int selY2, boolean trim) {
 		final StringBuilder builder = new StringBuilder();
+		appendSelectedText(selX1, selY1, selX2, selY2, trim, builder);
+		return builder.toString();
+	}
+
+	/**
+	 * Write the whole transcript, with surrounding whitespace trimmed as by {@link #getTranscriptText()}. History left
+	 * to reflow after a resize is included without reflowing it, as its text does not depend on the number of columns.
+	 */
+	public void writeTranscriptText(Appendable out) throws IOException {
+		final TextSink sink = new TextSink(out, true);
+		for (CompactTranscript source : mPendingReflow) {
+			final TerminalRow row = new TerminalRow(source.getColumns(), TextStyle.NORMAL, mWcWidth);
+			for (int line = 0; line < source.size(); line++) {
+				source.getText(line, row);
+				writeRowText(row, 0, row.getSpaceUsed(), row.mLineWrap, sink);
+				if (!row.mLineWrap) sink.write('\n');
+			}
+		}
+		writeSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows, sink);
+	}
+
+	/** Write the whole transcript encoded as UTF-8 to a channel, which is left open. */
+	public void writeTranscriptText(WritableByteChannel channel) throws IOException {
+		final Writer writer = Channels.newWriter(channel, "UTF-8");
+		writeTranscriptText(writer);
+		writer.flush();
+	}
+
+	/**
+	 * Write the text of a selection a row at a time, without building it up in memory first.
+	 *
+	 * @param trim
+	 *            if leading and trailing whitespace of the whole text should be left out, as by {@link String#trim()}.
+	 * @param out
+	 *            where to write the text, preferably a {@link Writer} or {@link StringBuilder} which rows can be written
+	 *            to without copying.
+	 */
+	public void writeSelectedText(int selX1, int selY1, int selX2, int selY2, boolean trim, Appendable out) throws IOException {
+		writeSelectedText(selX1, selY1, selX2, selY2, new TextSink(out, trim));
+	}
+
+	private void writeSelectedText(int selX1, int selY1, int selX2, int selY2, TextSink sink) throws IOException {
 		final int columns = mColumns;
 
 		if (selY1 < -getActiveTranscriptRows()) selY1 = -getActiveTranscriptRows();
@@ -58,34 +180,299 @@ public final class TerminalBuffer {
 			} else {
 				x2 = columns;
 			}
-			TerminalRow lineObject = mLines[externalToInternalRow(row)];
+			TerminalRow lineObject = getRow(row);
 			int x1Index = lineObject.findStartOfColumn(x1);
 			int x2Index = (x2 < mColumns) ? lineObject.findStartOfColumn(x2) : lineObject.getSpaceUsed();
-			char[] line = lineObject.mText;
-			int lastPrintingCharIndex = -1;
-			int i;
-			boolean rowLineWrap = getLineWrap(row);
-			if (rowLineWrap && x2 == columns) {
-				// If the line was wrapped, we shouldn't lose trailing space:
-				lastPrintingCharIndex = x2Index - 1;
+			boolean rowLineWrap = lineObject.mLineWrap;
+			writeRowText(lineObject, x1Index, x2Index, rowLineWrap && x2 == columns, sink);
+			if (!rowLineWrap && row < selY2 && row < mScreenRows - 1) sink.write('\n');
+		}
+	}
+
+	/**
+	 * Write the text of a row between two char indices.
+	 *
+	 * @param keepTrailingSpace
+	 *            if trailing space should be kept, as it should at the end of a wrapped row.
+	 */
+	static void writeRowText(TerminalRow row, int startIndex, int endIndex, boolean keepTrailingSpace, TextSink sink) throws IOException {
+		final char[] line = row.mText;
+		int lastPrintingCharIndex = -1;
+		if (keepTrailingSpace) {
+			lastPrintingCharIndex = endIndex - 1;
+		} else {
+			for (int i = startIndex; i < endIndex; ++i) {
+				char c = line[i];
+				if (c != ' ' && !Character.isLowSurrogate(c)) lastPrintingCharIndex = i;
+			}
+		}
+		if (lastPrintingCharIndex != -1) sink.write(line, startIndex, lastPrintingCharIndex - startIndex + 1);
+	}
+
+	/**
+	 * Copy the whole transcript, so that it can be written out on another thread without holding the lock on the
+	 * emulator while the terminal keeps changing. The compact history is shared with the copy instead of copied, so
+	 * only the rows of the circular buffer take up more memory.
+	 */
+	public TranscriptSnapshot snapshotTranscript() {
+		final CompactTranscript[] tiers = new CompactTranscript[mPendingReflow.size() + 2];
+		for (int i = 0; i < mPendingReflow.size(); i++)
+			tiers[i] = mPendingReflow.get(i).snapshot();
+		tiers[tiers.length - 2] = mCompactTranscript.snapshot();
+		final CompactTranscript rows = new CompactTranscript(mActiveTranscriptRows + mScreenRows, mColumns, null);
+		for (int row = -mActiveTranscriptRows; row < mScreenRows; row++)
+			rows.add(getRow(row));
+		tiers[tiers.length - 1] = rows;
+		return new TranscriptSnapshot(tiers, mWcWidth);
+	}
+
+	/** Variant of {@link #writeSelectedText(int, int, int, int, boolean, Appendable)} for a StringBuilder. */
+	private void appendSelectedText(int selX1, int selY1, int selX2, int selY2, boolean trim, StringBuilder builder) {
+		try {
+			writeSelectedText(selX1, selY1, selX2, selY2, trim, builder);
+		} catch (IOException e) {
+			// A StringBuilder does not throw.
+			throw new AssertionError(e);
+		}
+	}
+
+	/** Writes text to an {@link Appendable}, optionally holding back whitespace to trim it from both ends. */
+	static final class TextSink {
+		private final Appendable mOut;
+		private final boolean mTrim;
+		private boolean mStarted;
+		/** Whitespace held back since the last non-whitespace written, only written if more text follows. */
+		private final StringBuilder mPendingWhitespace = new StringBuilder();
+
+		TextSink(Appendable out, boolean trim) {
+			mOut = out;
+			mTrim = trim;
+		}
+
+		void write(char c) throws IOException {
+			if (!mTrim) {
+				mOut.append(c);
+			} else if (c <= ' ') {
+				if (mStarted) mPendingWhitespace.append(c);
 			} else {
-				for (i = x1Index; i < x2Index; ++i) {
-					char c = line[i];
-					if (c != ' ' && !Character.isLowSurrogate(c)) lastPrintingCharIndex = i;
+				flushPendingWhitespace();
+				mOut.append(c);
+			}
+		}
+
+		void write(char[] text, int start, int length) throws IOException {
+			int end = start + length;
+			if (mTrim) {
+				int firstNonWhitespace = start;
+				while (firstNonWhitespace < end && text[firstNonWhitespace] <= ' ')
+					firstNonWhitespace++;
+				if (firstNonWhitespace == end) {
+					if (mStarted) mPendingWhitespace.append(text, start, length);
+					return;
 				}
+				if (mStarted) {
+					flushPendingWhitespace();
+				} else {
+					start = firstNonWhitespace;
+				}
+				mStarted = true;
+				final int textEnd = end;
+				while (text[end - 1] <= ' ')
+					end--;
+				writeDirect(text, start, end - start);
+				mPendingWhitespace.append(text, end, textEnd - end);
+			} else {
+				writeDirect(text, start, length);
+			}
+		}
+
+		private void flushPendingWhitespace() throws IOException {
+			mStarted = true;
+			if (mPendingWhitespace.length() == 0) return;
+			mOut.append(mPendingWhitespace);
+			mPendingWhitespace.setLength(0);
+		}
+
+		private void writeDirect(char[] text, int start, int length) throws IOException {
+			if (mOut instanceof StringBuilder) {
+				((StringBuilder) mOut).append(text, start, length);
+			} else if (mOut instanceof Writer) {
+				((Writer) mOut).write(text, start, length);
+			} else {
+				mOut.append(CharBuffer.wrap(text, start, length));
 			}
-			if (lastPrintingCharIndex != -1) builder.append(line, x1Index, lastPrintingCharIndex - x1Index + 1);
-			if (!rowLineWrap && row < selY2 && row < mScreenRows - 1) builder.append('\n');
 		}
-		return builder.toString();
 	}
 
+	/** The number of history rows, including those in compact form. */
 	public int getActiveTranscriptRows() {
-		return mActiveTranscriptRows;
+		return mActiveTranscriptRows + mCompactTranscript.size();
 	}
 
 	public int getActiveRows() {
-		return mActiveTranscriptRows + mScreenRows;
+		return getActiveTranscriptRows() + mScreenRows;
+	}
+
+	/**
+	 * Get a row from the screen or the history, allocating it if necessary.
+	 * 
+	 * Rows older than those kept in the circular buffer are restored into a single shared row object, so the returned
+	 * row should not be modified and is only valid until the next call of this method.
+	 * 
+	 * @param externalRow
+	 *            a row in the external coordinate system, from -{@link #getActiveTranscriptRows()} to mScreenRows-1.
+	 */
+	public TerminalRow getRow(int externalRow) {
+		if (externalRow >= -mActiveTranscriptRows) return allocateFullLineIfNecessary(externalToInternalRow(externalRow));
+		final int compactIndex = mCompactTranscript.size() + mActiveTranscriptRows + externalRow;
+		if (compactIndex < 0) throw new IllegalArgumentException("extRow=" + externalRow + ", transcriptRows=" + getActiveTranscriptRows());
+		if (mCompactRow == null) mCompactRow = new TerminalRow(mColumns, 0, mWcWidth);
+		return mCompactTranscript.get(compactIndex, mCompactRow);
+	}
+
+	/** Callback for {@link #findAll(String, boolean, SearchCallback)}. */
+	public interface SearchCallback {
+		/**
+		 * Called for each match, with the end column being exclusive.
+		 *
+		 * @return false to stop the search.
+		 */
+		boolean onMatch(int row, int startColumn, int endColumn);
+	}
+
+	/**
+	 * Find the next or previous occurrence of text in the screen and history, without looking into history chunks which
+	 * their index of character pairs rules out. Matches do not span wrapped lines.
+	 *
+	 * History left to reflow after a resize, which is above the first row, is searched without reflowing it. It is only
+	 * reflowed if it holds a match, for the match to have a row.
+	 *
+	 * @param match
+	 *            on input the row and column to search from, with the search starting after (or before, if searching
+	 *            backwards) the character at that column. A row above the history or a negative column starts a forward
+	 *            search at the beginning of the row, while a row or column past the end starts a backward search at the
+	 *            end. On output, if found, the row, start column and exclusive end column of the match.
+	 * @return if a match was found.
+	 */
+	public boolean find(String text, boolean ignoreCase, boolean forward, int[] match) {
+		if (text.isEmpty()) return false;
+		final char[] needle = text.toCharArray();
+		if (ignoreCase) for (int i = 0; i < needle.length; i++)
+			needle[i] = CompactTranscript.foldCase(needle[i]);
+		final long[] needleBigrams = new long[CompactTranscript.BIGRAM_FILTER_LONGS];
+		CompactTranscript.addBigrams(needle, 0, needle.length, needleBigrams);
+
+		int firstRow = -getActiveTranscriptRows();
+		int row = match[0];
+		int fromIndex;
+		if (row < firstRow) {
+			if (!forward) return false;
+			if (pendingReflowContains(needle, needleBigrams, ignoreCase)) {
+				reflowPendingHistory(Integer.MAX_VALUE);
+				firstRow = -getActiveTranscriptRows();
+			}
+			row = firstRow;
+			fromIndex = 0;
+		} else if (row >= mScreenRows) {
+			if (forward) return false;
+			row = mScreenRows - 1;
+			fromIndex = Integer.MAX_VALUE;
+		} else if (match[1] < 0) {
+			fromIndex = forward ? 0 : -1;
+		} else if (match[1] >= mColumns) {
+			fromIndex = forward ? Integer.MAX_VALUE : Integer.MAX_VALUE - 1;
+		} else {
+			fromIndex = getRow(row).findStartOfColumn(match[1]) + (forward ? 1 : -1);
+		}
+
+		if (mSearchRow == null) mSearchRow = new TerminalRow(mColumns, 0, mWcWidth);
+		while (true) {
+			final boolean found = findInRows(needle, needleBigrams, ignoreCase, forward, row, fromIndex, firstRow, match);
+			// A backward search continues into the history left to reflow if it holds a match:
+			if (found || forward || !pendingReflowContains(needle, needleBigrams, ignoreCase)) return found;
+			reflowPendingHistory(Integer.MAX_VALUE);
+			row = firstRow - 1;
+			firstRow = -getActiveTranscriptRows();
+			fromIndex = Integer.MAX_VALUE;
+		}
+	}
+
+	/** Search the rows from a row on, as for {@link #find}. */
+	private boolean findInRows(char[] needle, long[] needleBigrams, boolean ignoreCase, boolean forward, int row, int fromIndex,
+			int firstRow, int[] match) {
+		while (row >= firstRow && row < mScreenRows) {
+			final TerminalRow searchRow;
+			if (row < -mActiveTranscriptRows) {
+				final int compactIndex = row - firstRow;
+				if (!mCompactTranscript.mightContain(compactIndex, needleBigrams)) {
+					final int chunkStart = mCompactTranscript.getChunkStart(compactIndex);
+					row = firstRow + (forward ? Math.min(chunkStart + CompactTranscript.LINES_PER_CHUNK, mCompactTranscript.size()) : chunkStart - 1);
+					fromIndex = forward ? 0 : Integer.MAX_VALUE;
+					continue;
+				}
+				searchRow = mCompactTranscript.getText(compactIndex, mSearchRow);
+			} else {
+				searchRow = allocateFullLineIfNecessary(externalToInternalRow(row));
+			}
+
+			final int index = indexOf(searchRow.mText, searchRow.getSpaceUsed(), needle, ignoreCase, forward, fromIndex);
+			if (index >= 0) {
+				match[0] = row;
+				match[1] = searchRow.findColumnOfCharIndex(index);
+				match[2] = searchRow.findColumnOfCharIndex(index + needle.length);
+				return true;
+			}
+			row += forward ? 1 : -1;
+			fromIndex = forward ? 0 : Integer.MAX_VALUE;
+		}
+		return false;
+	}
+
+	/**
+	 * If the history left to reflow contains text, as searched for by {@link #find} but without reflowing it. A match
+	 * which only spans rows in the old number of columns is missed, like one spanning rows after reflowing.
+	 */
+	private boolean pendingReflowContains(char[] needle, long[] needleBigrams, boolean ignoreCase) {
+		for (CompactTranscript source : mPendingReflow) {
+			final TerminalRow row = new TerminalRow(source.getColumns(), TextStyle.NORMAL, mWcWidth);
+			for (int line = 0; line < source.size(); line++) {
+				if (!source.mightContain(line, needleBigrams)) {
+					line = source.getChunkStart(line) + CompactTranscript.LINES_PER_CHUNK - 1;
+					continue;
+				}
+				source.getText(line, row);
+				if (indexOf(row.mText, row.getSpaceUsed(), needle, ignoreCase, true, 0) >= 0) return true;
+			}
+		}
+		return false;
+	}
+
+	/** Report all occurrences of text in the screen and history, from the oldest row, as for {@link #find}. */
+	public void findAll(String text, boolean ignoreCase, SearchCallback callback) {
+		final int[] match = { Integer.MIN_VALUE, 0, 0 };
+		while (find(text, ignoreCase, true, match))
+			if (!callback.onMatch(match[0], match[1], match[2])) return;
+	}
+
+	/** The index in text of the first occurrence of needle at or after, or the last at or before, fromIndex. */
+	private static int indexOf(char[] text, int textLength, char[] needle, boolean ignoreCase, boolean forward, int fromIndex) {
+		final int lastStart = textLength - needle.length;
+		if (forward) {
+			for (int i = fromIndex; i <= lastStart; i++)
+				if (regionMatches(text, i, needle, ignoreCase)) return i;
+		} else {
+			for (int i = Math.min(fromIndex, lastStart); i >= 0; i--)
+				if (regionMatches(text, i, needle, ignoreCase)) return i;
+		}
+		return -1;
+	}
+
+	private static boolean regionMatches(char[] text, int offset, char[] needle, boolean ignoreCase) {
+		for (int i = 0; i < needle.length; i++) {
+			final char c = text[offset + i];
+			if ((ignoreCase ? CompactTranscript.foldCase(c) : c) != needle[i]) return false;
+		}
+		return true;
 	}
 
 	/**
@@ -119,12 +506,60 @@ public final class TerminalBuffer {
 		return (internalRow < 0) ? (mTotalRows + internalRow) : (internalRow % mTotalRows);
 	}
 
-	public void setLineWrap(int row) {
-		mLines[externalToInternalRow(row)].mLineWrap = true;
+	/**
+	 * The first row of the logical line containing a row, which is the row itself unless the row above wraps into it.
+	 * Rows of the line which have been dropped from the history are not included.
+	 */
+	public int getLogicalLineStart(int row) {
+		while (row > 0 && getRow(row - 1).mLineWrap)
+			row--;
+		if (row > 0 || getActiveTranscriptRows() == 0) return row;
+		if (row == 0) {
+			if (!getRow(-1).mLineWrap) return 0;
+			row = -1;
+		}
+		final long firstRow = mLineIndex.getLineFirstRow(findLogicalLine(row)) - mLineIndex.getNextRow();
+		return (int) Math.max(firstRow, -getActiveTranscriptRows());
 	}
 
-	private boolean getLineWrap(int row) {
-		return mLines[externalToInternalRow(row)].mLineWrap;
+	/** The last row of the logical line containing a row, which is the row itself unless it wraps. */
+	public int getLogicalLineEnd(int row) {
+		if (row < 0) {
+			final int line = findLogicalLine(row);
+			row = (int) (mLineIndex.getLineFirstRow(line) + mLineIndex.getLineRows(line) - 1 - mLineIndex.getNextRow());
+			if (row < -1 || !getRow(-1).mLineWrap) return row;
+			row = 0;
+		}
+		while (row < mScreenRows - 1 && getRow(row).mLineWrap)
+			row++;
+		return row;
+	}
+
+	/**
+	 * The number of code points in the logical line containing a row, as in its text from {@link #getSelectedText},
+	 * including any part of it which has been dropped from the history.
+	 */
+	public int getLogicalLineCodePoints(int row) {
+		final int endRow = getLogicalLineEnd(row);
+		int screenRow = getLogicalLineStart(row);
+		int codePoints = 0;
+		if (screenRow < 0) {
+			codePoints = mLineIndex.getLineCodePoints(findLogicalLine(screenRow));
+			screenRow = 0;
+		}
+		for (; screenRow <= endRow; screenRow++)
+			codePoints += LogicalLineIndex.codePointsOf(getRow(screenRow));
+		return codePoints;
+	}
+
+	private int findLogicalLine(int historyRow) {
+		final int line = mLineIndex.findLine(mLineIndex.getNextRow() + historyRow);
+		if (line < 0) throw new IllegalArgumentException("row=" + historyRow + ", transcriptRows=" + getActiveTranscriptRows());
+		return line;
+	}
+
+	public void setLineWrap(int row) {
+		mLines[externalToInternalRow(row)].mLineWrap = true;
 	}
 
 	/**
@@ -137,8 +572,13 @@ public final class TerminalBuffer {
 	 *            The number of rows the screen should have.
 	 * @param cursor
 	 *            An int[2] containing the (column, row) cursor location.
+	 *
+	 * When the number of columns changes only the rows in the circular buffer are reflowed directly, while older
+	 * history is left for {@link #reflowPendingHistory(int)}.
 	 */
 	public void resize(int newColumns, int newRows, int newTotalRows, int[] cursor, int currentStyle, boolean altScreen) {
+		if (newRows != mDirtyRows.length) mDirtyRows = new boolean[newRows];
+		mAllRowsDirty = true;
 		// newRows > mTotalRows should not normally happen since mTotalRows is TRANSCRIPT_ROWS (10000):
 		if (newColumns == mColumns && newRows <= mTotalRows) {
 			// Fast resize where just the rows changed.
@@ -162,18 +602,51 @@ public final class TerminalBuffer {
 					shiftDownOfTopRow = actualShift;
 				}
 			}
+			// Rows moving from the history back to the screen leave the line index, newest first:
+			for (int row = -1; row >= shiftDownOfTopRow; row--)
+				mLineIndex.removeNewestRow(getRow(row), row > -getActiveTranscriptRows() && getRow(row - 1).mLineWrap);
 			mScreenFirstRow += shiftDownOfTopRow;
 			mScreenFirstRow = (mScreenFirstRow < 0) ? (mScreenFirstRow + mTotalRows) : (mScreenFirstRow % mTotalRows);
 			mTotalRows = newTotalRows;
 			mActiveTranscriptRows = altScreen ? 0 : Math.max(0, mActiveTranscriptRows + shiftDownOfTopRow);
+			if (!altScreen)
+				for (int row = -shiftDownOfTopRow; row < 0; row++)
+					mLineIndex.addRow(getRow(row));
 			cursor[1] -= shiftDownOfTopRow;
 			mScreenRows = newRows;
 		} else {
 			// Copy away old state and update new:
 			TerminalRow[] oldLines = mLines;
+			final CompactTranscript oldCompactTranscript = mCompactTranscript;
+			int oldCompactRows = oldCompactTranscript.size();
+			final TerminalRow oldCompactRow = (oldCompactRows == 0) ? null : new TerminalRow(mColumns, 0, mWcWidth);
+
+			// Reflow the rows in the circular buffer now, starting at a line which does not continue a wrapped one. The
+			// lines before that are left to reflow later after any left by an earlier resize, unless the whole buffer
+			// continues a wrapped line:
+			int reflowStartRow = -mActiveTranscriptRows;
+			boolean oldCompactPending = false;
+			if (oldCompactRows > 0) {
+				if (getLogicalLineStart(reflowStartRow) < reflowStartRow) reflowStartRow = getLogicalLineEnd(reflowStartRow) + 1;
+				if (reflowStartRow > 0) {
+					reflowStartRow = -mActiveTranscriptRows - oldCompactRows;
+				} else {
+					for (int row = -mActiveTranscriptRows; row < reflowStartRow; row++)
+						oldCompactTranscript.add(mLines[externalToInternalRow(row)]);
+					mPendingReflow.add(oldCompactTranscript);
+					oldCompactPending = true;
+					oldCompactRows = 0;
+				}
+			}
+			// The reflowed rows are indexed anew as they scroll into the history:
+			mLineIndex.clear();
+
+			mCompactTranscript = new CompactTranscript(oldCompactTranscript.getMaxLines(), newColumns, oldCompactTranscript.getSpillDirectory());
+			mCompactRow = null;
+			mSearchRow = null;
 			mLines = new TerminalRow[newTotalRows];
 			for (int i = 0; i < newTotalRows; i++)
-				mLines[i] = new TerminalRow(newColumns, currentStyle);
+				mLines[i] = new TerminalRow(newColumns, currentStyle, mWcWidth);
 
 			final int oldActiveTranscriptRows = mActiveTranscriptRows;
 			final int oldScreenFirstRow = mScreenFirstRow;
@@ -197,12 +670,16 @@ public final class TerminalBuffer {
 			// Blank lines should be skipped only if at end of transcript (just as is done in the "fast" resize), so we
 			// keep track how many blank lines we have skipped if we later on find a non-blank line.
 			int skippedBlankLines = 0;
-			for (int externalOldRow = -oldActiveTranscriptRows; externalOldRow < oldScreenRows; externalOldRow++) {
-				// Do what externalToInternalRow() does but for the old state:
-				int internalOldRow = oldScreenFirstRow + externalOldRow;
-				internalOldRow = (internalOldRow < 0) ? (oldTotalRows + internalOldRow) : (internalOldRow % oldTotalRows);
-
-				TerminalRow oldLine = oldLines[internalOldRow];
+			for (int externalOldRow = reflowStartRow; externalOldRow < oldScreenRows; externalOldRow++) {
+				TerminalRow oldLine;
+				if (externalOldRow < -oldActiveTranscriptRows) {
+					oldLine = oldCompactTranscript.get(oldCompactRows + oldActiveTranscriptRows + externalOldRow, oldCompactRow);
+				} else {
+					// Do what externalToInternalRow() does but for the old state:
+					int internalOldRow = oldScreenFirstRow + externalOldRow;
+					internalOldRow = (internalOldRow < 0) ? (oldTotalRows + internalOldRow) : (internalOldRow % oldTotalRows);
+					oldLine = oldLines[internalOldRow];
+				}
 				boolean cursorAtThisRow = externalOldRow == oldCursorRow;
 				// The cursor may only be on a non-null line, which we should not skip:
 				if (oldLine == null || (!(!newCursorPlaced && cursorAtThisRow)) && oldLine.isBlank()) {
@@ -239,7 +716,7 @@ public final class TerminalBuffer {
 					// Note that looping over java character, not cells.
 					char c = oldLine.mText[i];
 					int codePoint = (Character.isHighSurrogate(c)) ? Character.toCodePoint(c, oldLine.mText[++i]) : c;
-					int displayWidth = WcWidth.width(codePoint);
+					int displayWidth = mWcWidth.widthOf(codePoint);
 					// Use the last style if this is a zero-width character:
 					if (displayWidth > 0) styleAtCol = oldLine.getStyle(currentOldCol);
 
@@ -282,6 +759,10 @@ public final class TerminalBuffer {
 				}
 			}
 
+			if (!oldCompactPending) oldCompactTranscript.close();
+			// Lines reflowed to the old number of columns are thrown away, as reflowing from the original lines keeps the
+			// work of a resize proportional to the rows of the circular buffer:
+			if (!mPendingReflow.isEmpty()) restartPendingReflow();
 			cursor[0] = newCursorColumn;
 			cursor[1] = newCursorRow;
 		}
@@ -290,6 +771,102 @@ public final class TerminalBuffer {
 		if (cursor[0] < 0 || cursor[1] < 0) cursor[0] = cursor[1] = 0;
 	}
 
+	/** If there is history left to reflow by {@link #reflowPendingHistory(int)} after a resize. */
+	public boolean hasPendingReflow() {
+		return !mPendingReflow.isEmpty();
+	}
+
+	/** Start reflowing the pending history from its first line into the current number of columns. */
+	private void restartPendingReflow() {
+		if (mReflowedHistory != null) mReflowedHistory.close();
+		mReflowedHistory = new CompactTranscript(mCompactTranscript.getMaxLines(), mColumns, mCompactTranscript.getSpillDirectory());
+		mReflowedLineIndex = new LogicalLineIndex();
+		mReflowRow = new TerminalRow(mColumns, TextStyle.NORMAL, mWcWidth);
+		mReflowColumn = 0;
+		mPendingReflowSource = mPendingReflowNext = 0;
+	}
+
+	/**
+	 * Reflow history lines left in the old number of columns by a resize, see
+	 * {@link #resize(int, int, int, int[], int, boolean)}. The reflowed lines become visible as history above the
+	 * existing history once all have been reflowed, which leaves the coordinates of the existing rows unchanged.
+	 *
+	 * @param maxLines
+	 *            the maximum number of old lines to reflow in this call.
+	 * @return true if no history is left to reflow.
+	 */
+	public boolean reflowPendingHistory(int maxLines) {
+		if (mPendingReflow.isEmpty()) return true;
+		while (mPendingReflowSource < mPendingReflow.size()) {
+			final CompactTranscript source = mPendingReflow.get(mPendingReflowSource);
+			if (mReflowSourceRow == null || mReflowSourceRow.mStyle.length != source.getColumns())
+				mReflowSourceRow = new TerminalRow(source.getColumns(), TextStyle.NORMAL, mWcWidth);
+			final int sourceLines = source.size();
+			final int endLine = (maxLines >= sourceLines - mPendingReflowNext) ? sourceLines : (mPendingReflowNext + maxLines);
+			maxLines -= endLine - mPendingReflowNext;
+			for (; mPendingReflowNext < endLine; mPendingReflowNext++)
+				reflowLine(source.get(mPendingReflowNext, mReflowSourceRow));
+			if (mPendingReflowNext < sourceLines) return false;
+			mPendingReflowSource++;
+			mPendingReflowNext = 0;
+		}
+
+		// Place the reflowed lines before the history written since the resize:
+		mLineIndex.prepend(mReflowedLineIndex, mLineIndex.getNextRow() - getActiveTranscriptRows());
+		final TerminalRow row = new TerminalRow(mColumns, TextStyle.NORMAL, mWcWidth);
+		for (int i = 0; i < mCompactTranscript.size(); i++)
+			mReflowedHistory.add(mCompactTranscript.get(i, row));
+		mCompactTranscript.close();
+		mCompactTranscript = mReflowedHistory;
+		mCompactRow = null;
+		for (CompactTranscript source : mPendingReflow)
+			source.close();
+		mPendingReflow.clear();
+		mReflowedHistory = null;
+		mReflowedLineIndex = null;
+		mReflowSourceRow = mReflowRow = null;
+		mLineIndex.dropRowsBefore(mLineIndex.getNextRow() - getActiveTranscriptRows());
+		return true;
+	}
+
+	/** Reflow a line of the pending history into {@link #mReflowRow}, adding the rows it fills to the reflowed history. */
+	private void reflowLine(TerminalRow oldLine) {
+		int lastNonSpaceIndex = 0;
+		if (oldLine.mLineWrap) {
+			lastNonSpaceIndex = oldLine.getSpaceUsed();
+		} else {
+			for (int i = 0; i < oldLine.getSpaceUsed(); i++)
+				if (oldLine.mText[i] != ' ') lastNonSpaceIndex = i + 1;
+		}
+
+		int currentOldCol = 0;
+		int styleAtCol = 0;
+		for (int i = 0; i < lastNonSpaceIndex; i++) {
+			char c = oldLine.mText[i];
+			int codePoint = (Character.isHighSurrogate(c)) ? Character.toCodePoint(c, oldLine.mText[++i]) : c;
+			int displayWidth = mWcWidth.widthOf(codePoint);
+			if (displayWidth > 0) styleAtCol = oldLine.getStyle(currentOldCol);
+			if (mReflowColumn + displayWidth > mColumns) {
+				mReflowRow.mLineWrap = true;
+				addReflowedRow();
+			}
+			int offsetDueToCombiningChar = ((displayWidth <= 0 && mReflowColumn > 0) ? 1 : 0);
+			mReflowRow.setChar(mReflowColumn - offsetDueToCombiningChar, codePoint, styleAtCol);
+			if (displayWidth > 0) {
+				currentOldCol += displayWidth;
+				mReflowColumn += displayWidth;
+			}
+		}
+		if (!oldLine.mLineWrap) addReflowedRow();
+	}
+
+	private void addReflowedRow() {
+		mReflowedHistory.add(mReflowRow);
+		mReflowedLineIndex.addRow(mReflowRow);
+		mReflowRow.clear(TextStyle.NORMAL);
+		mReflowColumn = 0;
+	}
+
 	/**
 	 * Block copy lines and associated metadata from one location to another in the circular buffer, taking wraparound
 	 * into account.
@@ -327,6 +904,10 @@ public final class TerminalBuffer {
 		if (topMargin > bottomMargin - 1 || topMargin < 0 || bottomMargin > mScreenRows)
 			throw new IllegalArgumentException("topMargin=" + topMargin + ", bottomMargin=" + bottomMargin + ", mScreenRows=" + mScreenRows);
 
+		// If the history is full, the oldest history line is about to be reused for the newly revealed line:
+		if (mActiveTranscriptRows > 0 && mActiveTranscriptRows == mTotalRows - mScreenRows)
+			mCompactTranscript.add(mLines[(mScreenFirstRow + mScreenRows) % mTotalRows]);
+
 		// Copy the fixed topMargin lines one line down so that they remain on screen in same position:
 		blockCopyLinesDown(mScreenFirstRow, topMargin);
 		// Copy the fixed mScreenRows-bottomMargin lines one line down so that they remain on screen in same
@@ -337,14 +918,72 @@ public final class TerminalBuffer {
 		mScreenFirstRow = (mScreenFirstRow + 1) % mTotalRows;
 		// Note that the history has grown if not already full:
 		if (mActiveTranscriptRows < mTotalRows - mScreenRows) mActiveTranscriptRows++;
+		if (mActiveTranscriptRows > 0) {
+			mLineIndex.addRow(mLines[externalToInternalRow(-1)]);
+			mLineIndex.dropRowsBefore(mLineIndex.getNextRow() - getActiveTranscriptRows());
+		}
 
 		// Blank the newly revealed line above the bottom margin:
 		int blankRow = externalToInternalRow(bottomMargin - 1);
 		if (mLines[blankRow] == null) {
-			mLines[blankRow] = new TerminalRow(mColumns, style);
+			mLines[blankRow] = new TerminalRow(mColumns, style, mWcWidth);
 		} else {
 			mLines[blankRow].clear(style);
 		}
+
+		if (mAllRowsDirty) return;
+		if (topMargin == 0 && bottomMargin == mScreenRows) {
+			// The whole screen moved up, so unchanged rows remain unchanged one row higher up:
+			System.arraycopy(mDirtyRows, 1, mDirtyRows, 0, mScreenRows - 1);
+			mDirtyRows[mScreenRows - 1] = true;
+			mScrolledRowsSinceClear++;
+		} else {
+			markRowsDirty(topMargin, bottomMargin);
+		}
+	}
+
+	/** Release the history kept outside of the heap, such as lines spilled to a file. */
+	void close() {
+		if (!mPendingReflow.isEmpty()) {
+			for (CompactTranscript source : mPendingReflow)
+				source.close();
+			mPendingReflow.clear();
+			mReflowedHistory.close();
+			mReflowedHistory = null;
+		}
+		mCompactTranscript.close();
+	}
+
+	/** Mark the external rows from startRow (inclusive) to endRow (exclusive) as changed. */
+	private void markRowsDirty(int startRow, int endRow) {
+		if (mAllRowsDirty) return;
+		for (int row = startRow; row < endRow; row++)
+			mDirtyRows[row] = true;
+	}
+
+	/** Mark every screen row as changed, such as when something affecting the whole screen has changed. */
+	public void markAllRowsDirty() {
+		mAllRowsDirty = true;
+	}
+
+	/** If the specified external screen row has changed since the last call to {@link #clearDirtyRows()}. */
+	public boolean isRowDirty(int row) {
+		return mAllRowsDirty || row < 0 || row >= mScreenRows || mDirtyRows[row];
+	}
+
+	/**
+	 * The number of rows the whole screen has scrolled up since the last call to {@link #clearDirtyRows()}. Rows not
+	 * reported as dirty by {@link #isRowDirty(int)} look as they did before, but that many rows further down.
+	 */
+	public int getScrolledRowsSinceClear() {
+		return mScrolledRowsSinceClear;
+	}
+
+	/** Start tracking changes anew, typically after having rendered the screen. */
+	public void clearDirtyRows() {
+		Arrays.fill(mDirtyRows, false);
+		mAllRowsDirty = false;
+		mScrolledRowsSinceClear = 0;
 	}
 
 	/**
@@ -375,6 +1014,7 @@ public final class TerminalBuffer {
 			TerminalRow sourceRow = allocateFullLineIfNecessary(externalToInternalRow(sy + y2));
 			allocateFullLineIfNecessary(externalToInternalRow(dy + y2)).copyInterval(sourceRow, sx, sx + w, dx);
 		}
+		markRowsDirty(dy, dy + h);
 	}
 
 	/**
@@ -393,16 +1033,26 @@ public final class TerminalBuffer {
 	}
 
 	public TerminalRow allocateFullLineIfNecessary(int row) {
-		return (mLines[row] == null) ? (mLines[row] = new TerminalRow(mColumns, 0)) : mLines[row];
+		return (mLines[row] == null) ? (mLines[row] = new TerminalRow(mColumns, 0, mWcWidth)) : mLines[row];
 	}
 
 	public void setChar(int column, int row, int codePoint, int style) {
 		if (row >= mScreenRows || column >= mColumns)
 			throw new IllegalArgumentException("row=" + row + ", column=" + column + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+		if (!mAllRowsDirty) mDirtyRows[row] = true;
 		row = externalToInternalRow(row);
 		allocateFullLineIfNecessary(row).setChar(column, codePoint, style);
 	}
 
+	/** Set a run of printable ASCII characters on a row, see {@link TerminalRow#setAsciiChars(int, int[], int, int, int)}. */
+	public void setAsciiChars(int column, int row, int[] source, int sourceOffset, int count, int style) {
+		if (row >= mScreenRows || column + count > mColumns)
+			throw new IllegalArgumentException("row=" + row + ", column=" + column + ", count=" + count + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+		if (!mAllRowsDirty) mDirtyRows[row] = true;
+		row = externalToInternalRow(row);
+		allocateFullLineIfNecessary(row).setAsciiChars(column, source, sourceOffset, count, style);
+	}
+
 	public int getStyleAt(int externalRow, int column) {
 		return allocateFullLineIfNecessary(externalToInternalRow(externalRow)).getStyle(column);
 	}
@@ -410,6 +1060,7 @@ public final class TerminalBuffer {
 	/** Support for http://vt100.net/docs/vt510-rm/DECCARA and http://vt100.net/docs/vt510-rm/DECCARA */
 	public void setOrClearEffect(int bits, boolean setOrClear, boolean reverse, boolean rectangular, int leftMargin, int rightMargin, int top, int left,
 			int bottom, int right) {
+		markRowsDirty(top, bottom);
 		for (int y = top; y < bottom; y++) {
 			TerminalRow line = mLines[externalToInternalRow(y)];
 			int startOfLine = (rectangular || y == top) ? left : leftMargin;
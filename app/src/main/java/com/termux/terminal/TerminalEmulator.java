@@ -1,7 +1,8 @@
 package com.termux.terminal;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Stack;
@@ -47,52 +48,8 @@ public final class TerminalEmulator {
 	/** Used for invalid data - http://en.wikipedia.org/wiki/Replacement_character#Replacement_character */
 	public static final int UNICODE_REPLACEMENT_CHAR = 0xFFFD;
 
-	/** Escape processing: Not currently in an escape sequence. */
-	private static final int ESC_NONE = 0;
-	/** Escape processing: Have seen an ESC character - proceed to {@link #doEsc(int)} */
-	private static final int ESC = 1;
-	/** Escape processing: Have seen ESC POUND */
-	private static final int ESC_POUND = 2;
-	/** Escape processing: Have seen ESC and a character-set-select ( char */
-	private static final int ESC_SELECT_LEFT_PAREN = 3;
-	/** Escape processing: Have seen ESC and a character-set-select ) char */
-	private static final int ESC_SELECT_RIGHT_PAREN = 4;
-	/** Escape processing: Have seen ESC and a character-set-select + char */
-	// private static final int ESC_SELECT_PLUS = 5;
-	/** Escape processing: "ESC [" or CSI (Control Sequence Introducer). */
-	private static final int ESC_CSI = 6;
-	/** Escape processing: ESC [ ? */
-	private static final int ESC_CSI_QUESTIONMARK = 7;
-	/** Escape processing: ESC [ $ */
-	private static final int ESC_CSI_DOLLAR = 8;
-	/** Escape processing: ESC % */
-	private static final int ESC_PERCENT = 9;
-	/** Escape processing: ESC ] (AKA OSC - Operating System Controls) */
-	private static final int ESC_OSC = 10;
-	/** Escape processing: ESC ] (AKA OSC - Operating System Controls) ESC */
-	private static final int ESC_OSC_ESC = 11;
-	/** Escape processing: ESC [ > */
-	private static final int ESC_CSI_BIGGERTHAN = 12;
-	/** Escape procession: "ESC P" or Device Control String (DCS) */
-	private static final int ESC_P = 13;
-	/** Escape processing: CSI > */
-	private static final int ESC_CSI_QUESTIONMARK_ARG_DOLLAR = 14;
-	/** Escape processing: CSI $ARGS ' ' */
-	private static final int ESC_CSI_ARGS_SPACE = 15;
-	/** Escape processing: CSI $ARGS '*' */
-	private static final int ESC_CSI_ARGS_ASTERIX = 16;
-	/** Escape processing: CSI " */
-	private static final int ESC_CSI_DOUBLE_QUOTE = 17;
-	/** Escape processing: CSI ' */
-	private static final int ESC_CSI_SINGLE_QUOTE = 18;
-	/** Escape processing: CSI ! */
-	private static final int ESC_CSI_EXCLAMATION = 19;
-
-	/** The number of parameter arguments. This name comes from the ANSI standard for terminal escape codes. */
-	private static final int MAX_ESCAPE_PARAMETERS = 16;
-
-	/** Needs to be large enough to contain reasonable OSC 52 pastes. */
-	private static final int MAX_OSC_STRING_LENGTH = 8192;
+	/** The maximum number of rows, including the screen, of the main buffer kept as full {@link TerminalRow}:s. */
+	public static final int FULL_TRANSCRIPT_ROWS = 1000;
 
 	/** DECSET 1 - application cursor keys. */
 	private static final int DECSET_BIT_APPLICATION_CURSOR_KEYS = 1;
@@ -155,23 +112,48 @@ public final class TerminalEmulator {
 
 	/** The terminal session this emulator is bound to. */
 	private final TerminalOutput mSession;
+	/** The widths of code points output, see {@link #getWcWidth()}. */
+	private final WcWidth mWcWidth;
+
+	/** Parses the output written to the terminal, with what is recognized dispatched to the handlers below. */
+	private final TerminalParser mParser = new TerminalParser(new TerminalParser.Dispatcher() {
+		@Override
+		public void print(int codePoint) {
+			emitCodePoint(codePoint);
+		}
 
-	/** Keeps track of the current argument of the current escape sequence. Ranges from 0 to MAX_ESCAPE_PARAMETERS-1. */
-	private int mArgIndex;
-	/** Holds the arguments of the current escape sequence. */
-	private final int[] mArgs = new int[MAX_ESCAPE_PARAMETERS];
+		@Override
+		public void execute(int controlCharacter) {
+			doExecute(controlCharacter);
+		}
 
-	/** Holds OSC and device control arguments, which can be strings. */
-	private final StringBuilder mOSCOrDeviceControlArgs = new StringBuilder();
+		@Override
+		public void escDispatch(int intermediates, int finalCharacter) {
+			doEscDispatch(intermediates, finalCharacter);
+		}
 
-	/**
-	 * True if the current escape sequence should continue, false if the current escape sequence should be terminated.
-	 * Used when parsing a single character.
-	 */
-	private boolean mContinueSequence;
+		@Override
+		public void csiDispatch(int privateMarker, int[] parameters, int parameterCount, int intermediates, int finalCharacter) {
+			mArgs = parameters;
+			mArgIndex = Math.max(0, parameterCount - 1);
+			doCsiDispatch(privateMarker, intermediates, finalCharacter);
+		}
 
-	/** The current state of the escape sequence state machine. One of the ESC_* constants. */
-	private int mEscapeState;
+		@Override
+		public void oscDispatch(CharSequence string, boolean bellTerminated) {
+			doOscSetTextParameters(string, bellTerminated ? "\007" : "\033\\");
+		}
+
+		@Override
+		public void dcsDispatch(CharSequence string) {
+			doDeviceControl(string);
+		}
+	});
+
+	/** The index of the last argument of the control sequence being dispatched. */
+	private int mArgIndex;
+	/** Holds the arguments of the control sequence being dispatched, with -1 for missing ones. */
+	private int[] mArgs;
 
 	private final SavedScreenState mSavedStateMain = new SavedScreenState();
 	private final SavedScreenState mSavedStateAlt = new SavedScreenState();
@@ -219,8 +201,9 @@ public final class TerminalEmulator {
 	 */
 	private int mScrollCounter = 0;
 
-	private int mUtf8ToFollow, mUtf8Index;
-	private final byte[] mUtf8InputBuffer = new byte[4];
+	private final Utf8Decoder mUtf8Decoder = new Utf8Decoder();
+	/** The code points decoded from the bytes passed to {@link #append(byte[], int)}. */
+	private int[] mCodePoints = new int[4097];
 
 	public final TerminalColors mColors = new TerminalColors();
 
@@ -277,15 +260,40 @@ public final class TerminalEmulator {
 	}
 
 	public TerminalEmulator(TerminalOutput session, int columns, int rows, int transcriptRows) {
+		this(session, columns, rows, transcriptRows, null, WcWidth.DEFAULT);
+	}
+
+	public TerminalEmulator(TerminalOutput session, int columns, int rows, int transcriptRows, File spillDirectory) {
+		this(session, columns, rows, transcriptRows, spillDirectory, WcWidth.DEFAULT);
+	}
+
+	/**
+	 * @param transcriptRows
+	 *            the number of rows of the screen and its history kept in memory. At most {@link #FULL_TRANSCRIPT_ROWS}
+	 *            of them are kept as full {@link TerminalRow}:s, with older history lines in a compact form.
+	 * @param spillDirectory
+	 *            directory to spill history exceeding transcriptRows to a file in, or null to drop it. Call
+	 *            {@link #close()} to delete the file when the emulator is no longer needed.
+	 * @param wcWidth
+	 *            the widths of code points output, which should agree with the wcwidth() of the programs running.
+	 */
+	public TerminalEmulator(TerminalOutput session, int columns, int rows, int transcriptRows, File spillDirectory, WcWidth wcWidth) {
 		mSession = session;
-		mScreen = mMainBuffer = new TerminalBuffer(columns, transcriptRows, rows);
-		mAltBuffer = new TerminalBuffer(columns, rows, rows);
+		mWcWidth = wcWidth;
+		final int fullRows = Math.min(transcriptRows, FULL_TRANSCRIPT_ROWS);
+		mScreen = mMainBuffer = new TerminalBuffer(columns, fullRows, rows, transcriptRows - fullRows, spillDirectory, wcWidth);
+		mAltBuffer = new TerminalBuffer(columns, rows, rows, 0, null, wcWidth);
 		mRows = rows;
 		mColumns = columns;
 		mTabStop = new boolean[mColumns];
 		reset();
 	}
 
+	/** The widths of code points in this terminal. */
+	public WcWidth getWcWidth() {
+		return mWcWidth;
+	}
+
 	public TerminalBuffer getScreen() {
 		return mScreen;
 	}
@@ -397,79 +405,85 @@ public final class TerminalEmulator {
 	 *            the number of bytes in the array to process
 	 */
 	public void append(byte[] buffer, int length) {
-		for (int i = 0; i < length; i++)
-			processByte(buffer[i]);
-	}
-
-	private void processByte(byte byteToProcess) {
-		if (mUtf8ToFollow > 0) {
-			if ((byteToProcess & 0b11000000) == 0b10000000) {
-				// 10xxxxxx, a continuation byte.
-				mUtf8InputBuffer[mUtf8Index++] = byteToProcess;
-				if (--mUtf8ToFollow == 0) {
-					byte firstByteMask = (byte) (mUtf8Index == 2 ? 0b00011111 : (mUtf8Index == 3 ? 0b00001111 : 0b00000111));
-					int codePoint = (mUtf8InputBuffer[0] & firstByteMask);
-					for (int i = 1; i < mUtf8Index; i++)
-						codePoint = ((codePoint << 6) | (mUtf8InputBuffer[i] & 0b00111111));
-					if (((codePoint <= 0b1111111) && mUtf8Index > 1) || (codePoint < 0b11111111111 && mUtf8Index > 2)
-							|| (codePoint < 0b1111111111111111 && mUtf8Index > 3)) {
-						// Overlong encoding.
-						codePoint = UNICODE_REPLACEMENT_CHAR;
-					}
+		append(ByteBuffer.wrap(buffer), 0, length);
+	}
+
+	/**
+	 * Process bytes at absolute indices of a buffer, which lets a direct buffer filled from the pseudo-teletype be parsed
+	 * in place.
+	 */
+	public void append(ByteBuffer buffer, int offset, int length) {
+		if (mCodePoints.length < length + 1) mCodePoints = new int[length + 1];
+		final int[] codePoints = mCodePoints;
+		final int count = mUtf8Decoder.decode(buffer, offset, length, codePoints);
+		for (int i = 0; i < count; i++) {
+			int codePoint = codePoints[i];
+			if (codePoint >= 32 && codePoint <= 126 && mParser.isInGround() && !mInsertMode
+					&& !(mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1)) {
+				i = emitAsciiRun(codePoints, i, count) - 1;
+			} else {
+				mParser.advance(codePoint);
+			}
+		}
+	}
+
+	/**
+	 * Fast path for the common case of printable ASCII output outside of escape sequences, with no line drawing
+	 * character set and no insert mode active. Has the same effect as {@link #emitCodePoint(int)} for each character,
+	 * but writes each part of the run fitting before the right margin to the screen at once.
+	 * 
+	 * @return the index after the last processed code point.
+	 */
+	private int emitAsciiRun(int[] codePoints, int start, int end) {
+		if (mCursorCol >= mRightMargin) {
+			emitCodePoint(codePoints[start]);
+			return start + 1;
+		}
 
-					mUtf8Index = mUtf8ToFollow = 0;
+		int runEnd = start + 1;
+		while (runEnd < end && codePoints[runEnd] >= 32 && codePoints[runEnd] <= 126)
+			runEnd++;
 
-					if (codePoint >= 0x80 && codePoint <= 0x9F) {
-						// Sequence decoded to a C1 control character which is the same as escape followed by
-						// ((code & 0x7F) + 0x40).
-						processCodePoint(/* escape (hexadecimal=0x1B, octal=033): */27);
-						processCodePoint((codePoint & 0x7F) + 0x40);
+		final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
+		final int style = getStyle();
+		int i = start;
+		while (i < runEnd) {
+			if (mCursorCol == mRightMargin - 1) {
+				if (!autoWrap) {
+					// Every character overwrites the last column, so only the final one is visible.
+					i = runEnd - 1;
+				} else if (mAboutToAutoWrap) {
+					mScreen.setLineWrap(mCursorRow);
+					mCursorCol = mLeftMargin;
+					if (mCursorRow + 1 < mBottomMargin) {
+						mCursorRow++;
 					} else {
-						if (Character.UNASSIGNED == Character.getType(codePoint)) codePoint = UNICODE_REPLACEMENT_CHAR;
-						processCodePoint(codePoint);
+						scrollDownOneLine();
 					}
 				}
-			} else {
-				// Not a UTF-8 continuation byte so replace the entire sequence up to now with the replacement char:
-				mUtf8Index = mUtf8ToFollow = 0;
-				emitCodePoint(UNICODE_REPLACEMENT_CHAR);
-				// The Unicode Standard Version 6.2 – Core Specification
-				// (http://www.unicode.org/versions/Unicode6.2.0/ch03.pdf):
-				// "If the converter encounters an ill-formed UTF-8 code unit sequence which starts with a valid first
-				// byte, but which does not continue with valid successor bytes (see Table 3-7), it must not consume the
-				// successor bytes as part of the ill-formed subsequence
-				// whenever those successor bytes themselves constitute part of a well-formed UTF-8 code unit
-				// subsequence."
-				processByte(byteToProcess);
 			}
-		} else {
-			if ((byteToProcess & 0b10000000) == 0) { // The leading bit is not set so it is a 7-bit ASCII character.
-				processCodePoint(byteToProcess);
-				return;
-			} else if ((byteToProcess & 0b11100000) == 0b11000000) { // 110xxxxx, a two-byte sequence.
-				mUtf8ToFollow = 1;
-			} else if ((byteToProcess & 0b11110000) == 0b11100000) { // 1110xxxx, a three-byte sequence.
-				mUtf8ToFollow = 2;
-			} else if ((byteToProcess & 0b11111000) == 0b11110000) { // 11110xxx, a four-byte sequence.
-				mUtf8ToFollow = 3;
-			} else {
-				// Not a valid UTF-8 sequence start, signal invalid data:
-				processCodePoint(UNICODE_REPLACEMENT_CHAR);
-				return;
-			}
-			mUtf8InputBuffer[mUtf8Index++] = byteToProcess;
+
+			int count = Math.min(runEnd - i, mRightMargin - mCursorCol);
+			mScreen.setAsciiChars(mCursorCol, mCursorRow, codePoints, i, count, style);
+			i += count;
+
+			int lastColumnWritten = mCursorCol + count - 1;
+			if (autoWrap) mAboutToAutoWrap = (lastColumnWritten == mRightMargin - 1);
+			mCursorCol = Math.min(lastColumnWritten + 1, mRightMargin - 1);
 		}
+		return runEnd;
 	}
 
+	/** Process a code point of the terminal output, which may be part of an escape sequence. */
 	public void processCodePoint(int b) {
+		mParser.advance(b);
+	}
+
+	/** Execute a C0 control character. */
+	private void doExecute(int b) {
 		switch (b) {
-		case 0: // Null character (NUL, ^@). Do nothing.
-			break;
-		case 7: // Bell (BEL, ^G, \a). If in an OSC sequence, BEL may terminate a string; otherwise signal bell.
-			if (mEscapeState == ESC_OSC)
-				doOsc(b);
-			else
-				mSession.onBell();
+		case 7: // Bell (BEL, ^G, \a).
+			mSession.onBell();
 			break;
 		case 8: // BS
 			setCursorCol(Math.max(mLeftMargin, mCursorCol - 1));
@@ -478,7 +492,7 @@ public final class TerminalEmulator {
 			int nextTabStop = nextTabStop(1);
 			while (mCursorCol < nextTabStop) {
 				// Emit newlines to get background color right.
-				processCodePoint(' ');
+				emitCodePoint(' ');
 			}
 			break;
 		case 10: // Line feed (LF, \n).
@@ -495,228 +509,44 @@ public final class TerminalEmulator {
 		case 15: // Shift In (Ctrl-O, SI) → Switch to Standard Character Set. This invokes the G0 character set.
 			mUseLineDrawingUsesG0 = true;
 			break;
-		case 24: // CAN.
-		case 26: // SUB.
-			if (mEscapeState != ESC_NONE) {
-				// FIXME: What is this??
-				mEscapeState = ESC_NONE;
-				emitCodePoint(127);
-			}
+		default: // NUL, and CAN and SUB which the parser handles by cancelling any sequence. Ignore the rest.
 			break;
-		case 27: // ESC
-			// Starts an escape sequence unless we're parsing a string
-			if (mEscapeState == ESC_P) {
-				// XXX: Ignore escape when reading device control sequence, since it may be part of string terminator.
-				return;
-			} else if (mEscapeState != ESC_OSC) {
-				startEscapeSequence();
-			} else {
-				doOsc(b);
-			}
+		}
+	}
+
+	/** An escape sequence, "ESC ${INTERMEDIATES} ${FINAL}", see {@link TerminalParser.Dispatcher#escDispatch(int, int)}. */
+	private void doEscDispatch(int intermediates, int b) {
+		switch (intermediates) {
+		case 0:
+			doEsc(b);
+			break;
+		case '#':
+			doEscPound(b);
+			break;
+		case '(': // Designate G0 Character Set (ISO 2022, VT100).
+			mUseLineDrawingG0 = (b == '0');
+			break;
+		case ')': // Designate G1 Character Set (ISO 2022, VT100).
+			mUseLineDrawingG1 = (b == '0');
+			break;
+		case '%':
+			Log.i(EmulatorDebug.LOG_TAG, "Ignoring character set sequence 'ESC % " + (char) b + "'");
 			break;
 		default:
-			mContinueSequence = false;
-			switch (mEscapeState) {
-			case ESC_NONE:
-				if (b >= 32) emitCodePoint(b);
-				break;
-			case ESC:
-				doEsc(b);
-				break;
-			case ESC_POUND:
-				doEscPound(b);
-				break;
-			case ESC_SELECT_LEFT_PAREN: // Designate G0 Character Set (ISO 2022, VT100).
-				mUseLineDrawingG0 = (b == '0');
-				break;
-			case ESC_SELECT_RIGHT_PAREN: // Designate G1 Character Set (ISO 2022, VT100).
-				mUseLineDrawingG1 = (b == '0');
-				break;
-			case ESC_CSI:
-				doCsi(b);
-				break;
-			case ESC_CSI_EXCLAMATION:
-				if (b == 'p') { // Soft terminal reset (DECSTR, http://vt100.net/docs/vt510-rm/DECSTR).
-					reset();
-				} else {
-					unknownSequence(b);
-				}
-				break;
-			case ESC_CSI_QUESTIONMARK:
+			unknownSequence(b);
+			break;
+		}
+	}
+
+	/**
+	 * A control sequence, "CSI ${PRIVATE_MARKER} ${ARGS} ${INTERMEDIATES} ${FINAL}", with the arguments in
+	 * {@link #mArgs}. See {@link TerminalParser.Dispatcher#csiDispatch(int, int[], int, int, int)}.
+	 */
+	private void doCsiDispatch(int privateMarker, int intermediates, int b) {
+		if (privateMarker == '?') {
+			if (intermediates == 0) {
 				doCsiQuestionMark(b);
-				break;
-			case ESC_CSI_BIGGERTHAN:
-				doCsiBiggerThan(b);
-				break;
-			case ESC_CSI_DOLLAR:
-				boolean originMode = isDecsetInternalBitSet(DECSET_BIT_ORIGIN_MODE);
-				int effectiveTopMargin = originMode ? mTopMargin : 0;
-				int effectiveBottomMargin = originMode ? mBottomMargin : mRows;
-				int effectiveLeftMargin = originMode ? mLeftMargin : 0;
-				int effectiveRightMargin = originMode ? mRightMargin : mColumns;
-				switch (b) {
-				case 'v': // ${CSI}${SRC_TOP}${SRC_LEFT}${SRC_BOTTOM}${SRC_RIGHT}${SRC_PAGE}${DST_TOP}${DST_LEFT}${DST_PAGE}$v"
-					// Copy rectangular area (DECCRA - http://vt100.net/docs/vt510-rm/DECCRA):
-					// "If Pbs is greater than Pts, or Pls is greater than Prs, the terminal ignores DECCRA.
-					// The coordinates of the rectangular area are affected by the setting of origin mode (DECOM).
-					// DECCRA is not affected by the page margins.
-					// The copied text takes on the line attributes of the destination area.
-					// If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, then the value
-					// is treated as the width or height of that page.
-					// If the destination area is partially off the page, then DECCRA clips the off-page data.
-					// DECCRA does not change the active cursor position."
-					int topSource = Math.min(getArg(0, 1, true) - 1 + effectiveTopMargin, mRows);
-					int leftSource = Math.min(getArg(1, 1, true) - 1 + effectiveLeftMargin, mColumns);
-					// Inclusive, so do not subtract one:
-					int bottomSource = Math.min(Math.max(getArg(2, mRows, true) + effectiveTopMargin, topSource), mRows);
-					int rightSource = Math.min(Math.max(getArg(3, mColumns, true) + effectiveLeftMargin, leftSource), mColumns);
-					// int sourcePage = getArg(4, 1, true);
-					int destionationTop = Math.min(getArg(5, 1, true) - 1 + effectiveTopMargin, mRows);
-					int destinationLeft = Math.min(getArg(6, 1, true) - 1 + effectiveLeftMargin, mColumns);
-					// int destinationPage = getArg(7, 1, true);
-					int heightToCopy = Math.min(mRows - destionationTop, bottomSource - topSource);
-					int widthToCopy = Math.min(mColumns - destinationLeft, rightSource - leftSource);
-					mScreen.blockCopy(leftSource, topSource, widthToCopy, heightToCopy, destinationLeft, destionationTop);
-					break;
-				case '{': // ${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${"
-					// Selective erase rectangular area (DECSERA - http://www.vt100.net/docs/vt510-rm/DECSERA).
-				case 'x': // ${CSI}${CHAR};${TOP}${LEFT}${BOTTOM}${RIGHT}$x"
-					// Fill rectangular area (DECFRA - http://www.vt100.net/docs/vt510-rm/DECFRA).
-				case 'z': // ${CSI}$${TOP}${LEFT}${BOTTOM}${RIGHT}$z"
-					// Erase rectangular area (DECERA - http://www.vt100.net/docs/vt510-rm/DECERA).
-					boolean erase = b != 'x';
-					boolean selective = b == '{';
-					// Only DECSERA keeps visual attributes, DECERA does not:
-					boolean keepVisualAttributes = erase && selective;
-					int argIndex = 0;
-					int fillChar = erase ? ' ' : getArg(argIndex++, -1, true);
-					// "Pch can be any value from 32 to 126 or from 160 to 255. If Pch is not in this range, then the
-					// terminal ignores the DECFRA command":
-					if ((fillChar >= 32 && fillChar <= 126) || (fillChar >= 160 && fillChar <= 255)) {
-						// "If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, the value
-						// is treated as the width or height of that page."
-						int top = Math.min(getArg(argIndex++, 1, true) + effectiveTopMargin, effectiveBottomMargin + 1);
-						int left = Math.min(getArg(argIndex++, 1, true) + effectiveLeftMargin, effectiveRightMargin + 1);
-						int bottom = Math.min(getArg(argIndex++, mRows, true) + effectiveTopMargin, effectiveBottomMargin);
-						int right = Math.min(getArg(argIndex, mColumns, true) + effectiveLeftMargin, effectiveRightMargin);
-						int style = getStyle();
-						for (int row = top - 1; row < bottom; row++)
-							for (int col = left - 1; col < right; col++)
-								if (!selective || (TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
-									mScreen.setChar(col, row, fillChar, keepVisualAttributes ? mScreen.getStyleAt(row, col) : style);
-					}
-					break;
-				case 'r': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$r"
-					// Change attributes in rectangular area (DECCARA - http://vt100.net/docs/vt510-rm/DECCARA).
-				case 't': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$t"
-					// Reverse attributes in rectangular area (DECRARA - http://www.vt100.net/docs/vt510-rm/DECRARA).
-					boolean reverse = b == 't';
-					// FIXME: "coordinates of the rectangular area are affected by the setting of origin mode (DECOM)".s
-					int top = Math.min(getArg(0, 1, true) - 1, effectiveBottomMargin) + effectiveTopMargin;
-					int left = Math.min(getArg(1, 1, true) - 1, effectiveRightMargin) + effectiveLeftMargin;
-					int bottom = Math.min(getArg(2, mRows, true) + 1, effectiveBottomMargin - 1) + effectiveTopMargin;
-					int right = Math.min(getArg(3, mColumns, true) + 1, effectiveRightMargin - 1) + effectiveLeftMargin;
-					if (mArgIndex >= 4) {
-						for (int i = 4; i <= mArgIndex; i++) {
-							int bits = 0;
-							boolean setOrClear = true; // True if setting, false if clearing.
-							switch (getArg(i, 0, false)) {
-							case 0: // Attributes off (no bold, no underline, no blink, positive image).
-								bits = (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE | TextStyle.CHARACTER_ATTRIBUTE_BLINK
-										| TextStyle.CHARACTER_ATTRIBUTE_INVERSE);
-								if (!reverse) setOrClear = false;
-								break;
-							case 1: // Bold.
-								bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
-								break;
-							case 4: // Underline.
-								bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
-								break;
-							case 5: // Blink.
-								bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
-								break;
-							case 7: // Negative image.
-								bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
-								break;
-							case 22: // No bold.
-								bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
-								setOrClear = false;
-								break;
-							case 24: // No underline.
-								bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
-								setOrClear = false;
-								break;
-							case 25: // No blink.
-								bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
-								setOrClear = false;
-								break;
-							case 27: // Positive image.
-								bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
-								setOrClear = false;
-								break;
-							}
-							if (reverse && !setOrClear) {
-								// Reverse attributes in rectangular area ignores non-(1,4,5,7) bits.
-							} else {
-								mScreen.setOrClearEffect(bits, setOrClear, reverse, isDecsetInternalBitSet(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE),
-										effectiveLeftMargin, effectiveRightMargin, top, left, bottom, right);
-							}
-						}
-					} else {
-						// Do nothing.
-					}
-					break;
-				default:
-					unknownSequence(b);
-				}
-				break;
-			case ESC_CSI_DOUBLE_QUOTE:
-				if (b == 'q') {
-					// http://www.vt100.net/docs/vt510-rm/DECSCA
-					int arg = getArg0(0);
-					if (arg == 0 || arg == 2) {
-						// DECSED and DECSEL can erase characters.
-						mEffect &= ~TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
-					} else if (arg == 1) {
-						// DECSED and DECSEL cannot erase characters.
-						mEffect |= TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
-					} else {
-						unknownSequence(b);
-					}
-				} else {
-					unknownSequence(b);
-				}
-				break;
-			case ESC_CSI_SINGLE_QUOTE:
-				if (b == '}') { // Insert Ps Column(s) (default = 1) (DECIC), VT420 and up.
-					int columnsAfterCursor = mRightMargin - mCursorCol;
-					int columnsToInsert = Math.min(getArg0(1), columnsAfterCursor);
-					int columnsToMove = columnsAfterCursor - columnsToInsert;
-					mScreen.blockCopy(mCursorCol, 0, columnsToMove, mRows, mCursorCol + columnsToInsert, 0);
-					blockClear(mCursorCol, 0, columnsToInsert, mRows);
-				} else if (b == '~') { // Delete Ps Column(s) (default = 1) (DECDC), VT420 and up.
-					int columnsAfterCursor = mRightMargin - mCursorCol;
-					int columnsToDelete = Math.min(getArg0(1), columnsAfterCursor);
-					int columnsToMove = columnsAfterCursor - columnsToDelete;
-					mScreen.blockCopy(mCursorCol + columnsToDelete, 0, columnsToMove, mRows, mCursorCol, 0);
-					blockClear(mCursorRow + columnsToMove, 0, columnsToDelete, mRows);
-				} else {
-					unknownSequence(b);
-				}
-				break;
-			case ESC_PERCENT:
-				Log.i(EmulatorDebug.LOG_TAG, "Ignoring character set sequence 'ESC % " + (char) b + "'");
-				break;
-			case ESC_OSC:
-				doOsc(b);
-				break;
-			case ESC_OSC_ESC:
-				doOscEsc(b);
-				break;
-			case ESC_P:
-				doDeviceControl(b);
-				break;
-			case ESC_CSI_QUESTIONMARK_ARG_DOLLAR:
+			} else if (intermediates == '$') {
 				if (b == 'p') {
 					// Request DEC private mode (DECRQM).
 					int mode = getArg0(0);
@@ -737,165 +567,324 @@ public final class TerminalEmulator {
 				} else {
 					unknownSequence(b);
 				}
+			} else {
+				unknownSequence(b);
+			}
+			return;
+		} else if (privateMarker == '>' && intermediates == 0) {
+			doCsiBiggerThan(b);
+			return;
+		} else if (privateMarker != 0) {
+			unknownSequence(b);
+			return;
+		}
+
+		switch (intermediates) {
+		case 0:
+			doCsi(b);
+			break;
+		case '!':
+			if (b == 'p') { // Soft terminal reset (DECSTR, http://vt100.net/docs/vt510-rm/DECSTR).
+				reset();
+			} else {
+				unknownSequence(b);
+			}
+			break;
+		case '$':
+			boolean originMode = isDecsetInternalBitSet(DECSET_BIT_ORIGIN_MODE);
+			int effectiveTopMargin = originMode ? mTopMargin : 0;
+			int effectiveBottomMargin = originMode ? mBottomMargin : mRows;
+			int effectiveLeftMargin = originMode ? mLeftMargin : 0;
+			int effectiveRightMargin = originMode ? mRightMargin : mColumns;
+			switch (b) {
+			case 'v': // ${CSI}${SRC_TOP}${SRC_LEFT}${SRC_BOTTOM}${SRC_RIGHT}${SRC_PAGE}${DST_TOP}${DST_LEFT}${DST_PAGE}$v"
+				// Copy rectangular area (DECCRA - http://vt100.net/docs/vt510-rm/DECCRA):
+				// "If Pbs is greater than Pts, or Pls is greater than Prs, the terminal ignores DECCRA.
+				// The coordinates of the rectangular area are affected by the setting of origin mode (DECOM).
+				// DECCRA is not affected by the page margins.
+				// The copied text takes on the line attributes of the destination area.
+				// If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, then the value
+				// is treated as the width or height of that page.
+				// If the destination area is partially off the page, then DECCRA clips the off-page data.
+				// DECCRA does not change the active cursor position."
+				int topSource = Math.min(getArg(0, 1, true) - 1 + effectiveTopMargin, mRows);
+				int leftSource = Math.min(getArg(1, 1, true) - 1 + effectiveLeftMargin, mColumns);
+				// Inclusive, so do not subtract one:
+				int bottomSource = Math.min(Math.max(getArg(2, mRows, true) + effectiveTopMargin, topSource), mRows);
+				int rightSource = Math.min(Math.max(getArg(3, mColumns, true) + effectiveLeftMargin, leftSource), mColumns);
+				// int sourcePage = getArg(4, 1, true);
+				int destionationTop = Math.min(getArg(5, 1, true) - 1 + effectiveTopMargin, mRows);
+				int destinationLeft = Math.min(getArg(6, 1, true) - 1 + effectiveLeftMargin, mColumns);
+				// int destinationPage = getArg(7, 1, true);
+				int heightToCopy = Math.min(mRows - destionationTop, bottomSource - topSource);
+				int widthToCopy = Math.min(mColumns - destinationLeft, rightSource - leftSource);
+				mScreen.blockCopy(leftSource, topSource, widthToCopy, heightToCopy, destinationLeft, destionationTop);
+				break;
+			case '{': // ${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${"
+				// Selective erase rectangular area (DECSERA - http://www.vt100.net/docs/vt510-rm/DECSERA).
+			case 'x': // ${CSI}${CHAR};${TOP}${LEFT}${BOTTOM}${RIGHT}$x"
+				// Fill rectangular area (DECFRA - http://www.vt100.net/docs/vt510-rm/DECFRA).
+			case 'z': // ${CSI}$${TOP}${LEFT}${BOTTOM}${RIGHT}$z"
+				// Erase rectangular area (DECERA - http://www.vt100.net/docs/vt510-rm/DECERA).
+				boolean erase = b != 'x';
+				boolean selective = b == '{';
+				// Only DECSERA keeps visual attributes, DECERA does not:
+				boolean keepVisualAttributes = erase && selective;
+				int argIndex = 0;
+				int fillChar = erase ? ' ' : getArg(argIndex++, -1, true);
+				// "Pch can be any value from 32 to 126 or from 160 to 255. If Pch is not in this range, then the
+				// terminal ignores the DECFRA command":
+				if ((fillChar >= 32 && fillChar <= 126) || (fillChar >= 160 && fillChar <= 255)) {
+					// "If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, the value
+					// is treated as the width or height of that page."
+					int top = Math.min(getArg(argIndex++, 1, true) + effectiveTopMargin, effectiveBottomMargin + 1);
+					int left = Math.min(getArg(argIndex++, 1, true) + effectiveLeftMargin, effectiveRightMargin + 1);
+					int bottom = Math.min(getArg(argIndex++, mRows, true) + effectiveTopMargin, effectiveBottomMargin);
+					int right = Math.min(getArg(argIndex, mColumns, true) + effectiveLeftMargin, effectiveRightMargin);
+					int style = getStyle();
+					for (int row = top - 1; row < bottom; row++)
+						for (int col = left - 1; col < right; col++)
+							if (!selective || (TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
+								mScreen.setChar(col, row, fillChar, keepVisualAttributes ? mScreen.getStyleAt(row, col) : style);
+				}
 				break;
-			case ESC_CSI_ARGS_SPACE:
-				int arg = getArg0(0);
-				switch (b) {
-				case 'q': // "${CSI}${STYLE} q" - set cursor style (http://www.vt100.net/docs/vt510-rm/DECSCUSR).
-					switch (arg) {
-					case 0: // Blinking block.
-					case 1: // Blinking block.
-					case 2: // Steady block.
-						mCursorStyle = CURSOR_STYLE_BLOCK;
-						break;
-					case 3: // Blinking underline.
-					case 4: // Steady underline.
-						mCursorStyle = CURSOR_STYLE_UNDERLINE;
-						break;
-					case 5: // Blinking bar (xterm addition).
-					case 6: // Steady bar (xterm addition).
-						mCursorStyle = CURSOR_STYLE_BAR;
-						break;
+			case 'r': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$r"
+				// Change attributes in rectangular area (DECCARA - http://vt100.net/docs/vt510-rm/DECCARA).
+			case 't': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$t"
+				// Reverse attributes in rectangular area (DECRARA - http://www.vt100.net/docs/vt510-rm/DECRARA).
+				boolean reverse = b == 't';
+				// FIXME: "coordinates of the rectangular area are affected by the setting of origin mode (DECOM)".s
+				int top = Math.min(getArg(0, 1, true) - 1, effectiveBottomMargin) + effectiveTopMargin;
+				int left = Math.min(getArg(1, 1, true) - 1, effectiveRightMargin) + effectiveLeftMargin;
+				int bottom = Math.min(getArg(2, mRows, true) + 1, effectiveBottomMargin - 1) + effectiveTopMargin;
+				int right = Math.min(getArg(3, mColumns, true) + 1, effectiveRightMargin - 1) + effectiveLeftMargin;
+				if (mArgIndex >= 4) {
+					for (int i = 4; i <= mArgIndex; i++) {
+						int bits = 0;
+						boolean setOrClear = true; // True if setting, false if clearing.
+						switch (getArg(i, 0, false)) {
+						case 0: // Attributes off (no bold, no underline, no blink, positive image).
+							bits = (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE | TextStyle.CHARACTER_ATTRIBUTE_BLINK
+									| TextStyle.CHARACTER_ATTRIBUTE_INVERSE);
+							if (!reverse) setOrClear = false;
+							break;
+						case 1: // Bold.
+							bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
+							break;
+						case 4: // Underline.
+							bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+							break;
+						case 5: // Blink.
+							bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
+							break;
+						case 7: // Negative image.
+							bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
+							break;
+						case 22: // No bold.
+							bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
+							setOrClear = false;
+							break;
+						case 24: // No underline.
+							bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+							setOrClear = false;
+							break;
+						case 25: // No blink.
+							bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
+							setOrClear = false;
+							break;
+						case 27: // Positive image.
+							bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
+							setOrClear = false;
+							break;
+						}
+						if (reverse && !setOrClear) {
+							// Reverse attributes in rectangular area ignores non-(1,4,5,7) bits.
+						} else {
+							mScreen.setOrClearEffect(bits, setOrClear, reverse, isDecsetInternalBitSet(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE),
+									effectiveLeftMargin, effectiveRightMargin, top, left, bottom, right);
+						}
 					}
-					break;
-				case 't':
-				case 'u':
-					// Set margin-bell volume - ignore.
-					break;
-				default:
-					unknownSequence(b);
+				} else {
+					// Do nothing.
 				}
 				break;
-			case ESC_CSI_ARGS_ASTERIX:
-				int attributeChangeExtent = getArg0(0);
-				if (b == 'x' && (attributeChangeExtent >= 0 && attributeChangeExtent <= 2)) {
-					// Select attribute change extent (DECSACE - http://www.vt100.net/docs/vt510-rm/DECSACE).
-					setDecsetinternalBit(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE, attributeChangeExtent == 2);
+			default:
+				unknownSequence(b);
+			}
+			break;
+		case '"':
+			if (b == 'q') {
+				// http://www.vt100.net/docs/vt510-rm/DECSCA
+				int arg = getArg0(0);
+				if (arg == 0 || arg == 2) {
+					// DECSED and DECSEL can erase characters.
+					mEffect &= ~TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
+				} else if (arg == 1) {
+					// DECSED and DECSEL cannot erase characters.
+					mEffect |= TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
 				} else {
 					unknownSequence(b);
 				}
+			} else {
+				unknownSequence(b);
+			}
+			break;
+		case '\'':
+			if (b == '}') { // Insert Ps Column(s) (default = 1) (DECIC), VT420 and up.
+				int columnsAfterCursor = mRightMargin - mCursorCol;
+				int columnsToInsert = Math.min(getArg0(1), columnsAfterCursor);
+				int columnsToMove = columnsAfterCursor - columnsToInsert;
+				mScreen.blockCopy(mCursorCol, 0, columnsToMove, mRows, mCursorCol + columnsToInsert, 0);
+				blockClear(mCursorCol, 0, columnsToInsert, mRows);
+			} else if (b == '~') { // Delete Ps Column(s) (default = 1) (DECDC), VT420 and up.
+				int columnsAfterCursor = mRightMargin - mCursorCol;
+				int columnsToDelete = Math.min(getArg0(1), columnsAfterCursor);
+				int columnsToMove = columnsAfterCursor - columnsToDelete;
+				mScreen.blockCopy(mCursorCol + columnsToDelete, 0, columnsToMove, mRows, mCursorCol, 0);
+				blockClear(mCursorRow + columnsToMove, 0, columnsToDelete, mRows);
+			} else {
+				unknownSequence(b);
+			}
+			break;
+		case ' ':
+			int arg = getArg0(0);
+			switch (b) {
+			case 'q': // "${CSI}${STYLE} q" - set cursor style (http://www.vt100.net/docs/vt510-rm/DECSCUSR).
+				switch (arg) {
+				case 0: // Blinking block.
+				case 1: // Blinking block.
+				case 2: // Steady block.
+					mCursorStyle = CURSOR_STYLE_BLOCK;
+					break;
+				case 3: // Blinking underline.
+				case 4: // Steady underline.
+					mCursorStyle = CURSOR_STYLE_UNDERLINE;
+					break;
+				case 5: // Blinking bar (xterm addition).
+				case 6: // Steady bar (xterm addition).
+					mCursorStyle = CURSOR_STYLE_BAR;
+					break;
+				}
+				break;
+			case 't':
+			case 'u':
+				// Set margin-bell volume - ignore.
 				break;
 			default:
 				unknownSequence(b);
-				break;
 			}
-			if (!mContinueSequence) mEscapeState = ESC_NONE;
+			break;
+		case '*':
+			int attributeChangeExtent = getArg0(0);
+			if (b == 'x' && (attributeChangeExtent >= 0 && attributeChangeExtent <= 2)) {
+				// Select attribute change extent (DECSACE - http://www.vt100.net/docs/vt510-rm/DECSACE).
+				setDecsetinternalBit(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE, attributeChangeExtent == 2);
+			} else {
+				unknownSequence(b);
+			}
+			break;
+		default:
+			unknownSequence(b);
 			break;
 		}
 	}
 
-	/** When in {@link #ESC_P} ("device control") sequence. */
-	private void doDeviceControl(int b) {
-		switch (b) {
-		case (byte) '\\': // End of ESC \ string Terminator
-		{
-			String dcs = mOSCOrDeviceControlArgs.toString();
-			// DCS $ q P t ST. Request Status String (DECRQSS)
-			if (dcs.startsWith("$q")) {
-				if (dcs.equals("$q\"p")) {
-					// DECSCL, conformance level, http://www.vt100.net/docs/vt510-rm/DECSCL:
-					String csiString = "64;1\"p";
-					mSession.write("\033P1$r" + csiString + "\033\\");
-				} else {
-					finishSequenceAndLogError("Unrecognized DECRQSS string: '" + dcs + "'");
-				}
-			} else if (dcs.startsWith("+q")) {
-				// Request Termcap/Terminfo String. The string following the "q" is a list of names encoded in
-				// hexadecimal (2 digits per character) separated by ; which correspond to termcap or terminfo key
-				// names.
-				// Two special features are also recognized, which are not key names: Co for termcap colors (or colors
-				// for terminfo colors), and TN for termcap name (or name for terminfo name).
-				// xterm responds with DCS 1 + r P t ST for valid requests, adding to P t an = , and the value of the
-				// corresponding string that xterm would send, or DCS 0 + r P t ST for invalid requests. The strings are
-				// encoded in hexadecimal (2 digits per character).
-				// Example:
-				// :kr=\EOC: ks=\E[?1h\E=: ku=\EOA: le=^H:mb=\E[5m:md=\E[1m:\
-				// where
-				// kd=down-arrow key
-				// kl=left-arrow key
-				// kr=right-arrow key
-				// ku=up-arrow key
-				// #2=key_shome, "shifted home"
-				// #4=key_sleft, "shift arrow left"
-				// %i=key_sright, "shift arrow right"
-				// *7=key_send, "shifted end"
-				// k1=F1 function key
-
-				// Example: Request for ku is "ESC P + q 6 b 7 5 ESC \", where 6b7d=ku in hexadecimal.
-				// Xterm response in normal cursor mode:
-				// "<27> P 1 + r 6 b 7 5 = 1 B 5 B 4 1" where 0x1B 0x5B 0x41 = 27 91 65 = ESC [ A
-				// Xterm response in application cursor mode:
-				// "<27> P 1 + r 6 b 7 5 = 1 B 5 B 4 1" where 0x1B 0x4F 0x41 = 27 91 65 = ESC 0 A
-
-				// #4 is "shift arrow left":
-				// *** Device Control (DCS) for '#4'- 'ESC P + q 23 34 ESC \'
-				// Response: <27> P 1 + r 2 3 3 4 = 1 B 5 B 3 1 3 B 3 2 4 4 <27> \
-				// where 0x1B 0x5B 0x31 0x3B 0x32 0x44 = ESC [ 1 ; 2 D
-				// which we find in: TermKeyListener.java: KEY_MAP.put(KEYMOD_SHIFT | KEYCODE_DPAD_LEFT, "\033[1;2D");
-
-				// See http://h30097.www3.hp.com/docs/base_doc/DOCUMENTATION/V40G_HTML/MAN/MAN4/0178____.HTM for what to
-				// respond, as well as http://www.freebsd.org/cgi/man.cgi?query=termcap&sektion=5#CAPABILITIES for
-				// the meaning of e.g. "ku", "kd", "kr", "kl"
-
-				for (String part : dcs.substring(2).split(";")) {
-					if (part.length() % 2 == 0) {
-						StringBuilder transBuffer = new StringBuilder();
-						for (int i = 0; i < part.length(); i += 2) {
-							char c = (char) Long.decode("0x" + part.charAt(i) + "" + part.charAt(i + 1)).longValue();
-							transBuffer.append(c);
-						}
-						String trans = transBuffer.toString();
-						String responseValue;
+	/** A device control string ("ESC P ${STRING} ESC \\"). */
+	private void doDeviceControl(CharSequence deviceControlString) {
+		String dcs = deviceControlString.toString();
+		// DCS $ q P t ST. Request Status String (DECRQSS)
+		if (dcs.startsWith("$q")) {
+			if (dcs.equals("$q\"p")) {
+				// DECSCL, conformance level, http://www.vt100.net/docs/vt510-rm/DECSCL:
+				String csiString = "64;1\"p";
+				mSession.write("\033P1$r" + csiString + "\033\\");
+			} else {
+				logWarning("Unrecognized DECRQSS string: '" + dcs + "'");
+			}
+		} else if (dcs.startsWith("+q")) {
+			// Request Termcap/Terminfo String. The string following the "q" is a list of names encoded in
+			// hexadecimal (2 digits per character) separated by ; which correspond to termcap or terminfo key
+			// names.
+			// Two special features are also recognized, which are not key names: Co for termcap colors (or colors
+			// for terminfo colors), and TN for termcap name (or name for terminfo name).
+			// xterm responds with DCS 1 + r P t ST for valid requests, adding to P t an = , and the value of the
+			// corresponding string that xterm would send, or DCS 0 + r P t ST for invalid requests. The strings are
+			// encoded in hexadecimal (2 digits per character).
+			// Example:
+			// :kr=\EOC: ks=\E[?1h\E=: ku=\EOA: le=^H:mb=\E[5m:md=\E[1m:\
+			// where
+			// kd=down-arrow key
+			// kl=left-arrow key
+			// kr=right-arrow key
+			// ku=up-arrow key
+			// #2=key_shome, "shifted home"
+			// #4=key_sleft, "shift arrow left"
+			// %i=key_sright, "shift arrow right"
+			// *7=key_send, "shifted end"
+			// k1=F1 function key
+
+			// Example: Request for ku is "ESC P + q 6 b 7 5 ESC \", where 6b7d=ku in hexadecimal.
+			// Xterm response in normal cursor mode:
+			// "<27> P 1 + r 6 b 7 5 = 1 B 5 B 4 1" where 0x1B 0x5B 0x41 = 27 91 65 = ESC [ A
+			// Xterm response in application cursor mode:
+			// "<27> P 1 + r 6 b 7 5 = 1 B 5 B 4 1" where 0x1B 0x4F 0x41 = 27 91 65 = ESC 0 A
+
+			// #4 is "shift arrow left":
+			// *** Device Control (DCS) for '#4'- 'ESC P + q 23 34 ESC \'
+			// Response: <27> P 1 + r 2 3 3 4 = 1 B 5 B 3 1 3 B 3 2 4 4 <27> \
+			// where 0x1B 0x5B 0x31 0x3B 0x32 0x44 = ESC [ 1 ; 2 D
+			// which we find in: TermKeyListener.java: KEY_MAP.put(KEYMOD_SHIFT | KEYCODE_DPAD_LEFT, "\033[1;2D");
+
+			// See http://h30097.www3.hp.com/docs/base_doc/DOCUMENTATION/V40G_HTML/MAN/MAN4/0178____.HTM for what to
+			// respond, as well as http://www.freebsd.org/cgi/man.cgi?query=termcap&sektion=5#CAPABILITIES for
+			// the meaning of e.g. "ku", "kd", "kr", "kl"
+
+			for (String part : dcs.substring(2).split(";")) {
+				if (part.length() % 2 == 0) {
+					StringBuilder transBuffer = new StringBuilder();
+					for (int i = 0; i < part.length(); i += 2) {
+						char c = (char) Long.decode("0x" + part.charAt(i) + "" + part.charAt(i + 1)).longValue();
+						transBuffer.append(c);
+					}
+					String trans = transBuffer.toString();
+					String responseValue;
+					switch (trans) {
+					case "Co":
+					case "colors":
+						responseValue = "256"; // Number of colors.
+						break;
+					case "TN":
+					case "name":
+						responseValue = "xterm";
+						break;
+					default:
+						responseValue = KeyHandler.getCodeFromTermcap(trans, isDecsetInternalBitSet(DECSET_BIT_APPLICATION_CURSOR_KEYS),
+								isDecsetInternalBitSet(DECSET_BIT_APPLICATION_KEYPAD));
+						break;
+					}
+					if (responseValue == null) {
 						switch (trans) {
-						case "Co":
-						case "colors":
-							responseValue = "256"; // Number of colors.
-							break;
-						case "TN":
-						case "name":
-							responseValue = "xterm";
+						case "%1": // Help key - ignore
+						case "&8": // Undo key - ignore.
 							break;
 						default:
-							responseValue = KeyHandler.getCodeFromTermcap(trans, isDecsetInternalBitSet(DECSET_BIT_APPLICATION_CURSOR_KEYS),
-									isDecsetInternalBitSet(DECSET_BIT_APPLICATION_KEYPAD));
-							break;
-						}
-						if (responseValue == null) {
-							switch (trans) {
-							case "%1": // Help key - ignore
-							case "&8": // Undo key - ignore.
-								break;
-							default:
-								Log.w(EmulatorDebug.LOG_TAG, "Unhandled termcap/terminfo name: '" + trans + "'");
-							}
-							// Respond with invalid request:
-							mSession.write("\033P0+r" + part + "\033\\");
-						} else {
-							StringBuilder hexEncoded = new StringBuilder();
-							for (int j = 0; j < responseValue.length(); j++) {
-								hexEncoded.append(String.format("%02X", (int) responseValue.charAt(j)));
-							}
-							mSession.write("\033P1+r" + part + "=" + hexEncoded + "\033\\");
+							Log.w(EmulatorDebug.LOG_TAG, "Unhandled termcap/terminfo name: '" + trans + "'");
 						}
+						// Respond with invalid request:
+						mSession.write("\033P0+r" + part + "\033\\");
 					} else {
-						Log.e(EmulatorDebug.LOG_TAG, "Invalid device termcap/terminfo name of odd length: " + part);
+						StringBuilder hexEncoded = new StringBuilder();
+						for (int j = 0; j < responseValue.length(); j++) {
+							hexEncoded.append(String.format("%02X", (int) responseValue.charAt(j)));
+						}
+						mSession.write("\033P1+r" + part + "=" + hexEncoded + "\033\\");
 					}
+				} else {
+					Log.e(EmulatorDebug.LOG_TAG, "Invalid device termcap/terminfo name of odd length: " + part);
 				}
-			} else {
-				if (LOG_ESCAPE_SEQUENCES) Log.e(EmulatorDebug.LOG_TAG, "Unrecognized device control string: " + dcs);
-			}
-			finishSequence();
-		}
-			break;
-		default:
-			if (mOSCOrDeviceControlArgs.length() > MAX_OSC_STRING_LENGTH) {
-				// Too long.
-				mOSCOrDeviceControlArgs.setLength(0);
-				finishSequence();
-			} else {
-				mOSCOrDeviceControlArgs.appendCodePoint(b);
-				continueSequence(mEscapeState);
 			}
+		} else {
+			if (LOG_ESCAPE_SEQUENCES) Log.e(EmulatorDebug.LOG_TAG, "Unrecognized device control string: " + dcs);
 		}
 	}
 
@@ -905,7 +894,7 @@ public final class TerminalEmulator {
 		return mRightMargin - 1;
 	}
 
-	/** Process byte while in the {@link #ESC_CSI_QUESTIONMARK} escape state. */
+	/** A control sequence with the '?' private marker, "CSI ? ${ARGS} ${FINAL}". */
 	private void doCsiQuestionMark(int b) {
 		switch (b) {
 		case 'J': // Selective erase in display (DECSED - http://www.vt100.net/docs/vt510-rm/DECSED).
@@ -959,8 +948,7 @@ public final class TerminalEmulator {
 				mSession.write(String.format(Locale.US, "\033[?%d;%d;1R", mCursorRow + 1, mCursorCol + 1));
 				break;
 			default:
-				finishSequence();
-				return;
+				break;
 			}
 			break;
 		case 'r':
@@ -979,11 +967,8 @@ public final class TerminalEmulator {
 				}
 			}
 			break;
-		case '$':
-			continueSequence(ESC_CSI_QUESTIONMARK_ARG_DOLLAR);
-			return;
 		default:
-			parseArg(b);
+			unknownSequence(b);
 		}
 	}
 
@@ -1158,17 +1143,11 @@ public final class TerminalEmulator {
 			Log.e(EmulatorDebug.LOG_TAG, "(ignored) CSI > MODIFY RESOURCE: " + getArg0(-1) + " to " + getArg1(-1));
 			break;
 		default:
-			parseArg(b);
+			unknownSequence(b);
 			break;
 		}
 	}
 
-	private void startEscapeSequence() {
-		mEscapeState = ESC;
-		mArgIndex = 0;
-		Arrays.fill(mArgs, -1);
-	}
-
 	private void doLinefeed() {
 		int newCursorRow = mCursorRow + 1;
 		if (newCursorRow >= mBottomMargin) {
@@ -1178,11 +1157,6 @@ public final class TerminalEmulator {
 		setCursorRow(newCursorRow);
 	}
 
-	private void continueSequence(int state) {
-		mEscapeState = state;
-		mContinueSequence = true;
-	}
-
 	private void doEscPound(int b) {
 		switch (b) {
 		case '8': // Esc # 8 - DEC screen alignment test - fill screen with E's.
@@ -1194,18 +1168,9 @@ public final class TerminalEmulator {
 		}
 	}
 
-	/** Encountering a character in the {@link #ESC} state. */
+	/** An escape sequence without intermediate characters, "ESC ${FINAL}". */
 	private void doEsc(int b) {
 		switch (b) {
-		case '#':
-			continueSequence(ESC_POUND);
-			break;
-		case '(':
-			continueSequence(ESC_SELECT_LEFT_PAREN);
-			break;
-		case ')':
-			continueSequence(ESC_SELECT_RIGHT_PAREN);
-			break;
 		case '6': // Back index (http://www.vt100.net/docs/vt510-rm/DECBI). Move left, insert blank column if start.
 			if (mCursorCol > mLeftMargin) {
 				mCursorCol--;
@@ -1256,23 +1221,14 @@ public final class TerminalEmulator {
 		case 'N': // SS2, ignore.
 		case '0': // SS3, ignore.
 			break;
-		case 'P': // Device control string
-			mOSCOrDeviceControlArgs.setLength(0);
-			continueSequence(ESC_P);
-			break;
-		case '[':
-			continueSequence(ESC_CSI);
-			break;
 		case '=': // DECKPAM
 			setDecsetinternalBit(DECSET_BIT_APPLICATION_KEYPAD, true);
 			break;
-		case ']': // OSC
-			mOSCOrDeviceControlArgs.setLength(0);
-			continueSequence(ESC_OSC);
-			break;
 		case '>': // DECKPNM
 			setDecsetinternalBit(DECSET_BIT_APPLICATION_KEYPAD, false);
 			break;
+		case '\\': // String terminator (ST), ending an OSC or device control string which the parser has dispatched.
+			break;
 		default:
 			unknownSequence(b);
 			break;
@@ -1303,24 +1259,9 @@ public final class TerminalEmulator {
 		mUseLineDrawingUsesG0 = state.mUseLineDrawingUsesG0;
 	}
 
-	/** Following a CSI - Control Sequence Introducer, "\033[". {@link #ESC_CSI}. */
+	/** A control sequence without private marker or intermediate characters, "CSI ${ARGS} ${FINAL}". */
 	private void doCsi(int b) {
 		switch (b) {
-		case '!':
-			continueSequence(ESC_CSI_EXCLAMATION);
-			break;
-		case '"':
-			continueSequence(ESC_CSI_DOUBLE_QUOTE);
-			break;
-		case '\'':
-			continueSequence(ESC_CSI_SINGLE_QUOTE);
-			break;
-		case '$':
-			continueSequence(ESC_CSI_DOLLAR);
-			break;
-		case '*':
-			continueSequence(ESC_CSI_ARGS_ASTERIX);
-			break;
 		case '@': {
 			// ESC [ Pn @ - ICH Insert Characters.
 			// "This control function inserts one or more space (SP) characters starting at the cursor position."
@@ -1466,12 +1407,6 @@ public final class TerminalEmulator {
 				}
 			mCursorCol = newCol;
 			break;
-		case '?': // Esc [ ? -- start of a private mode set
-			continueSequence(ESC_CSI_QUESTIONMARK);
-			break;
-		case '>': // "Esc [ >" --
-			continueSequence(ESC_CSI_BIGGERTHAN);
-			break;
 		case '`': // Horizontal position absolute (HPA - http://www.vt100.net/docs/vt510-rm/HPA).
 			setCursorColRespectingOriginMode(getArg0(1) - 1);
 			break;
@@ -1602,11 +1537,8 @@ public final class TerminalEmulator {
 		case 'u': // Restore cursor (ANSI.SYS).
 			restoreCursor();
 			break;
-		case ' ':
-			continueSequence(ESC_CSI_ARGS_SPACE);
-			break;
 		default:
-			parseArg(b);
+			unknownSequence(b);
 			break;
 		}
 	}
@@ -1675,10 +1607,10 @@ public final class TerminalEmulator {
 						} else {
 							int red = mArgs[i + 2], green = mArgs[i + 3], blue = mArgs[i + 4];
 							if (red < 0 || green < 0 || blue < 0 || red > 255 || green > 255 || blue > 255) {
-								finishSequenceAndLogError("Invalid RGB: " + red + "," + green + "," + blue);
+								logWarning("Invalid RGB: " + red + "," + green + "," + blue);
 							} else {
 								// TODO: Implement 24 bit color.
-								finishSequenceAndLogError("Unimplemented RGB: " + red + "," + green + "," + blue);
+								logWarning("Unimplemented RGB: " + red + "," + green + "," + blue);
 							}
 							i += 4; // "2;P_r;P_g;P_r"
 						}
@@ -1686,7 +1618,7 @@ public final class TerminalEmulator {
 						color = mArgs[i + 2];
 						i += 2; // "5;P_s"
 					} else {
-						finishSequenceAndLogError("Invalid ISO-8613-3 SGR first argument: " + firstArg);
+						logWarning("Invalid ISO-8613-3 SGR first argument: " + firstArg);
 					}
 					if (i != -1) {
 						if (color >= 0 && color < TextStyle.NUM_INDEXED_COLORS) {
@@ -1716,44 +1648,15 @@ public final class TerminalEmulator {
 		}
 	}
 
-	private void doOsc(int b) {
-		switch (b) {
-		case 7: // Bell.
-			doOscSetTextParameters("\007");
-			break;
-		case 27: // Escape.
-			continueSequence(ESC_OSC_ESC);
-			break;
-		default:
-			collectOSCArgs(b);
-			break;
-		}
-	}
-
-	private void doOscEsc(int b) {
-		switch (b) {
-		case '\\':
-			doOscSetTextParameters("\033\\");
-			break;
-		default:
-			// The ESC character was not followed by a \, so insert the ESC and
-			// the current character in arg buffer.
-			collectOSCArgs(27);
-			collectOSCArgs(b);
-			continueSequence(ESC_OSC);
-			break;
-		}
-	}
-
 	/** An Operating System Controls (OSC) Set Text Parameters. May come here from BEL or ST. */
-	private void doOscSetTextParameters(String bellOrStringTerminator) {
+	private void doOscSetTextParameters(CharSequence oscString, String bellOrStringTerminator) {
 		int value = -1;
 		String textParameter = "";
 		// Extract initial $value from initial "$value;..." string.
-		for (int mOSCArgTokenizerIndex = 0; mOSCArgTokenizerIndex < mOSCOrDeviceControlArgs.length(); mOSCArgTokenizerIndex++) {
-			char b = mOSCOrDeviceControlArgs.charAt(mOSCArgTokenizerIndex);
+		for (int mOSCArgTokenizerIndex = 0; mOSCArgTokenizerIndex < oscString.length(); mOSCArgTokenizerIndex++) {
+			char b = oscString.charAt(mOSCArgTokenizerIndex);
 			if (b == ';') {
-				textParameter = mOSCOrDeviceControlArgs.substring(mOSCArgTokenizerIndex + 1);
+				textParameter = oscString.subSequence(mOSCArgTokenizerIndex + 1, oscString.length()).toString();
 				break;
 			} else if (b >= '0' && b <= '9') {
 				value = ((value < 0) ? 0 : value * 10) + (b - '0');
@@ -1881,7 +1784,6 @@ public final class TerminalEmulator {
 			unknownParameter(value);
 			break;
 		}
-		finishSequence();
 	}
 
 	private void blockClear(int sx, int sy, int w) {
@@ -1944,31 +1846,6 @@ public final class TerminalEmulator {
 		}
 	}
 
-	/** Process the next ASCII character of a parameter. */
-	private void parseArg(int b) {
-		if (b >= '0' && b <= '9') {
-			if (mArgIndex < mArgs.length) {
-				int oldValue = mArgs[mArgIndex];
-				int thisDigit = b - '0';
-				int value;
-				if (oldValue >= 0) {
-					value = oldValue * 10 + thisDigit;
-				} else {
-					value = thisDigit;
-				}
-				mArgs[mArgIndex] = value;
-			}
-			continueSequence(mEscapeState);
-		} else if (b == ';') {
-			if (mArgIndex < mArgs.length) {
-				mArgIndex++;
-			}
-			continueSequence(mEscapeState);
-		} else {
-			unknownSequence(b);
-		}
-	}
-
 	private int getArg0(int defaultValue) {
 		return getArg(0, defaultValue, true);
 	}
@@ -1985,38 +1862,24 @@ public final class TerminalEmulator {
 		return result;
 	}
 
-	private void collectOSCArgs(int b) {
-		if (mOSCOrDeviceControlArgs.length() < MAX_OSC_STRING_LENGTH) {
-			mOSCOrDeviceControlArgs.appendCodePoint(b);
-			continueSequence(mEscapeState);
-		} else {
-			unknownSequence(b);
-		}
-	}
-
 	private void unimplementedSequence(int b) {
 		logError("Unimplemented sequence char '" + (char) b + "' (U+" + String.format("%04x", b) + ")");
-		finishSequence();
 	}
 
 	private void unknownSequence(int b) {
 		logError("Unknown sequence char '" + (char) b + "' (numeric value=" + b + ")");
-		finishSequence();
 	}
 
 	private void unknownParameter(int parameter) {
 		logError("Unknown parameter: " + parameter);
-		finishSequence();
 	}
 
 	private void logError(String errorType) {
 		if (LOG_ESCAPE_SEQUENCES) {
 			StringBuilder buf = new StringBuilder();
 			buf.append(errorType);
-			buf.append(", escapeState=");
-			buf.append(mEscapeState);
 			boolean firstArg = true;
-			for (int i = 0; i <= mArgIndex; i++) {
+			for (int i = 0; mArgs != null && i <= mArgIndex; i++) {
 				int value = mArgs[i];
 				if (value >= 0) {
 					if (firstArg) {
@@ -2029,17 +1892,12 @@ public final class TerminalEmulator {
 				}
 			}
 			if (!firstArg) buf.append('}');
-			finishSequenceAndLogError(buf.toString());
+			logWarning(buf.toString());
 		}
 	}
 
-	private void finishSequenceAndLogError(String error) {
-		if (LOG_ESCAPE_SEQUENCES) Log.w(EmulatorDebug.LOG_TAG, error);
-		finishSequence();
-	}
-
-	private void finishSequence() {
-		mEscapeState = ESC_NONE;
+	private void logWarning(String warning) {
+		if (LOG_ESCAPE_SEQUENCES) Log.w(EmulatorDebug.LOG_TAG, warning);
 	}
 
 	/**
@@ -2155,7 +2013,7 @@ public final class TerminalEmulator {
 		}
 
 		final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
-		final int displayWidth = WcWidth.width(codePoint);
+		final int displayWidth = mWcWidth.widthOf(codePoint);
 		final boolean cursorInLastColumn = mCursorCol == mRightMargin - 1;
 
 		if (autoWrap) {
@@ -2218,12 +2076,25 @@ public final class TerminalEmulator {
 		mScrollCounter = 0;
 	}
 
+	/**
+	 * Reflow some of the history left in the old number of columns by a resize, see
+	 * {@link TerminalBuffer#reflowPendingHistory(int)}.
+	 *
+	 * @return true if no history is left to reflow.
+	 */
+	public boolean reflowPendingHistory(int maxLines) {
+		return mMainBuffer.reflowPendingHistory(maxLines);
+	}
+
+	/** Release resources held outside of the heap, such as the file history has been spilled to. */
+	public void close() {
+		mMainBuffer.close();
+	}
+
 	/** Reset terminal state so user can interact with it regardless of present state. */
 	public void reset() {
 		mCursorStyle = CURSOR_STYLE_BLOCK;
-		mArgIndex = 0;
-		mContinueSequence = false;
-		mEscapeState = ESC_NONE;
+		mParser.reset();
 		mInsertMode = false;
 		mTopMargin = mLeftMargin = 0;
 		mBottomMargin = mRows;
@@ -2245,7 +2116,6 @@ public final class TerminalEmulator {
 		mSavedDecSetFlags = mSavedStateMain.mSavedDecFlags = mSavedStateAlt.mSavedDecFlags = mCurrentDecSetFlags;
 
 		// XXX: Should we set terminal driver back to IUTF8 with termios?
-		mUtf8Index = mUtf8ToFollow = 0;
 
 		mColors.reset();
 	}
@@ -0,0 +1,240 @@
+package com.termux.terminal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single thread doing the pty I/O of any number of {@link TerminalSession}:s with non-blocking reads and writes
+ * driven by epoll(7), instead of each session having a reader and a writer thread blocking on its pty.
+ *
+ * The state of each registered session is only touched on the loop thread. Other threads ask for it to be looked at
+ * again by queueing its {@link Registration} with {@link #wakeUp(Registration)}, which is done when input to the
+ * process has been queued, when a full output queue has been drained and when the session is finished.
+ */
+public final class TerminalIoLoop {
+
+	/** Events of file descriptors passed to and from the {@link JNI} methods. Shared with jni/termux.c. */
+	static final int EVENT_READ = 1, EVENT_WRITE = 2, EVENT_HANGUP = 4;
+
+	/** The I/O state of a session on the loop. */
+	final class Registration {
+		final TerminalSession mSession;
+		final int mId;
+		final int mFd;
+		final PtyChannel mChannel;
+		/** If this is in {@link #mWakeUps}, so that it is queued at most once. */
+		final AtomicBoolean mWakeUpPending = new AtomicBoolean();
+		private final Runnable mWakeUp = new Runnable() {
+			@Override
+			public void run() {
+				wakeUp(Registration.this);
+			}
+		};
+		/** If reading has stopped since the output queue of the session is full, until the queue has been read from. */
+		volatile boolean mReadPaused;
+		/** Set by {@link #close(Registration)} from another thread. */
+		volatile boolean mCloseRequested;
+		/** The events currently watched for, see {@link JNI#setIoEvents(int, int, int, int)}. */
+		int mEvents;
+		boolean mClosed;
+
+		Registration(TerminalSession session, int id) {
+			mSession = session;
+			mId = id;
+			mFd = session.mTerminalFileDescriptor;
+			mChannel = new PtyChannel(mFd);
+		}
+
+		/** Called by the consumer of the output queue after reading from it, to resume reading if it was full. */
+		void onOutputConsumed() {
+			if (mReadPaused) wakeUp(this);
+		}
+
+		/**
+		 * Queue input to the process, blocking while the input queue is full like {@link ByteQueue#write}, and waking up
+		 * the loop to write out each part queued.
+		 */
+		void write(byte[] data, int offset, int count) {
+			mSession.mTerminalToProcessIOQueue.write(data, offset, count, mWakeUp);
+		}
+	}
+
+	private final int mEpollFd;
+	private final int mWakeFd;
+	/** Registrations queued to be looked at by the loop thread. */
+	private final ConcurrentLinkedQueue<Registration> mWakeUps = new ConcurrentLinkedQueue<>();
+	/** The registrations watched by epoll, by id. Only accessed on the loop thread. */
+	private final Map<Integer, Registration> mRegistrations = new HashMap<>();
+	private int mNextId;
+
+	/** Create the epoll instance and start the loop thread, which runs for the remaining life of the process. */
+	public TerminalIoLoop() {
+		int[] wakeFd = new int[1];
+		mEpollFd = JNI.createIoLoop(wakeFd);
+		mWakeFd = wakeFd[0];
+
+		Thread thread = new Thread("TermuxIoLoop") {
+			@Override
+			public void run() {
+				loop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Create the registration of a session, whose I/O is not done until {@link #start(Registration)}. */
+	synchronized Registration register(TerminalSession session) {
+		return new Registration(session, mNextId++);
+	}
+
+	/** Start doing the I/O of a session, whose process output will be written to its output queue. */
+	void start(Registration registration) {
+		wakeUp(registration);
+	}
+
+	/** Stop doing the I/O of a session and close its pty, after which the exit of its process is waited for. */
+	void close(Registration registration) {
+		registration.mCloseRequested = true;
+		wakeUp(registration);
+	}
+
+	void wakeUp(Registration registration) {
+		if (!registration.mWakeUpPending.getAndSet(true)) {
+			mWakeUps.add(registration);
+			JNI.wakeIoLoop(mWakeFd);
+		}
+	}
+
+	private void loop() {
+		final int[] ready = new int[128];
+		while (true) {
+			Registration registration;
+			while ((registration = mWakeUps.poll()) != null) {
+				registration.mWakeUpPending.set(false);
+				if (!registration.mClosed) {
+					mRegistrations.put(registration.mId, registration);
+					service(registration, 0);
+				}
+			}
+
+			final int readyCount = JNI.waitForIo(mEpollFd, mWakeFd, ready);
+			for (int i = 0; i < readyCount; i++) {
+				registration = mRegistrations.get(ready[2 * i]);
+				if (registration != null) service(registration, ready[2 * i + 1]);
+			}
+		}
+	}
+
+	private void service(Registration registration, int readyEvents) {
+		if (registration.mCloseRequested) {
+			finish(registration);
+			return;
+		}
+
+		if ((readyEvents & (EVENT_READ | EVENT_HANGUP)) != 0 && !readOutput(registration)) {
+			finish(registration);
+			return;
+		}
+		if (registration.mReadPaused && registration.mSession.mProcessToTerminalIOQueue.freeSpace() > 0) registration.mReadPaused = false;
+
+		final boolean writePending = writeInput(registration);
+		final int events = (registration.mReadPaused ? 0 : EVENT_READ) | (writePending ? EVENT_WRITE : 0);
+		if (events != registration.mEvents) {
+			JNI.setIoEvents(mEpollFd, registration.mFd, registration.mId, events);
+			registration.mEvents = events;
+		}
+	}
+
+	/** Read process output as far as it fits in the output queue. Returns false at end of output. */
+	private boolean readOutput(Registration registration) {
+		final ByteQueue queue = registration.mSession.mProcessToTerminalIOQueue;
+		if (queue.freeSpace() == 0) {
+			// Stop watching the pty until the queue is read from. Check again after pausing, since the consumer
+			// checks the flag after reading:
+			registration.mReadPaused = true;
+			if (queue.freeSpace() > 0) registration.mReadPaused = false;
+			return true;
+		}
+
+		final int bytesRead;
+		try {
+			bytesRead = queue.readFrom(registration.mChannel);
+		} catch (IOException e) {
+			return false;
+		}
+		if (bytesRead < 0) return false;
+		if (bytesRead > 0) registration.mSession.notifyNewInput();
+		return true;
+	}
+
+	/** Write queued input to the pty until it would block. Returns if input remains to be written. */
+	private boolean writeInput(Registration registration) {
+		final ByteQueue queue = registration.mSession.mTerminalToProcessIOQueue;
+		while (true) {
+			int written;
+			try {
+				written = queue.writeTo(registration.mChannel);
+			} catch (IOException e) {
+				written = -1;
+			}
+			// On error the process is gone, which the read side will notice:
+			if (written < 0) return false;
+			if (written == 0) return queue.peek() != null;
+		}
+	}
+
+	/** Stop watching and close the pty of a session, which finishes once its process has exited. */
+	private void finish(Registration registration) {
+		if (registration.mEvents != 0) JNI.setIoEvents(mEpollFd, registration.mFd, registration.mId, 0);
+		mRegistrations.remove(registration.mId);
+		registration.mClosed = true;
+		JNI.close(registration.mFd);
+		registration.mSession.onOutputEnded();
+	}
+
+	/**
+	 * A non-blocking pty as a channel for the queues of a session. Reads and writes go through {@link JNI}, since a
+	 * FileChannel does not expect the file descriptor to be non-blocking.
+	 */
+	private static final class PtyChannel implements ByteChannel {
+		private final int mFd;
+
+		PtyChannel(int fd) {
+			mFd = fd;
+		}
+
+		/** Returns 0 if nothing is available, or -1 at end of output or on error. */
+		@Override
+		public int read(ByteBuffer buffer) {
+			final int bytesRead = JNI.read(mFd, buffer, buffer.position(), buffer.remaining());
+			if (bytesRead > 0) buffer.position(buffer.position() + bytesRead);
+			return bytesRead;
+		}
+
+		/** Returns 0 if writing would block. */
+		@Override
+		public int write(ByteBuffer buffer) throws IOException {
+			final int bytesWritten = JNI.write(mFd, buffer, buffer.position(), buffer.remaining());
+			if (bytesWritten < 0) throw new IOException("Error writing to pty");
+			if (bytesWritten > 0) buffer.position(buffer.position() + bytesWritten);
+			return bytesWritten;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		/** The pty is closed by {@link TerminalIoLoop#finish(Registration)}. */
+		@Override
+		public void close() {
+		}
+	}
+
+}
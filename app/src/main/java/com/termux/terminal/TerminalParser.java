@@ -0,0 +1,277 @@
+package com.termux.terminal;
+
+import java.util.Arrays;
+
+/**
+ * A parser of the escape sequences in terminal output, following the state machine of the DEC parser described at
+ * http://vt100.net/emu/dec_ansi_parser and driven by a table of transitions indexed by the current state and the next
+ * character.
+ *
+ * The parser does not act on what it recognizes but reports it to a {@link Dispatcher}, so that it can be benchmarked
+ * and fuzzed without a {@link TerminalEmulator}. C1 control characters are expected to have been replaced by their
+ * 7-bit "ESC Fe" equivalents, and code points above 127 are handled like printable ASCII characters in text and strings
+ * and cancel any other sequence.
+ */
+final class TerminalParser {
+
+	/** Receives the actions of a {@link TerminalParser}. */
+	interface Dispatcher {
+
+		/** A character to be displayed. */
+		void print(int codePoint);
+
+		/** A C0 control character, which is also executed in the middle of escape and control sequences. */
+		void execute(int controlCharacter);
+
+		/**
+		 * An escape sequence, "ESC ${INTERMEDIATES} ${FINAL}".
+		 *
+		 * @param intermediates
+		 *            the intermediate characters, the first in the lowest 8 bits and the second one, if any, in the next
+		 *            8 bits. Zero if there are none.
+		 */
+		void escDispatch(int intermediates, int finalCharacter);
+
+		/**
+		 * A control sequence, "CSI ${PRIVATE_MARKER} ${PARAMETERS} ${INTERMEDIATES} ${FINAL}".
+		 *
+		 * @param privateMarker
+		 *            one of the characters '<', '=', '>' or '?' if the sequence starts with it, otherwise zero.
+		 * @param parameters
+		 *            the parameters, with -1 for those which are missing or empty. Only valid until the method returns.
+		 * @param parameterCount
+		 *            the number of parameters, which is zero if there are none and one more than the number of ';'
+		 *            separators otherwise.
+		 * @param intermediates
+		 *            as for {@link #escDispatch(int, int)}.
+		 */
+		void csiDispatch(int privateMarker, int[] parameters, int parameterCount, int intermediates, int finalCharacter);
+
+		/** An Operating System Command, "ESC ] ${STRING} ${TERMINATOR}", terminated by BEL or by ESC. */
+		void oscDispatch(CharSequence string, boolean bellTerminated);
+
+		/** A Device Control String, "ESC P ${STRING} ESC", including any parameters and intermediates of the string. */
+		void dcsDispatch(CharSequence string);
+
+	}
+
+	/** The maximum number of parameters of a control sequence, with any further parameters ignored. */
+	static final int MAX_PARAMETERS = 16;
+	/** Values of parameters above this are clamped to it. */
+	static final int MAX_PARAMETER_VALUE = 65535;
+	/** Needs to be large enough to contain reasonable OSC 52 pastes. Longer strings are cancelled. */
+	static final int MAX_STRING_LENGTH = 8192;
+
+	private static final int STATE_GROUND = 0;
+	private static final int STATE_ESCAPE = 1;
+	private static final int STATE_ESCAPE_INTERMEDIATE = 2;
+	private static final int STATE_CSI_ENTRY = 3;
+	private static final int STATE_CSI_PARAM = 4;
+	private static final int STATE_CSI_INTERMEDIATE = 5;
+	private static final int STATE_CSI_IGNORE = 6;
+	private static final int STATE_OSC_STRING = 7;
+	private static final int STATE_DCS_STRING = 8;
+	/** SOS, PM and APC strings, which are ignored. */
+	private static final int STATE_IGNORED_STRING = 9;
+	private static final int STATES = 10;
+
+	private static final int ACTION_NONE = 0;
+	private static final int ACTION_PRINT = 1;
+	private static final int ACTION_EXECUTE = 2;
+	/** Start a new escape sequence. */
+	private static final int ACTION_CLEAR = 3;
+	private static final int ACTION_COLLECT = 4;
+	private static final int ACTION_PRIVATE_MARKER = 5;
+	private static final int ACTION_PARAM = 6;
+	private static final int ACTION_ESC_DISPATCH = 7;
+	private static final int ACTION_CSI_DISPATCH = 8;
+	private static final int ACTION_STRING_START = 9;
+	private static final int ACTION_STRING_PUT = 10;
+	/** End an OSC string with BEL. */
+	private static final int ACTION_OSC_END = 11;
+	/** End an OSC or DCS string with ESC, which also starts a new escape sequence. */
+	private static final int ACTION_STRING_END_ESCAPE = 12;
+
+	/** The column of the transition table used for all code points above 127. */
+	private static final int NON_ASCII = 128;
+	private static final int COLUMNS = NON_ASCII + 1;
+
+	/** The action (high four bits) and next state (low four bits) indexed by state * COLUMNS + character. */
+	private static final byte[] TRANSITIONS = new byte[STATES * COLUMNS];
+
+	static {
+		for (int state = 0; state < STATES; state++) {
+			final boolean string = state >= STATE_OSC_STRING;
+			// C0 control characters are executed except in strings. CAN and SUB cancel any sequence and ESC starts a new
+			// one from any state:
+			setTransitions(state, 0x00, 0x1F, string ? ACTION_NONE : ACTION_EXECUTE, state);
+			setTransitions(state, 0x18, 0x18, ACTION_EXECUTE, STATE_GROUND);
+			setTransitions(state, 0x1A, 0x1A, ACTION_EXECUTE, STATE_GROUND);
+			setTransitions(state, 0x1B, 0x1B, ACTION_CLEAR, STATE_ESCAPE);
+			setTransitions(state, 0x7F, 0x7F, ACTION_NONE, state);
+		}
+
+		setTransitions(STATE_GROUND, 0x20, 0x7E, ACTION_PRINT, STATE_GROUND);
+		setTransitions(STATE_GROUND, NON_ASCII, NON_ASCII, ACTION_PRINT, STATE_GROUND);
+
+		setTransitions(STATE_ESCAPE, 0x20, 0x2F, ACTION_COLLECT, STATE_ESCAPE_INTERMEDIATE);
+		setTransitions(STATE_ESCAPE, 0x30, 0x7E, ACTION_ESC_DISPATCH, STATE_GROUND);
+		setTransitions(STATE_ESCAPE, '[', '[', ACTION_NONE, STATE_CSI_ENTRY);
+		setTransitions(STATE_ESCAPE, ']', ']', ACTION_STRING_START, STATE_OSC_STRING);
+		setTransitions(STATE_ESCAPE, 'P', 'P', ACTION_STRING_START, STATE_DCS_STRING);
+		setTransitions(STATE_ESCAPE, 'X', 'X', ACTION_NONE, STATE_IGNORED_STRING);
+		setTransitions(STATE_ESCAPE, '^', '^', ACTION_NONE, STATE_IGNORED_STRING);
+		setTransitions(STATE_ESCAPE, '_', '_', ACTION_NONE, STATE_IGNORED_STRING);
+		setTransitions(STATE_ESCAPE, NON_ASCII, NON_ASCII, ACTION_NONE, STATE_GROUND);
+
+		setTransitions(STATE_ESCAPE_INTERMEDIATE, 0x20, 0x2F, ACTION_COLLECT, STATE_ESCAPE_INTERMEDIATE);
+		setTransitions(STATE_ESCAPE_INTERMEDIATE, 0x30, 0x7E, ACTION_ESC_DISPATCH, STATE_GROUND);
+		setTransitions(STATE_ESCAPE_INTERMEDIATE, NON_ASCII, NON_ASCII, ACTION_NONE, STATE_GROUND);
+
+		setTransitions(STATE_CSI_ENTRY, 0x20, 0x2F, ACTION_COLLECT, STATE_CSI_INTERMEDIATE);
+		setTransitions(STATE_CSI_ENTRY, 0x30, 0x39, ACTION_PARAM, STATE_CSI_PARAM);
+		setTransitions(STATE_CSI_ENTRY, ':', ':', ACTION_NONE, STATE_CSI_IGNORE);
+		setTransitions(STATE_CSI_ENTRY, ';', ';', ACTION_PARAM, STATE_CSI_PARAM);
+		setTransitions(STATE_CSI_ENTRY, 0x3C, 0x3F, ACTION_PRIVATE_MARKER, STATE_CSI_PARAM);
+		setTransitions(STATE_CSI_ENTRY, 0x40, 0x7E, ACTION_CSI_DISPATCH, STATE_GROUND);
+		setTransitions(STATE_CSI_ENTRY, NON_ASCII, NON_ASCII, ACTION_NONE, STATE_GROUND);
+
+		setTransitions(STATE_CSI_PARAM, 0x20, 0x2F, ACTION_COLLECT, STATE_CSI_INTERMEDIATE);
+		setTransitions(STATE_CSI_PARAM, 0x30, 0x39, ACTION_PARAM, STATE_CSI_PARAM);
+		setTransitions(STATE_CSI_PARAM, ':', ':', ACTION_NONE, STATE_CSI_IGNORE);
+		setTransitions(STATE_CSI_PARAM, ';', ';', ACTION_PARAM, STATE_CSI_PARAM);
+		setTransitions(STATE_CSI_PARAM, 0x3C, 0x3F, ACTION_NONE, STATE_CSI_IGNORE);
+		setTransitions(STATE_CSI_PARAM, 0x40, 0x7E, ACTION_CSI_DISPATCH, STATE_GROUND);
+		setTransitions(STATE_CSI_PARAM, NON_ASCII, NON_ASCII, ACTION_NONE, STATE_GROUND);
+
+		setTransitions(STATE_CSI_INTERMEDIATE, 0x20, 0x2F, ACTION_COLLECT, STATE_CSI_INTERMEDIATE);
+		setTransitions(STATE_CSI_INTERMEDIATE, 0x30, 0x3F, ACTION_NONE, STATE_CSI_IGNORE);
+		setTransitions(STATE_CSI_INTERMEDIATE, 0x40, 0x7E, ACTION_CSI_DISPATCH, STATE_GROUND);
+		setTransitions(STATE_CSI_INTERMEDIATE, NON_ASCII, NON_ASCII, ACTION_NONE, STATE_GROUND);
+
+		setTransitions(STATE_CSI_IGNORE, 0x20, 0x3F, ACTION_NONE, STATE_CSI_IGNORE);
+		setTransitions(STATE_CSI_IGNORE, 0x40, 0x7E, ACTION_NONE, STATE_GROUND);
+		setTransitions(STATE_CSI_IGNORE, NON_ASCII, NON_ASCII, ACTION_NONE, STATE_GROUND);
+
+		setTransitions(STATE_OSC_STRING, 0x07, 0x07, ACTION_OSC_END, STATE_GROUND);
+		setTransitions(STATE_OSC_STRING, 0x1B, 0x1B, ACTION_STRING_END_ESCAPE, STATE_ESCAPE);
+		setTransitions(STATE_OSC_STRING, 0x20, 0x7E, ACTION_STRING_PUT, STATE_OSC_STRING);
+		setTransitions(STATE_OSC_STRING, NON_ASCII, NON_ASCII, ACTION_STRING_PUT, STATE_OSC_STRING);
+
+		setTransitions(STATE_DCS_STRING, 0x1B, 0x1B, ACTION_STRING_END_ESCAPE, STATE_ESCAPE);
+		setTransitions(STATE_DCS_STRING, 0x20, 0x7E, ACTION_STRING_PUT, STATE_DCS_STRING);
+		setTransitions(STATE_DCS_STRING, NON_ASCII, NON_ASCII, ACTION_STRING_PUT, STATE_DCS_STRING);
+
+		setTransitions(STATE_IGNORED_STRING, 0x20, 0x7E, ACTION_NONE, STATE_IGNORED_STRING);
+		setTransitions(STATE_IGNORED_STRING, NON_ASCII, NON_ASCII, ACTION_NONE, STATE_IGNORED_STRING);
+	}
+
+	private static void setTransitions(int state, int firstCharacter, int lastCharacter, int action, int nextState) {
+		for (int c = firstCharacter; c <= lastCharacter; c++)
+			TRANSITIONS[state * COLUMNS + c] = (byte) ((action << 4) | nextState);
+	}
+
+	private final Dispatcher mDispatcher;
+	private int mState = STATE_GROUND;
+	private int mPrivateMarker;
+	private int mIntermediates;
+	/** The number of intermediate characters, of which only the first two are kept. */
+	private int mIntermediateCount;
+	private final int[] mParameters = new int[MAX_PARAMETERS];
+	/** The index of the parameter being parsed, which may be past the ones kept. */
+	private int mParameterIndex;
+	private int mParameterCount;
+	private final StringBuilder mString = new StringBuilder();
+
+	TerminalParser(Dispatcher dispatcher) {
+		mDispatcher = dispatcher;
+		clear();
+	}
+
+	/** If not in the middle of an escape sequence or string, so that the next printable character will be printed. */
+	boolean isInGround() {
+		return mState == STATE_GROUND;
+	}
+
+	/** Cancel any escape sequence or string being parsed. */
+	void reset() {
+		mState = STATE_GROUND;
+		mString.setLength(0);
+	}
+
+	/** Process the next code point of the terminal output. */
+	void advance(int codePoint) {
+		final int transition = TRANSITIONS[mState * COLUMNS + (codePoint < NON_ASCII ? codePoint : NON_ASCII)];
+		int nextState = transition & 0x0F;
+		switch ((transition >> 4) & 0x0F) {
+		case ACTION_NONE:
+			break;
+		case ACTION_PRINT:
+			mDispatcher.print(codePoint);
+			break;
+		case ACTION_EXECUTE:
+			mDispatcher.execute(codePoint);
+			break;
+		case ACTION_CLEAR:
+			clear();
+			break;
+		case ACTION_COLLECT:
+			if (mIntermediateCount < 2) mIntermediates |= codePoint << (8 * mIntermediateCount);
+			mIntermediateCount++;
+			break;
+		case ACTION_PRIVATE_MARKER:
+			mPrivateMarker = codePoint;
+			break;
+		case ACTION_PARAM:
+			if (codePoint == ';') {
+				if (++mParameterIndex < MAX_PARAMETERS) mParameterCount = mParameterIndex + 1;
+			} else if (mParameterIndex < MAX_PARAMETERS) {
+				final int oldValue = mParameters[mParameterIndex];
+				mParameters[mParameterIndex] = Math.min(MAX_PARAMETER_VALUE, (oldValue < 0 ? 0 : oldValue * 10) + (codePoint - '0'));
+				mParameterCount = mParameterIndex + 1;
+			}
+			break;
+		case ACTION_ESC_DISPATCH:
+			// Sequences with more intermediates than are kept are ignored:
+			if (mIntermediateCount <= 2) mDispatcher.escDispatch(mIntermediates, codePoint);
+			break;
+		case ACTION_CSI_DISPATCH:
+			if (mIntermediateCount <= 2) mDispatcher.csiDispatch(mPrivateMarker, mParameters, mParameterCount, mIntermediates, codePoint);
+			break;
+		case ACTION_STRING_START:
+			mString.setLength(0);
+			break;
+		case ACTION_STRING_PUT:
+			if (mString.length() < MAX_STRING_LENGTH) {
+				mString.appendCodePoint(codePoint);
+			} else {
+				// Too long, so drop the string and display what follows it.
+				mString.setLength(0);
+				nextState = STATE_GROUND;
+			}
+			break;
+		case ACTION_OSC_END:
+			mDispatcher.oscDispatch(mString, true);
+			mString.setLength(0);
+			break;
+		case ACTION_STRING_END_ESCAPE:
+			if (mState == STATE_OSC_STRING) {
+				mDispatcher.oscDispatch(mString, false);
+			} else {
+				mDispatcher.dcsDispatch(mString);
+			}
+			mString.setLength(0);
+			clear();
+			break;
+		}
+		mState = nextState;
+	}
+
+	private void clear() {
+		mPrivateMarker = 0;
+		mIntermediates = mIntermediateCount = 0;
+		mParameterIndex = mParameterCount = 0;
+		Arrays.fill(mParameters, -1);
+	}
+
+}
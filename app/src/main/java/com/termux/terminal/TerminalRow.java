@@ -5,12 +5,22 @@ import java.util.Arrays;
 /**
  * A row in a terminal, composed of a fixed number of cells.
  * 
- * The text in the row is stored in a char[] array, {@link #mText}, for quick access during rendering.
+ * The text in the row is stored in a char[] array, {@link #mText}, for quick access during rendering. Since a cell may
+ * use a varying number of java chars (surrogate pairs, combining characters and wide characters spanning two cells),
+ * an index from column to char offset is kept in {@link #mColumnStart} so that cells can be found without scanning the
+ * row from its start.
  */
 public final class TerminalRow {
 
 	private static final float SPARE_CAPACITY_FACTOR = 1.5f;
 
+	/**
+	 * The maximum number of java chars a column may use, including combining characters. Combining characters which
+	 * would exceed this are dropped, so that the size of a row and the cost of setting a character in it stays bounded
+	 * whatever is output.
+	 */
+	static final int MAX_CHARS_PER_COLUMN = 16;
+
 	/** The number of columns in this terminal row. */
 	private final int mColumns;
 	/** The text filling this terminal row. */
@@ -21,12 +31,29 @@ public final class TerminalRow {
 	boolean mLineWrap;
 	/** The style bits of each cell in the row. See {@link TextStyle}. */
 	final int[] mStyle;
+	/**
+	 * The index in {@link #mText} where each column starts, with the second column of a wide character having the same
+	 * index as the first one. Only valid for the first {@link #mIndexedColumns} columns, see
+	 * {@link #indexColumnsUpTo(int)}.
+	 */
+	private final short[] mColumnStart;
+	/** The number of columns at the start of the row for which {@link #mColumnStart} is valid. */
+	private int mIndexedColumns;
+	/** The widths of code points in this row. */
+	private final WcWidth mWcWidth;
 
 	/** Construct a blank row (containing only whitespace, ' ') with a specified style. */
 	public TerminalRow(int columns, int style) {
+		this(columns, style, WcWidth.DEFAULT);
+	}
+
+	/** Construct a blank row with a specified style, whose code points have their widths from wcWidth. */
+	public TerminalRow(int columns, int style, WcWidth wcWidth) {
 		mColumns = columns;
+		mWcWidth = wcWidth;
 		mText = new char[(int) (SPARE_CAPACITY_FACTOR * columns)];
 		mStyle = new int[columns];
+		mColumnStart = new short[columns];
 		clear(style);
 	}
 
@@ -45,7 +72,7 @@ public final class TerminalRow {
 				codePoint = ' ';
 				startingFromSecondHalfOfWideChar = false;
 			}
-			int w = WcWidth.width(codePoint);
+			int w = mWcWidth.widthOf(codePoint);
 			if (w > 0) {
 				destinationX += latestNonCombiningWidth;
 				sourceX1 += latestNonCombiningWidth;
@@ -62,67 +89,113 @@ public final class TerminalRow {
 	/** Note that the column may end of second half of wide character. */
 	public int findStartOfColumn(int column) {
 		if (column == mColumns) return getSpaceUsed();
+		indexColumnsUpTo(column);
+		return mColumnStart[column];
+	}
 
-		int currentColumn = 0;
-		int currentCharIndex = 0;
-		while (true) { // 0<2 1 < 2
-			int newCharIndex = currentCharIndex;
-			char c = mText[newCharIndex++]; // cci=1, cci=2
-			boolean isHigh = Character.isHighSurrogate(c);
-			int codePoint = isHigh ? Character.toCodePoint(c, mText[newCharIndex++]) : c;
-			int wcwidth = WcWidth.width(codePoint); // 1, 2
-			if (wcwidth > 0) {
-				currentColumn += wcwidth;
-				if (currentColumn == column) {
-					while (newCharIndex < mSpaceUsed) {
-						// Skip combining chars.
-						if (Character.isHighSurrogate(mText[newCharIndex])) {
-							if (WcWidth.width(Character.toCodePoint(mText[newCharIndex], mText[newCharIndex + 1])) <= 0) {
-								newCharIndex += 2;
-							} else {
-								break;
-							}
-						} else if (WcWidth.width(mText[newCharIndex]) <= 0) {
-							newCharIndex++;
-						} else {
-							break;
-						}
-					}
-					return newCharIndex;
-				} else if (currentColumn > column) {
-					// Wide column going past end.
-					return currentCharIndex;
-				}
+	/**
+	 * The column containing the char at the specified index of {@link #mText}, the inverse of
+	 * {@link #findStartOfColumn(int)}. Returns the first column of wide characters, and the number of columns for an
+	 * index at or after the end of the used text.
+	 */
+	public int findColumnOfCharIndex(int charIndex) {
+		if (charIndex >= mSpaceUsed) return mColumns;
+		indexColumnsUpTo(mColumns - 1);
+		int low = 0, high = mIndexedColumns - 1;
+		while (low < high) {
+			final int middle = (low + high + 1) >>> 1;
+			if (mColumnStart[middle] <= charIndex) {
+				low = middle;
+			} else {
+				high = middle - 1;
 			}
-			currentCharIndex = newCharIndex;
 		}
+		if (low > 0 && mColumnStart[low - 1] == mColumnStart[low]) low--;
+		return low;
 	}
 
 	private boolean wideDisplayCharacterStartingAt(int column) {
-		for (int currentCharIndex = 0, currentColumn = 0; currentCharIndex < mSpaceUsed;) {
-			char c = mText[currentCharIndex++];
-			int codePoint = Character.isHighSurrogate(c) ? Character.toCodePoint(c, mText[currentCharIndex++]) : c;
-			int wcwidth = WcWidth.width(codePoint);
-			if (wcwidth > 0) {
-				if (currentColumn == column && wcwidth == 2) return true;
-				currentColumn += wcwidth;
-				if (currentColumn > column) return false;
+		if (column < 0 || column + 1 >= mColumns) return false;
+		indexColumnsUpTo(column + 1);
+		return mColumnStart[column] == mColumnStart[column + 1];
+	}
+
+	/** If the column contains a single java char of display width one, which can be replaced in place. */
+	private boolean isSingleNarrowCharAt(int column) {
+		final int nextColumn = column + 1;
+		final boolean lastColumn = nextColumn == mColumns;
+		indexColumnsUpTo(lastColumn ? column : nextColumn);
+		final int startIndex = mColumnStart[column];
+		final int endIndex = lastColumn ? mSpaceUsed : mColumnStart[nextColumn];
+		// The second column of a wide character followed by a narrow one would otherwise also look like this:
+		return endIndex - startIndex == 1 && (column == 0 || mColumnStart[column - 1] != startIndex);
+	}
+
+	/**
+	 * Make {@link #mColumnStart} valid up to and including the specified column by scanning {@link #mText} from the last
+	 * valid column onwards. Modifications only invalidate the index from the modified column, so writing a row from
+	 * left to right only scans each character once.
+	 */
+	private void indexColumnsUpTo(int column) {
+		if (column < mIndexedColumns) return;
+
+		int currentColumn = mIndexedColumns;
+		int charIndex = 0;
+		if (currentColumn > 0) {
+			// Rescan the last indexed column, starting at the first column of its character if wide, to find its end:
+			currentColumn--;
+			if (currentColumn > 0 && mColumnStart[currentColumn - 1] == mColumnStart[currentColumn]) currentColumn--;
+			charIndex = mColumnStart[currentColumn];
+		}
+
+		final char[] text = mText;
+		final int spaceUsed = mSpaceUsed;
+		while (currentColumn <= column && charIndex < spaceUsed) {
+			char c = text[charIndex];
+			int codePoint = Character.isHighSurrogate(c) ? Character.toCodePoint(c, text[charIndex + 1]) : c;
+			int wcwidth = mWcWidth.widthOf(codePoint);
+			final int startOfColumn = charIndex;
+			charIndex += Character.charCount(codePoint);
+			if (wcwidth <= 0) continue;
+
+			mColumnStart[currentColumn] = (short) startOfColumn;
+			if (wcwidth == 2 && currentColumn + 1 < mColumns) mColumnStart[currentColumn + 1] = (short) startOfColumn;
+			currentColumn += wcwidth;
+
+			// Skip combining chars, which belong to the column they follow.
+			while (charIndex < spaceUsed) {
+				c = text[charIndex];
+				codePoint = Character.isHighSurrogate(c) ? Character.toCodePoint(c, text[charIndex + 1]) : c;
+				if (mWcWidth.widthOf(codePoint) > 0) break;
+				charIndex += Character.charCount(codePoint);
 			}
 		}
-		return false;
+		mIndexedColumns = Math.min(currentColumn, mColumns);
 	}
 
 	public void clear(int style) {
 		Arrays.fill(mText, ' ');
 		Arrays.fill(mStyle, style);
 		mSpaceUsed = (short) mColumns;
+		for (int i = 0; i < mColumns; i++)
+			mColumnStart[i] = (short) i;
+		mIndexedColumns = mColumns;
+		mLineWrap = false;
 	}
 
 	// https://github.com/steven676/Android-Terminal-Emulator/commit/9a47042620bec87617f0b4f5d50568535668fe26
 	public void setChar(int columnToSet, int codePoint, int style) {
 		mStyle[columnToSet] = style;
 
-		final int newCodePointDisplayWidth = WcWidth.width(codePoint);
+		final int newCodePointDisplayWidth = mWcWidth.widthOf(codePoint);
+
+		// Fast path for replacing a single narrow java char with another one, which leaves the rest of the row as is:
+		if (newCodePointDisplayWidth == 1 && codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT && !Character.isSurrogate((char) codePoint)
+				&& isSingleNarrowCharAt(columnToSet)) {
+			mText[mColumnStart[columnToSet]] = (char) codePoint;
+			return;
+		}
+
 		final boolean newIsCombining = newCodePointDisplayWidth <= 0;
 
 		boolean wasExtraColForWideChar = (columnToSet > 0) && wideDisplayCharacterStartingAt(columnToSet - 1);
@@ -140,7 +213,7 @@ public final class TerminalRow {
 
 		char[] text = mText;
 		final int oldStartOfColumnIndex = findStartOfColumn(columnToSet);
-		final int oldCodePointDisplayWidth = WcWidth.width(text, oldStartOfColumnIndex);
+		final int oldCodePointDisplayWidth = mWcWidth.widthOf(text, oldStartOfColumnIndex);
 
 		// Get the number of elements in the mText array this column uses now
 		int oldCharactersUsedForColumn;
@@ -156,11 +229,13 @@ public final class TerminalRow {
 		if (newIsCombining) {
 			// Combining characters are added to the contents of the column instead of overwriting them, so that they
 			// modify the existing contents.
-			// FIXME: Put a limit of combining characters.
-			// FIXME: Unassigned characters also get width=0.
 			newCharactersUsedForColumn += oldCharactersUsedForColumn;
+			if (newCharactersUsedForColumn > MAX_CHARS_PER_COLUMN) return;
 		}
 
+		// The text of this column and the rest of the row is about to change:
+		mIndexedColumns = Math.min(mIndexedColumns, columnToSet);
+
 		int oldNextColumnIndex = oldStartOfColumnIndex + oldCharactersUsedForColumn;
 		int newNextColumnIndex = oldStartOfColumnIndex + newCharactersUsedForColumn;
 
@@ -218,6 +293,60 @@ public final class TerminalRow {
 		}
 	}
 
+	/**
+	 * Set a run of printable ASCII characters (0x20-0x7E) starting at a column, with the same result as calling
+	 * {@link #setChar(int, int, int)} for each of them but only scanning the row once.
+	 */
+	public void setAsciiChars(int column, int[] source, int sourceOffset, int count, int style) {
+		if (count <= 2) {
+			for (int i = 0; i < count; i++)
+				setChar(column + i, source[sourceOffset + i], style);
+			return;
+		}
+
+		// Setting the first and last column through setChar() takes care of wide characters overlapping the run
+		// boundaries, after which the columns in between occupy a contiguous range of mText which is replaced at once.
+		final int lastColumn = column + count - 1;
+		setChar(column, source[sourceOffset], style);
+		setChar(lastColumn, source[sourceOffset + count - 1], style);
+
+		final int middleStartIndex = findStartOfColumn(column + 1);
+		final int oldMiddleEndIndex = findStartOfColumn(lastColumn);
+		final int middleCount = count - 2;
+		final int javaCharDifference = middleCount - (oldMiddleEndIndex - middleStartIndex);
+
+		char[] text = mText;
+		if (mSpaceUsed + javaCharDifference > text.length) {
+			char[] newText = new char[text.length + mColumns];
+			System.arraycopy(text, 0, newText, 0, middleStartIndex);
+			System.arraycopy(text, oldMiddleEndIndex, newText, middleStartIndex + middleCount, mSpaceUsed - oldMiddleEndIndex);
+			mText = text = newText;
+		} else if (javaCharDifference != 0) {
+			System.arraycopy(text, oldMiddleEndIndex, text, middleStartIndex + middleCount, mSpaceUsed - oldMiddleEndIndex);
+		}
+		mSpaceUsed += javaCharDifference;
+
+		for (int i = 0; i < middleCount; i++) {
+			text[middleStartIndex + i] = (char) source[sourceOffset + 1 + i];
+			mColumnStart[column + 1 + i] = (short) (middleStartIndex + i);
+		}
+		mColumnStart[lastColumn] = (short) (middleStartIndex + middleCount);
+		if (javaCharDifference != 0) mIndexedColumns = lastColumn + 1;
+		Arrays.fill(mStyle, column, lastColumn + 1, style);
+	}
+
+	/**
+	 * Replace the text of this row with the specified chars followed by spaces, as when restoring a row from a
+	 * {@link CompactTranscript}. Styles are left as is.
+	 */
+	void setText(char[] text, int offset, int length, int spaceUsed) {
+		if (spaceUsed > mText.length) mText = new char[spaceUsed];
+		System.arraycopy(text, offset, mText, 0, length);
+		Arrays.fill(mText, length, spaceUsed, ' ');
+		mSpaceUsed = (short) spaceUsed;
+		mIndexedColumns = 0;
+	}
+
 	boolean isBlank() {
 		for (int charIndex = 0, charLen = getSpaceUsed(); charIndex < charLen; charIndex++)
 			if (mText[charIndex] != ' ') return false;
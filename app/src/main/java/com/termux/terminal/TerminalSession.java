@@ -1,27 +1,41 @@
 package com.termux.terminal;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.annotation.SuppressLint;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * A terminal session, consisting of a process coupled to a terminal interface.
  * <p>
  * The subprocess will be executed by the constructor, and when the size is made known by a call to
- * {@link #updateSize(int, int)} terminal emulation will begin and threads will be spawned to handle the subprocess I/O.
- * All terminal emulation and callback methods will be performed on the main thread.
+ * {@link #updateSize(int, int)} terminal emulation will begin and threads will be spawned to handle the subprocess I/O,
+ * unless it is done by a {@link TerminalIoLoop} shared between sessions.
+ * All callback methods will be performed on the main thread. Terminal emulation is also performed on the main thread,
+ * where output from the process is processed in batches limited by {@link #MAX_INPUT_PROCESSING_MILLIS} with one screen
+ * update notification per batch, unless the session is created to emulate on a separate thread. In that case the
+ * {@link TerminalEmulator} is only modified while holding its monitor, so code on the main thread reading or modifying
+ * the emulator (such as when rendering it) must synchronize on it.
  * <p>
- * The child process may be exited forcefully by using the {@link #finishIfRunning()} method.
+ * The child process may be exited forcefully by using the {@link #finishIfRunning()} method. Its exit is noticed by
+ * the {@link ChildReaper} shared by all sessions.
  * 
  * NOTE: The terminal session may outlive the EmulatorView, so be careful with callbacks!
  */
@@ -61,6 +75,14 @@ public final class TerminalSession extends TerminalOutput {
 
 	private static final int MSG_NEW_INPUT = 1;
 	private static final int MSG_PROCESS_EXITED = 4;
+	/** Sent to the main thread by the emulation thread after output has been processed. */
+	private static final int MSG_SCREEN_UPDATED = 5;
+
+	/**
+	 * The maximum time to spend feeding output to the emulator on the main thread before letting other messages, such
+	 * as touch events, be handled.
+	 */
+	private static final long MAX_INPUT_PROCESSING_MILLIS = 8;
 
 	public final String mHandle = UUID.randomUUID().toString();
 
@@ -68,7 +90,7 @@ public final class TerminalSession extends TerminalOutput {
 
 	/**
 	 * A queue written to from a separate thread when the process outputs, and read by main thread to process by
-	 * terminal emulator.
+	 * terminal emulator. The pty is read straight into it, and the emulator parses the output where it was read.
 	 */
 	final ByteQueue mProcessToTerminalIOQueue = new ByteQueue(4096);
 	/**
@@ -76,6 +98,16 @@ public final class TerminalSession extends TerminalOutput {
 	 * writing to the {@link #mTerminalFileDescriptor}.
 	 */
 	final ByteQueue mTerminalToProcessIOQueue = new ByteQueue(4096);
+	/** If a {@link #MSG_NEW_INPUT} message is pending, so that at most one is queued at a time. */
+	final AtomicBoolean mNewInputMessagePending = new AtomicBoolean();
+	/** If a {@link #MSG_SCREEN_UPDATED} message is pending, so that at most one is queued at a time. */
+	final AtomicBoolean mScreenUpdatedMessagePending = new AtomicBoolean();
+	/**
+	 * Counted down when the process has exited and when the end of its output has been read, after which
+	 * {@link #MSG_PROCESS_EXITED} is sent with {@link #mProcessExitStatus}, written before counting down.
+	 */
+	private final AtomicInteger mExitEventsPending = new AtomicInteger(2);
+	private int mProcessExitStatus;
 	/** Buffer to write translate code points into utf8 before writing to mTerminalToProcessIOQueue */
 	private final byte[] mUtf8InputBuffer = new byte[5];
 
@@ -94,19 +126,21 @@ public final class TerminalSession extends TerminalOutput {
 	/** Set by the application for user identification of session, not by terminal. */
 	public String mSessionName;
 
+	/** Bound to the main looper, since sessions may be created on a background thread to be shown later. */
 	@SuppressLint("HandlerLeak")
-	final Handler mMainThreadHandler = new Handler() {
-		final byte[] mReceiveBuffer = new byte[4 * 1024];
-
+	final Handler mMainThreadHandler = new Handler(Looper.getMainLooper()) {
 		@Override
 		public void handleMessage(Message msg) {
 			if (msg.what == MSG_NEW_INPUT && isRunning()) {
-				int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
-				if (bytesRead > 0) {
-					mEmulator.append(mReceiveBuffer, bytesRead);
-					notifyScreenUpdate();
-				}
+				handleNewInput();
+			} else if (msg.what == MSG_SCREEN_UPDATED) {
+				mScreenUpdatedMessagePending.set(false);
+				notifyScreenUpdate();
 			} else if (msg.what == MSG_PROCESS_EXITED) {
+				// Output may remain if processing was cut short by the time limit (the emulation thread has already
+				// processed it before passing on this message):
+				if (mEmulationThread == null) processInput(Long.MAX_VALUE);
+
 				int exitCode = (Integer) msg.obj;
 				cleanupResources(exitCode);
 				mChangeCallback.onSessionFinished(TerminalSession.this);
@@ -122,18 +156,72 @@ public final class TerminalSession extends TerminalOutput {
 				exitDescription += " - press Enter to close]";
 
 				byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
-				mEmulator.append(bytesToWrite, bytesToWrite.length);
+				synchronized (mEmulator) {
+					mEmulator.append(bytesToWrite, bytesToWrite.length);
+				}
 				notifyScreenUpdate();
 			}
 		}
 	};
 
+	/** The default number of rows of the screen and its history. */
+	public static final int DEFAULT_TRANSCRIPT_ROWS = 5000;
+
+	/** The number of rows of the screen and its history, see {@link TerminalEmulator}. */
+	private final int mTranscriptRows;
+	/** The directory to spill history exceeding {@link #mTranscriptRows} to, or null. */
+	private final File mTranscriptSpillDirectory;
+	/** The widths of code points in the terminal. */
+	private final WcWidth mWcWidth;
+	/** If terminal emulation should be done on {@link #mEmulationThread} instead of on the main thread. */
+	private final boolean mEmulateOnSeparateThread;
+	/** The thread doing terminal emulation, or null if done on the main thread. */
+	private HandlerThread mEmulationThread;
+	/**
+	 * The handler receiving {@link #MSG_NEW_INPUT}, either {@link #mMainThreadHandler} or one on the emulation thread.
+	 * Volatile as it is set when emulation starts and used by the I/O threads and the {@link ChildReaper}.
+	 */
+	private volatile Handler mEmulationHandler = mMainThreadHandler;
+	/** The loop doing the pty I/O, or null if done by a reader and a writer thread for this session. */
+	private final TerminalIoLoop mIoLoop;
+	/**
+	 * The registration of this session on {@link #mIoLoop} once emulation has started. Volatile as emulation may be
+	 * started on another thread than the main one, such as when a session is created ahead of time, and the field is
+	 * read by the main, emulation and loop threads.
+	 */
+	private volatile TerminalIoLoop.Registration mIoRegistration;
+
 	public TerminalSession(String shellPath, String cwd, String[] args, String[] env, SessionChangedCallback changeCallback) {
+		this(shellPath, cwd, args, env, changeCallback, false, DEFAULT_TRANSCRIPT_ROWS, null, WcWidth.DEFAULT, null);
+	}
+
+	/**
+	 * @param emulateOnSeparateThread
+	 *            if output from the process should be processed by the terminal emulator on a separate thread instead
+	 *            of on the main thread, to keep busy sessions from stalling the user interface.
+	 * @param transcriptRows
+	 *            the number of rows of the screen and its history kept in memory.
+	 * @param transcriptSpillDirectory
+	 *            the directory to spill older history to a file in, or null to drop it. The file is deleted by
+	 *            {@link TerminalEmulator#close()}.
+	 * @param wcWidth
+	 *            the widths of code points in the terminal, see {@link WcWidth#get(boolean, boolean)}.
+	 * @param ioLoop
+	 *            the loop to do the I/O with the process on, or null to use a reader and a writer thread.
+	 */
+	public TerminalSession(String shellPath, String cwd, String[] args, String[] env, SessionChangedCallback changeCallback,
+			boolean emulateOnSeparateThread, int transcriptRows, File transcriptSpillDirectory, WcWidth wcWidth, TerminalIoLoop ioLoop) {
 		mChangeCallback = changeCallback;
+		mIoLoop = ioLoop;
+		mWcWidth = wcWidth;
+		mEmulateOnSeparateThread = emulateOnSeparateThread;
+		mTranscriptRows = transcriptRows;
+		mTranscriptSpillDirectory = transcriptSpillDirectory;
 
 		int[] processId = new int[1];
 		mTerminalFileDescriptor = JNI.createSubprocess(shellPath, cwd, args, env, processId);
 		mShellPid = processId[0];
+		ChildReaper.register(mShellPid, this);
 	}
 
 	/** Inform the attached pty of the new size and reflow or initialize the emulator. */
@@ -142,7 +230,9 @@ public final class TerminalSession extends TerminalOutput {
 		if (mEmulator == null) {
 			initializeEmulator(columns, rows);
 		} else {
-			mEmulator.resize(columns, rows);
+			synchronized (mEmulator) {
+				mEmulator.resize(columns, rows);
+			}
 		}
 	}
 
@@ -160,26 +250,47 @@ public final class TerminalSession extends TerminalOutput {
 	 *            The number of rows in the terminal window.
 	 */
 	public void initializeEmulator(int columns, int rows) {
-		mEmulator = new TerminalEmulator(this, columns, rows, /* transcript= */5000);
+		mEmulator = new TerminalEmulator(this, columns, rows, mTranscriptRows, mTranscriptSpillDirectory, mWcWidth);
+
+		if (mEmulateOnSeparateThread) {
+			mEmulationThread = new HandlerThread("TermSessionEmulator[pid=" + mShellPid + "]");
+			mEmulationThread.start();
+			mEmulationHandler = new Handler(mEmulationThread.getLooper()) {
+				@Override
+				public void handleMessage(Message msg) {
+					if (msg.what == MSG_NEW_INPUT && isRunning()) {
+						handleNewInput();
+					} else if (msg.what == MSG_PROCESS_EXITED) {
+						// Process remaining output here, as only this thread may read from the queue, before letting
+						// the main thread finish the session:
+						processInput(Long.MAX_VALUE);
+						mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, msg.obj));
+					}
+				}
+			};
+		}
+		if (mIoLoop != null) {
+			mIoRegistration = mIoLoop.register(this);
+			// Only started once set, since the loop thread then calls back into this session which reads it:
+			mIoLoop.start(mIoRegistration);
+			return;
+		}
+		// Channels on the pty read into and write from the queues without copying:
 		final FileDescriptor terminalFileDescriptorWrapped = wrapFileDescriptor(mTerminalFileDescriptor);
 
 		new Thread("TermSessionInputReader[pid=" + mShellPid + "]") {
 			@Override
 			public void run() {
-				try (InputStream termIn = new FileInputStream(terminalFileDescriptorWrapped)) {
-					final byte[] buffer = new byte[4096];
-					while (true) {
-						int read = termIn.read(buffer);
-						if (read == -1) return;
-						if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) return;
-						mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
+				final ReadableByteChannel termIn = new FileInputStream(terminalFileDescriptorWrapped).getChannel();
+				try {
+					while (mProcessToTerminalIOQueue.awaitSpace()) {
+						if (mProcessToTerminalIOQueue.readFrom(termIn) < 0) return;
+						notifyNewInput();
 					}
-				} catch (Exception e) {
+				} catch (IOException e) {
 					// Ignore, just shutting down.
 				} finally {
-					// Now wait for process exit:
-					int processExitCode = JNI.waitFor(mShellPid);
-					mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, processExitCode));
+					onOutputEnded();
 				}
 			}
 		}.start();
@@ -187,12 +298,10 @@ public final class TerminalSession extends TerminalOutput {
 		new Thread("TermSessionOutputWriter[pid=" + mShellPid + "]") {
 			@Override
 			public void run() {
-				final byte[] buffer = new byte[4096];
-				try (FileOutputStream termOut = new FileOutputStream(terminalFileDescriptorWrapped)) {
-					while (true) {
-						int bytesToWrite = mTerminalToProcessIOQueue.read(buffer, true);
-						if (bytesToWrite == -1) return;
-						termOut.write(buffer, 0, bytesToWrite);
+				final WritableByteChannel termOut = new FileOutputStream(terminalFileDescriptorWrapped).getChannel();
+				try {
+					while (mTerminalToProcessIOQueue.awaitData()) {
+						if (mTerminalToProcessIOQueue.writeTo(termOut) < 0) return;
 					}
 				} catch (IOException e) {
 					// Ignore.
@@ -201,10 +310,83 @@ public final class TerminalSession extends TerminalOutput {
 		}.start();
 	}
 
-	/** Write data to the shell process. */
+	/** Called by {@link ChildReaper} when the process has exited. */
+	void onProcessExited(int exitStatus) {
+		mProcessExitStatus = exitStatus;
+		onExitEvent();
+	}
+
+	/** Called when no more output will be read from the pty, so that the session finishes after all of it. */
+	void onOutputEnded() {
+		onExitEvent();
+	}
+
+	private void onExitEvent() {
+		if (mExitEventsPending.decrementAndGet() == 0)
+			mEmulationHandler.sendMessage(mEmulationHandler.obtainMessage(MSG_PROCESS_EXITED, mProcessExitStatus));
+	}
+
+	/** Post a {@link #MSG_NEW_INPUT} message to the emulation thread unless one is already pending. */
+	void notifyNewInput() {
+		if (!mNewInputMessagePending.getAndSet(true)) mEmulationHandler.sendEmptyMessage(MSG_NEW_INPUT);
+	}
+
+	/** Handle {@link #MSG_NEW_INPUT} on the emulation thread. */
+	void handleNewInput() {
+		// Cleared before reading so that output arriving after the queue has been drained posts a new message:
+		mNewInputMessagePending.set(false);
+		if (processInput(SystemClock.uptimeMillis() + MAX_INPUT_PROCESSING_MILLIS)) {
+			// Out of time with output remaining, continue after other pending messages have been handled:
+			notifyNewInput();
+		}
+	}
+
+	/**
+	 * Feed queued output to the emulator until the queue is empty or the deadline has passed, and notify about a screen
+	 * update once if anything was processed. Only called on the emulation thread.
+	 * 
+	 * @return true if processing stopped due to the deadline, in which case output may remain in the queue.
+	 */
+	boolean processInput(long deadlineUptimeMillis) {
+		boolean processedInput = false;
+		boolean deadlinePassed = false;
+		ByteBuffer output;
+		while ((output = mProcessToTerminalIOQueue.peek()) != null) {
+			// Parsed where it was read before being removed from the queue. Locking for each chunk lets the main thread
+			// in between when rendering from a separate thread:
+			final int bytesRead = output.remaining();
+			synchronized (mEmulator) {
+				mEmulator.append(output, output.position(), bytesRead);
+			}
+			mProcessToTerminalIOQueue.skip(bytesRead);
+			if (mIoRegistration != null) mIoRegistration.onOutputConsumed();
+			processedInput = true;
+			if (SystemClock.uptimeMillis() >= deadlineUptimeMillis) {
+				deadlinePassed = true;
+				break;
+			}
+		}
+		if (processedInput) {
+			if (mEmulationThread == null) {
+				notifyScreenUpdate();
+			} else if (!mScreenUpdatedMessagePending.getAndSet(true)) {
+				mMainThreadHandler.sendEmptyMessage(MSG_SCREEN_UPDATED);
+			}
+		}
+		return deadlinePassed;
+	}
+
+	/**
+	 * Write data to the shell process. Called on the main thread for user input and on the emulation thread for replies
+	 * of the emulator, which {@link ByteQueue#write(byte[], int, int)} serializes.
+	 */
 	@Override
 	public void write(byte[] data, int offset, int count) {
-		mTerminalToProcessIOQueue.write(data, offset, count);
+		if (mIoRegistration != null) {
+			mIoRegistration.write(data, offset, count);
+		} else {
+			mTerminalToProcessIOQueue.write(data, offset, count);
+		}
 	}
 
 	/** Write the Unicode code point to the terminal encoded in UTF-8. */
@@ -255,13 +437,14 @@ public final class TerminalSession extends TerminalOutput {
 
 	/** Reset state for terminal emulator state. */
 	public void reset() {
-		mEmulator.reset();
+		synchronized (mEmulator) {
+			mEmulator.reset();
+		}
 		notifyScreenUpdate();
 	}
 
 	/**
-	 * Finish this terminal session. Frees resources used by the terminal emulator and closes the attached
-	 * <code>InputStream</code> and <code>OutputStream</code>.
+	 * Finish this terminal session. Frees resources used by the terminal emulator and closes the attached pty.
 	 */
 	public void finishIfRunning() {
 		if (isRunning()) {
@@ -270,6 +453,15 @@ public final class TerminalSession extends TerminalOutput {
 			// cleanupResources() will be run later.
 			mTerminalToProcessIOQueue.close();
 			mProcessToTerminalIOQueue.close();
+			closeTerminalFileDescriptor();
+		}
+	}
+
+	/** Close the pty, which the {@link #mIoLoop} does itself if used. */
+	private void closeTerminalFileDescriptor() {
+		if (mIoRegistration != null) {
+			mIoLoop.close(mIoRegistration);
+		} else {
 			JNI.close(mTerminalFileDescriptor);
 		}
 	}
@@ -284,12 +476,27 @@ public final class TerminalSession extends TerminalOutput {
 		// Stop the reader and writer threads, and close the I/O streams
 		mTerminalToProcessIOQueue.close();
 		mProcessToTerminalIOQueue.close();
-		JNI.close(mTerminalFileDescriptor);
+		closeTerminalFileDescriptor();
+		if (mEmulationThread != null) mEmulationThread.quitSafely();
+	}
+
+	/** Run callbacks from the emulator, which may be invoked on the emulation thread, on the main thread. */
+	private void runOnMainThread(Runnable runnable) {
+		if (mEmulationThread == null) {
+			runnable.run();
+		} else {
+			mMainThreadHandler.post(runnable);
+		}
 	}
 
 	@Override
 	public void titleChanged(String oldTitle, String newTitle) {
-		mChangeCallback.onTitleChanged(this);
+		runOnMainThread(new Runnable() {
+			@Override
+			public void run() {
+				mChangeCallback.onTitleChanged(TerminalSession.this);
+			}
+		});
 	}
 
 	public synchronized boolean isRunning() {
@@ -302,13 +509,23 @@ public final class TerminalSession extends TerminalOutput {
 	}
 
 	@Override
-	public void clipboardText(String text) {
-		mChangeCallback.onClipboardText(this, text);
+	public void clipboardText(final String text) {
+		runOnMainThread(new Runnable() {
+			@Override
+			public void run() {
+				mChangeCallback.onClipboardText(TerminalSession.this, text);
+			}
+		});
 	}
 
 	@Override
 	public void onBell() {
-		mChangeCallback.onBell(this);
+		runOnMainThread(new Runnable() {
+			@Override
+			public void run() {
+				mChangeCallback.onBell(TerminalSession.this);
+			}
+		});
 	}
 
 }
@@ -0,0 +1,51 @@
+package com.termux.terminal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A copy of the transcript of a {@link TerminalBuffer} taken by {@link TerminalBuffer#snapshotTranscript()}, which may
+ * be written out on any thread without locking while the terminal keeps changing.
+ */
+public final class TranscriptSnapshot {
+
+	/** The lines of the transcript, oldest first. */
+	private final CompactTranscript[] mTiers;
+	private final WcWidth mWcWidth;
+
+	TranscriptSnapshot(CompactTranscript[] tiers, WcWidth wcWidth) {
+		mTiers = tiers;
+		mWcWidth = wcWidth;
+	}
+
+	/** Write the text, with surrounding whitespace trimmed as by {@link TerminalBuffer#getTranscriptText()}. */
+	public void writeText(Appendable out) throws IOException {
+		final TerminalBuffer.TextSink sink = new TerminalBuffer.TextSink(out, true);
+		for (int tier = 0; tier < mTiers.length; tier++) {
+			final CompactTranscript lines = mTiers[tier];
+			final TerminalRow row = new TerminalRow(lines.getColumns(), TextStyle.NORMAL, mWcWidth);
+			final boolean lastTier = tier == mTiers.length - 1;
+			for (int line = 0; line < lines.size(); line++) {
+				lines.getText(line, row);
+				TerminalBuffer.writeRowText(row, 0, row.getSpaceUsed(), row.mLineWrap, sink);
+				if (!row.mLineWrap && !(lastTier && line == lines.size() - 1)) sink.write('\n');
+			}
+		}
+	}
+
+	/** Write the text encoded as UTF-8 to a channel, which is left open. */
+	public void writeText(WritableByteChannel channel) throws IOException {
+		final Writer writer = Channels.newWriter(channel, "UTF-8");
+		writeText(writer);
+		writer.flush();
+	}
+
+	/** Release the history shared with the terminal, such as the file it has been spilled to. */
+	public void close() {
+		for (CompactTranscript lines : mTiers)
+			lines.close();
+	}
+
+}
@@ -0,0 +1,151 @@
+package com.termux.terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A temporary file holding chunks of history lines spilled from a {@link CompactTranscript}.
+ *
+ * Each chunk is serialized, deflated and appended to the file as a block, with only the offset and length of each
+ * block kept in memory. Blocks are read back through a memory mapping of their region of the file, into a chunk of
+ * the reading transcript, which keeps the last block read decoded since reads typically come in runs of neighbouring
+ * lines. The file may be shared by a transcript and its snapshots, see {@link CompactTranscript#snapshot()}.
+ */
+final class TranscriptSpillFile {
+
+	private final File mFile;
+	private final RandomAccessFile mRandomAccessFile;
+	private final FileChannel mChannel;
+	private long mFileSize;
+
+	private long[] mBlockOffsets = new long[64];
+	private int[] mBlockLengths = new int[64];
+	private int mBlocks;
+
+	private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater mInflater = new Inflater();
+	/** Buffers for the serialized and deflated form of a chunk, grown as needed. */
+	private byte[] mSerialized = new byte[16 * 1024], mCompressed = new byte[8 * 1024];
+
+	/** The number of {@link CompactTranscript}:s using this file, which is deleted when the last one closes it. */
+	private int mReferences = 1;
+
+	/** Create a new spill file in the specified directory, which is created if necessary. */
+	TranscriptSpillFile(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory);
+		mFile = File.createTempFile("transcript", ".spill", directory);
+		mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+		mChannel = mRandomAccessFile.getChannel();
+	}
+
+	/** Share this file with another transcript, which should also {@link #close()} it when done. */
+	synchronized TranscriptSpillFile retain() {
+		mReferences++;
+		return this;
+	}
+
+	/** Append a full chunk as the next block. */
+	synchronized void append(CompactTranscript.Chunk chunk) throws IOException {
+		final int lines = CompactTranscript.LINES_PER_CHUNK;
+		final int serializedSize = 12 + lines * (4 + 2 + 1 + 4) + chunk.mTextUsed * 2 + chunk.mRunsUsed * (4 + 2);
+		if (serializedSize > mSerialized.length) mSerialized = new byte[serializedSize];
+		ByteBuffer out = ByteBuffer.wrap(mSerialized);
+		out.putInt(lines).putInt(chunk.mTextUsed).putInt(chunk.mRunsUsed);
+		for (int i = 0; i < lines; i++)
+			out.putInt(chunk.mTextEnd[i]).putShort(chunk.mSpaceUsed[i]).put((byte) (chunk.mLineWrap[i] ? 1 : 0)).putInt(chunk.mLineRunEnd[i]);
+		for (int i = 0; i < chunk.mTextUsed; i++)
+			out.putChar(chunk.mText[i]);
+		for (int i = 0; i < chunk.mRunsUsed; i++)
+			out.putInt(chunk.mRunStyle[i]).putShort(chunk.mRunEnd[i]);
+
+		mDeflater.reset();
+		mDeflater.setInput(mSerialized, 0, serializedSize);
+		mDeflater.finish();
+		int compressedSize = 0;
+		while (!mDeflater.finished()) {
+			if (compressedSize == mCompressed.length) mCompressed = Arrays.copyOf(mCompressed, mCompressed.length * 2);
+			compressedSize += mDeflater.deflate(mCompressed, compressedSize, mCompressed.length - compressedSize);
+		}
+
+		ByteBuffer compressed = ByteBuffer.wrap(mCompressed, 0, compressedSize);
+		while (compressed.hasRemaining())
+			mChannel.write(compressed, mFileSize + compressed.position());
+
+		if (mBlocks == mBlockOffsets.length) {
+			mBlockOffsets = Arrays.copyOf(mBlockOffsets, mBlocks * 2);
+			mBlockLengths = Arrays.copyOf(mBlockLengths, mBlocks * 2);
+		}
+		mBlockOffsets[mBlocks] = mFileSize;
+		mBlockLengths[mBlocks] = compressedSize;
+		mBlocks++;
+		mFileSize += compressedSize;
+	}
+
+	/** Read a block into a chunk, which may be called on another thread than the one appending. */
+	synchronized void read(int block, CompactTranscript.Chunk chunk) throws IOException {
+		if (block < 0 || block >= mBlocks) throw new IllegalArgumentException("block=" + block + ", blocks=" + mBlocks);
+
+		final int compressedSize = mBlockLengths[block];
+		if (compressedSize > mCompressed.length) mCompressed = new byte[compressedSize];
+		MappedByteBuffer mapped = mChannel.map(FileChannel.MapMode.READ_ONLY, mBlockOffsets[block], compressedSize);
+		mapped.get(mCompressed, 0, compressedSize);
+
+		mInflater.reset();
+		mInflater.setInput(mCompressed, 0, compressedSize);
+		int serializedSize = 0;
+		try {
+			while (!mInflater.finished()) {
+				if (serializedSize == mSerialized.length) mSerialized = Arrays.copyOf(mSerialized, mSerialized.length * 2);
+				int inflated = mInflater.inflate(mSerialized, serializedSize, mSerialized.length - serializedSize);
+				if (inflated == 0 && mInflater.needsInput()) throw new IOException("Truncated block " + block);
+				serializedSize += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt block " + block, e);
+		}
+
+		ByteBuffer in = ByteBuffer.wrap(mSerialized, 0, serializedSize);
+		chunk.mLines = in.getInt();
+		chunk.mTextUsed = in.getInt();
+		chunk.mRunsUsed = in.getInt();
+		for (int i = 0; i < chunk.mLines; i++) {
+			chunk.mTextEnd[i] = in.getInt();
+			chunk.mSpaceUsed[i] = in.getShort();
+			chunk.mLineWrap[i] = in.get() != 0;
+			chunk.mLineRunEnd[i] = in.getInt();
+		}
+		if (chunk.mText.length < chunk.mTextUsed) chunk.mText = new char[chunk.mTextUsed];
+		for (int i = 0; i < chunk.mTextUsed; i++)
+			chunk.mText[i] = in.getChar();
+		if (chunk.mRunStyle.length < chunk.mRunsUsed) {
+			chunk.mRunStyle = new int[chunk.mRunsUsed];
+			chunk.mRunEnd = new short[chunk.mRunsUsed];
+		}
+		for (int i = 0; i < chunk.mRunsUsed; i++) {
+			chunk.mRunStyle[i] = in.getInt();
+			chunk.mRunEnd[i] = in.getShort();
+		}
+	}
+
+	/** Close and delete the file, once closed by every transcript using it. */
+	synchronized void close() {
+		if (--mReferences > 0) return;
+		try {
+			mRandomAccessFile.close();
+		} catch (IOException e) {
+			// Ignore.
+		}
+		mFile.delete();
+		mDeflater.end();
+		mInflater.end();
+	}
+
+}
@@ -0,0 +1,132 @@
+package com.termux.terminal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes UTF-8 terminal output a chunk at a time into code points, carrying a sequence split between chunks over to
+ * the next one.
+ *
+ * Malformed input, unassigned code points and surrogates are decoded as {@link TerminalEmulator#UNICODE_REPLACEMENT_CHAR}.
+ * C1 control characters are decoded as their 7-bit equivalent of ESC followed by ((code & 0x7F) + 0x40).
+ */
+final class Utf8Decoder {
+
+	/** Code points below this are looked up in {@link #UNASSIGNED} instead of with {@link Character#getType(int)}. */
+	private static final int UNASSIGNED_TABLE_END = 0x20000;
+
+	/** A bit set for the BMP and the Supplementary Multilingual Plane, set for unassigned code points. */
+	private static final long[] UNASSIGNED = new long[UNASSIGNED_TABLE_END / 64];
+
+	static {
+		for (int codePoint = 0; codePoint < UNASSIGNED_TABLE_END; codePoint++)
+			if (Character.getType(codePoint) == Character.UNASSIGNED) UNASSIGNED[codePoint >> 6] |= 1L << codePoint;
+	}
+
+	/** The smallest code point which may be encoded by a sequence, indexed by its length. */
+	private static final int[] MIN_CODE_POINT = { 0, 0, 0x80, 0x800, 0x10000 };
+
+	/** The bits decoded so far of an incomplete sequence. */
+	private int mCodePoint;
+	/** The number of bytes of an incomplete sequence seen so far, zero if not in a sequence. */
+	private int mBytesSeen;
+	/** The number of continuation bytes still needed to complete the sequence. */
+	private int mBytesToFollow;
+
+	static boolean isUnassigned(int codePoint) {
+		if (codePoint < UNASSIGNED_TABLE_END) return (UNASSIGNED[codePoint >> 6] & (1L << codePoint)) != 0;
+		return Character.getType(codePoint) == Character.UNASSIGNED;
+	}
+
+	/** If the input so far ends in the middle of a sequence. */
+	boolean hasIncompleteSequence() {
+		return mBytesToFollow != 0;
+	}
+
+	/** Forget any incomplete sequence. */
+	void reset() {
+		mCodePoint = mBytesSeen = mBytesToFollow = 0;
+	}
+
+	/**
+	 * Decode bytes at absolute indices of a buffer, which may be a direct one filled by the kernel, continuing any
+	 * sequence left incomplete by the previous call.
+	 *
+	 * @param codePoints
+	 *            where to store the decoded code points, which must have room for length + 1 of them.
+	 * @return the number of code points stored.
+	 */
+	int decode(ByteBuffer input, int offset, int length, int[] codePoints) {
+		final int end = offset + length;
+		int i = offset;
+		int out = 0;
+		while (i < end) {
+			if (mBytesToFollow == 0) {
+				// Copy ASCII eight bytes at a time while none of them has the high bit set:
+				while (i + 8 <= end && (input.getLong(i) & 0x8080808080808080L) == 0) {
+					for (int j = 0; j < 8; j++)
+						codePoints[out + j] = input.get(i + j);
+					i += 8;
+					out += 8;
+				}
+				while (i < end && input.get(i) >= 0)
+					codePoints[out++] = input.get(i++);
+				if (i == end) break;
+			}
+
+			final int b = input.get(i) & 0xFF;
+			if (mBytesToFollow == 0) {
+				i++;
+				if ((b & 0b11100000) == 0b11000000) { // 110xxxxx, a two-byte sequence.
+					mCodePoint = b & 0b00011111;
+					mBytesToFollow = 1;
+				} else if ((b & 0b11110000) == 0b11100000) { // 1110xxxx, a three-byte sequence.
+					mCodePoint = b & 0b00001111;
+					mBytesToFollow = 2;
+				} else if ((b & 0b11111000) == 0b11110000) { // 11110xxx, a four-byte sequence.
+					mCodePoint = b & 0b00000111;
+					mBytesToFollow = 3;
+				} else {
+					// Not a valid UTF-8 sequence start, signal invalid data:
+					codePoints[out++] = TerminalEmulator.UNICODE_REPLACEMENT_CHAR;
+					continue;
+				}
+				mBytesSeen = 1;
+			} else if ((b & 0b11000000) == 0b10000000) {
+				// 10xxxxxx, a continuation byte.
+				i++;
+				mCodePoint = (mCodePoint << 6) | (b & 0b00111111);
+				mBytesSeen++;
+				if (--mBytesToFollow == 0) out = emitSequence(codePoints, out);
+			} else {
+				// Not a continuation byte, so replace the sequence up to now with the replacement char and process
+				// the byte again. The Unicode Standard Version 6.2 – Core Specification
+				// (http://www.unicode.org/versions/Unicode6.2.0/ch03.pdf):
+				// "If the converter encounters an ill-formed UTF-8 code unit sequence which starts with a valid first
+				// byte, but which does not continue with valid successor bytes (see Table 3-7), it must not consume the
+				// successor bytes as part of the ill-formed subsequence whenever those successor bytes themselves
+				// constitute part of a well-formed UTF-8 code unit subsequence."
+				reset();
+				codePoints[out++] = TerminalEmulator.UNICODE_REPLACEMENT_CHAR;
+			}
+		}
+		return out;
+	}
+
+	private int emitSequence(int[] codePoints, int out) {
+		int codePoint = mCodePoint;
+		if (codePoint < MIN_CODE_POINT[mBytesSeen] || codePoint > Character.MAX_CODE_POINT
+				|| (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) || isUnassigned(codePoint)) {
+			// Overlong encoding, outside of Unicode or not a character.
+			codePoint = TerminalEmulator.UNICODE_REPLACEMENT_CHAR;
+		} else if (codePoint <= 0x9F) {
+			// Sequence decoded to a C1 control character which is the same as escape followed by
+			// ((code & 0x7F) + 0x40).
+			codePoints[out++] = /* escape (hexadecimal=0x1B, octal=033): */27;
+			codePoint = (codePoint & 0x7F) + 0x40;
+		}
+		codePoints[out++] = codePoint;
+		mCodePoint = mBytesSeen = 0;
+		return out;
+	}
+
+}
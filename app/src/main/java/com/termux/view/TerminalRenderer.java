@@ -1,5 +1,6 @@
 package com.termux.view;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
@@ -9,12 +10,19 @@ import com.termux.terminal.TerminalBuffer;
 import com.termux.terminal.TerminalEmulator;
 import com.termux.terminal.TerminalRow;
 import com.termux.terminal.TextStyle;
-import com.termux.terminal.WcWidth;
+
+import java.util.Arrays;
 
 /**
  * Renderer of a {@link TerminalEmulator} into a {@link Canvas}.
  * 
  * Saves font metrics, so needs to be recreated each time the typeface or font size changes.
+ * 
+ * A hardware accelerated canvas records every row into the display list of the view, which the platform retains and
+ * draws with its glyph cache, so no rendering is kept here. A software canvas is rendered through a single retained
+ * bitmap instead, where only rows reported as dirty by the {@link TerminalBuffer} (and rows the cursor moved from or to)
+ * are redrawn. Changes to the whole screen, such as to the palette, the selection, the scroll position or output
+ * scrolling the screen, cause a full redraw of it. Call {@link #release()} to free the bitmap when no longer drawing.
  */
 final class TerminalRenderer {
 
@@ -33,6 +41,28 @@ final class TerminalRenderer {
 
 	private final float[] asciiMeasures = new float[127];
 
+	/** The number of entries in the direct mapped cache of measured widths of non-ASCII code points. Power of two. */
+	private static final int MEASURE_CACHE_SIZE = 1024;
+	/** The code point whose width is cached at each index of {@link #mMeasureCacheWidths}, or -1 if none. */
+	private final int[] mMeasureCacheCodePoints = new int[MEASURE_CACHE_SIZE];
+	private final float[] mMeasureCacheWidths = new float[MEASURE_CACHE_SIZE];
+
+	/** The wcwidth() of each char of the line being drawn, filled in a row at a time. */
+	private byte[] mCharWidths = new byte[256];
+
+	/** The retained rendering of the screen, drawn to a software canvas each frame, or null if not rendering in software. */
+	private Bitmap mScreenBitmap;
+	private Canvas mScreenCanvas;
+	/** The state {@link #mScreenBitmap} was last rendered with, a change of which requires a full redraw. */
+	private TerminalBuffer mRenderedScreen;
+	private int mRenderedColumns, mRenderedRows, mRenderedTopRow;
+	private int mRenderedSelectionX1, mRenderedSelectionY1, mRenderedSelectionX2, mRenderedSelectionY2;
+	private boolean mRenderedReverseVideo;
+	private final int[] mRenderedPalette = new int[TextStyle.NUM_INDEXED_COLORS];
+	/** The cursor row last rendered, or -1 if the cursor was not shown. */
+	private int mRenderedCursorRow = -1;
+	private int mRenderedCursorCol;
+
 	public TerminalRenderer(int textSize, Typeface typeface) {
 		mTextSize = textSize;
 		mTypeface = typeface;
@@ -51,6 +81,25 @@ final class TerminalRenderer {
 			sb.setCharAt(0, (char) i);
 			asciiMeasures[i] = mTextPaint.measureText(sb, 0, 1);
 		}
+		Arrays.fill(mMeasureCacheCodePoints, -1);
+	}
+
+	/**
+	 * Measure the width of a code point with the text paint. Measures of non-ASCII code points are kept in a bounded
+	 * cache, as the same few hundred box drawing, symbol or CJK characters are typically measured for every frame.
+	 */
+	private float measureCodePoint(int codePoint, char[] text, int index, int charsForCodePoint) {
+		if (codePoint < asciiMeasures.length) return asciiMeasures[codePoint];
+		// Mix the bits so that neighbouring blocks of code points do not all compete for the same entries:
+		final int slot = (codePoint * 0x9E3779B9 >>> 22) & (MEASURE_CACHE_SIZE - 1);
+		if (mMeasureCacheCodePoints[slot] == codePoint) return mMeasureCacheWidths[slot];
+		// Measure without the bold, italic and other effects left by the last drawn run so the cached value is stable:
+		mTextPaint.setFakeBoldText(false);
+		mTextPaint.setTextSkewX(0.f);
+		final float width = mTextPaint.measureText(text, index, charsForCodePoint);
+		mMeasureCacheCodePoints[slot] = codePoint;
+		mMeasureCacheWidths[slot] = width;
+		return width;
 	}
 
 	/** Render the terminal to a canvas with at a specified row scroll, and an optional rectangular selection. */
@@ -63,14 +112,49 @@ final class TerminalRenderer {
 		final boolean cursorVisible = mEmulator.isShowingCursor();
 		final TerminalBuffer screen = mEmulator.getScreen();
 		final int[] palette = mEmulator.mColors.mCurrentColors;
+		final int width = canvas.getWidth();
+		final int height = canvas.getHeight();
 
-		int fillColor = palette[reverseVideo ? TextStyle.COLOR_INDEX_FOREGROUND : TextStyle.COLOR_INDEX_BACKGROUND];
-		canvas.drawColor(fillColor, PorterDuff.Mode.SRC);
+		final int cursorRowToDraw = cursorVisible ? cursorRow : -1;
+		final int fillColor = palette[reverseVideo ? TextStyle.COLOR_INDEX_FOREGROUND : TextStyle.COLOR_INDEX_BACKGROUND];
+
+		final Canvas screenCanvas;
+		boolean fullRedraw;
+		if (canvas.isHardwareAccelerated()) {
+			// The display list of the view is recorded anew for each frame, so every row is drawn into it:
+			release();
+			screenCanvas = canvas;
+			fullRedraw = true;
+		} else {
+			fullRedraw = false;
+			if (mScreenBitmap == null || mScreenBitmap.getWidth() != width || mScreenBitmap.getHeight() != height) {
+				release();
+				mScreenBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+				mScreenCanvas = new Canvas(mScreenBitmap);
+				fullRedraw = true;
+			}
+			// Dirty rows are only tracked for the screen, so redraw everything when showing the transcript, and after
+			// output has scrolled the screen as the rendered rows are not moved along with it:
+			fullRedraw |= topRow != 0 || topRow != mRenderedTopRow || screen != mRenderedScreen || columns != mRenderedColumns
+					|| mEmulator.mRows != mRenderedRows || reverseVideo != mRenderedReverseVideo || selectionX1 != mRenderedSelectionX1
+					|| selectionY1 != mRenderedSelectionY1 || selectionX2 != mRenderedSelectionX2 || selectionY2 != mRenderedSelectionY2
+					|| !Arrays.equals(palette, mRenderedPalette) || screen.getScrolledRowsSinceClear() > 0;
+			screenCanvas = mScreenCanvas;
+		}
+		final boolean cursorMoved = cursorRowToDraw != mRenderedCursorRow || cursorCol != mRenderedCursorCol;
+		if (fullRedraw) screenCanvas.drawColor(fillColor, PorterDuff.Mode.SRC);
 
 		float heightOffset = mFontLineSpacingAndAscent;
 		for (int row = topRow; row < endRow; row++) {
 			heightOffset += mFontLineSpacing;
 
+			if (!fullRedraw && !screen.isRowDirty(row) && !(cursorMoved && (row == cursorRowToDraw || row == mRenderedCursorRow))) continue;
+
+			// Keep text overhanging the row, such as from italics, from affecting rows that are not redrawn:
+			screenCanvas.save();
+			screenCanvas.clipRect(0, heightOffset - mFontLineSpacing, width, heightOffset);
+			if (!fullRedraw) screenCanvas.drawColor(fillColor, PorterDuff.Mode.SRC);
+
 			final int cursorX = (row == cursorRow && cursorVisible) ? cursorCol : -1;
 			int selx1 = -1, selx2 = -1;
 			if (row >= selectionY1 && row <= selectionY2) {
@@ -78,9 +162,12 @@ final class TerminalRenderer {
 				selx2 = (row == selectionY2) ? selectionX2 : mEmulator.mColumns;
 			}
 
-			TerminalRow lineObject = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
+			TerminalRow lineObject = screen.getRow(row);
 			final char[] line = lineObject.mText;
 			final int charsUsedInLine = lineObject.getSpaceUsed();
+			if (mCharWidths.length < charsUsedInLine) mCharWidths = new byte[line.length];
+			final byte[] charWidths = mCharWidths;
+			mEmulator.getWcWidth().widthsOf(line, 0, charsUsedInLine, charWidths);
 
 			int lastRunStyle = 0;
 			boolean lastRunInsideCursor = false;
@@ -95,7 +182,7 @@ final class TerminalRenderer {
 				final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
 				final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
 				final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
-				final int codePointWcWidth = WcWidth.width(codePoint);
+				final int codePointWcWidth = charWidths[currentCharIndex];
 				final boolean insideCursor = (column >= selx1 && column <= selx2) || (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
 				final int style = lineObject.getStyle(column);
 
@@ -103,8 +190,7 @@ final class TerminalRenderer {
 				// This could happen for some fonts which are not truly monospace, or for more exotic characters such as
 				// smileys which android font renders as wide.
 				// If this is detected, we draw this code point scaled to match what wcwidth() expects.
-				final float measuredCodePointWidth = (codePoint < asciiMeasures.length) ? asciiMeasures[codePoint] : mTextPaint.measureText(line,
-						currentCharIndex, charsForCodePoint);
+				final float measuredCodePointWidth = measureCodePoint(codePoint, line, currentCharIndex, charsForCodePoint);
 				final boolean fontWidthMismatch = Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
 
 				if (style != lastRunStyle || insideCursor != lastRunInsideCursor || fontWidthMismatch || lastRunFontWidthMismatch) {
@@ -113,7 +199,7 @@ final class TerminalRenderer {
 					} else {
 						final int columnWidthSinceLastRun = column - lastRunStartColumn;
 						final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-						drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
+						drawTextRun(screenCanvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
 								measuredWidthForRun, lastRunInsideCursor, lastRunStyle, reverseVideo);
 					}
 					measuredWidthForRun = 0.f;
@@ -126,7 +212,7 @@ final class TerminalRenderer {
 				measuredWidthForRun += measuredCodePointWidth;
 				column += codePointWcWidth;
 				currentCharIndex += charsForCodePoint;
-				while (currentCharIndex < charsUsedInLine && WcWidth.width(line, currentCharIndex) <= 0) {
+				while (currentCharIndex < charsUsedInLine && charWidths[currentCharIndex] <= 0) {
 					// Eat combining chars so that they are treated as part of the last non-combining code point,
 					// instead of e.g. being considered inside the cursor in the next run.
 					currentCharIndex += Character.isHighSurrogate(line[currentCharIndex]) ? 2 : 1;
@@ -135,8 +221,34 @@ final class TerminalRenderer {
 
 			final int columnWidthSinceLastRun = columns - lastRunStartColumn;
 			final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-			drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
+			drawTextRun(screenCanvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
 					measuredWidthForRun, lastRunInsideCursor, lastRunStyle, reverseVideo);
+			screenCanvas.restore();
+		}
+
+		screen.clearDirtyRows();
+		mRenderedScreen = screen;
+		mRenderedColumns = columns;
+		mRenderedRows = mEmulator.mRows;
+		mRenderedTopRow = topRow;
+		mRenderedReverseVideo = reverseVideo;
+		mRenderedSelectionX1 = selectionX1;
+		mRenderedSelectionY1 = selectionY1;
+		mRenderedSelectionX2 = selectionX2;
+		mRenderedSelectionY2 = selectionY2;
+		System.arraycopy(palette, 0, mRenderedPalette, 0, palette.length);
+		mRenderedCursorRow = cursorRowToDraw;
+		mRenderedCursorCol = cursorCol;
+
+		if (screenCanvas != canvas) canvas.drawBitmap(mScreenBitmap, 0, 0, null);
+	}
+
+	/** Free the retained rendering, if any, after which the next {@link #render} call redraws the whole screen. */
+	public void release() {
+		if (mScreenBitmap != null) {
+			mScreenBitmap.recycle();
+			mScreenBitmap = null;
+			mScreenCanvas = null;
 		}
 	}
 
@@ -72,6 +72,22 @@ public final class TerminalView extends View {
 	/** If non-zero, this is the last unicode code point received if that was a combining character. */
 	int mCombiningAccent;
 
+	/** The number of history lines to reflow at a time after a resize, see {@link #mReflowHistoryRunnable}. */
+	private static final int REFLOW_LINES_PER_SLICE = 2000;
+
+	/** Reflows history left in the old number of columns by a resize a slice at a time on the UI thread. */
+	private final Runnable mReflowHistoryRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (mEmulator == null) return;
+			final boolean done;
+			synchronized (mEmulator) {
+				done = mEmulator.reflowPendingHistory(REFLOW_LINES_PER_SLICE);
+			}
+			if (!done) post(this);
+		}
+	};
+
 	public TerminalView(Context context, AttributeSet attributes) { // NO_UCD (unused code)
 		super(context, attributes);
 		mGestureRecognizer = new GestureAndScaleRecognizer(context, new GestureAndScaleRecognizer.Listener() {
@@ -336,13 +352,16 @@ public final class TerminalView extends View {
 	public void onScreenUpdated() {
 		if (mEmulator == null) return;
 
-		if (mIsSelectingText) {
-			int rowShift = mEmulator.getScrollCounter();
-			mSelY1 -= rowShift;
-			mSelY2 -= rowShift;
-			mSelYAnchor -= rowShift;
+		// The emulator may be scrolling on a separate thread, so read and clear the counter atomically:
+		synchronized (mEmulator) {
+			if (mIsSelectingText) {
+				int rowShift = mEmulator.getScrollCounter();
+				mSelY1 -= rowShift;
+				mSelY2 -= rowShift;
+				mSelYAnchor -= rowShift;
+			}
+			mEmulator.clearScrollCounter();
 		}
-		mEmulator.clearScrollCounter();
 
 		if (mTopRow != 0) {
 			// Scroll down if not already there.
@@ -360,6 +379,7 @@ public final class TerminalView extends View {
 	 *            the new font size, in density-independent pixels.
 	 */
 	public void setTextSize(int textSize) {
+		if (mRenderer != null) mRenderer.release();
 		mRenderer = new TerminalRenderer(textSize, mRenderer == null ? Typeface.MONOSPACE : mRenderer.mTypeface);
 		updateSize();
 	}
@@ -472,7 +492,10 @@ public final class TerminalView extends View {
 				mSelX2 = maxx;
 				mSelY2 = maxy;
 				if (action == MotionEvent.ACTION_UP) {
-					String selectedText = mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2).trim();
+					String selectedText;
+					synchronized (mEmulator) {
+						selectedText = mEmulator.getScreen().getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2, true);
+					}
 					mTermSession.clipboardText(selectedText);
 					toggleSelectingText();
 				}
@@ -724,6 +747,7 @@ public final class TerminalView extends View {
 							@Override
 							public void run() {
 								try {
+									mRenderer.release();
 									mRenderer = new TerminalRenderer(mRenderer.mTextSize, newTypeface);
 									updateSize();
 									invalidate();
@@ -797,6 +821,8 @@ public final class TerminalView extends View {
 		if (mEmulator == null || (newColumns != mEmulator.mColumns || newRows != mEmulator.mRows)) {
 			mTermSession.updateSize(newColumns, newRows);
 			mEmulator = mTermSession.getEmulator();
+			removeCallbacks(mReflowHistoryRunnable);
+			post(mReflowHistoryRunnable);
 
 			mTopRow = 0;
 			scrollTo(0, 0);
@@ -809,10 +835,20 @@ public final class TerminalView extends View {
 		if (mEmulator == null) {
 			canvas.drawColor(0XFF000000);
 		} else {
-			mRenderer.render(mEmulator, canvas, mTopRow, mSelY1, mSelY2, mSelX1, mSelX2);
+			// Hold the emulator lock to draw a consistent screen if emulating on a separate thread:
+			synchronized (mEmulator) {
+				mRenderer.render(mEmulator, canvas, mTopRow, mSelY1, mSelY2, mSelX1, mSelX2);
+			}
 		}
 	}
 
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		// Any retained software rendering is redrawn in full if attached again:
+		mRenderer.release();
+	}
+
 	/** Toggle text selection mode in the view. */
 	public void toggleSelectingText() {
 		mIsSelectingText = !mIsSelectingText;
@@ -1,10 +1,14 @@
 #include <dirent.h>
+#include <errno.h>
 #include <fcntl.h>
 #include <jni.h>
 #include <signal.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <stdint.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
 #include <sys/ioctl.h>
 #include <sys/wait.h>
 #include <termios.h>
@@ -15,6 +19,14 @@
 # define LACKS_PTSNAME_R
 #endif
 
+// Event bits shared with com.termux.terminal.TerminalIoLoop:
+#define IO_EVENT_READ 1
+#define IO_EVENT_WRITE 2
+#define IO_EVENT_HANGUP 4
+// The epoll_event data of the eventfd used to wake up waitForIo(), which is never a registered id:
+#define IO_WAKE_ID UINT64_MAX
+#define IO_MAX_EVENTS 64
+
 static int throw_runtime_exception(JNIEnv* env, char const* message)
 {
         jclass exClass = (*env)->FindClass(env, "java/lang/RuntimeException");
@@ -192,6 +204,42 @@ JNIEXPORT int JNICALL Java_com_termux_terminal_JNI_waitFor(JNIEnv* TERMUX_UNUSED
         }
 }
 
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_awaitChildExit(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz))
+{
+        siginfo_t info;
+        int result;
+        do {
+                // WNOWAIT leaves the child to be reaped by whoever owns it:
+                result = waitid(P_ALL, 0, &info, WEXITED | WNOWAIT);
+        } while (result < 0 && errno == EINTR);
+        // ECHILD - no child processes left to wait for:
+        return result < 0 ? -1 : info.si_pid;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_pollChildExit(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint pid, jintArray exitStatusArray)
+{
+        siginfo_t info;
+        // Left untouched by waitid(2) with WNOHANG if the child has not exited:
+        info.si_pid = 0;
+        int result;
+        do {
+                result = waitid(P_PID, pid, &info, WEXITED | WNOHANG);
+        } while (result < 0 && errno == EINTR);
+        // ECHILD - not a child, or already reaped by someone else:
+        if (result < 0) return -1;
+        if (info.si_pid == 0) return 0;
+
+        jint exit_status;
+        if (info.si_code == CLD_EXITED) {
+                exit_status = info.si_status;
+        } else {
+                // CLD_KILLED or CLD_DUMPED, with si_status being the signal:
+                exit_status = -info.si_status;
+        }
+        (*env)->SetIntArrayRegion(env, exitStatusArray, 0, 1, &exit_status);
+        return info.si_pid;
+}
+
 JNIEXPORT void JNICALL Java_com_termux_terminal_JNI_hangupProcessGroup(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint procId)
 {
 	killpg(procId, SIGHUP);
@@ -201,3 +249,103 @@ JNIEXPORT void JNICALL Java_com_termux_terminal_JNI_close(JNIEnv* TERMUX_UNUSED(
 {
         close(fileDescriptor);
 }
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_createIoLoop(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jintArray wakeFdArray)
+{
+        int epoll_fd = epoll_create1(EPOLL_CLOEXEC);
+        if (epoll_fd < 0) return throw_runtime_exception(env, "epoll_create1() failed");
+
+        int wake_fd = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
+        struct epoll_event event = { .events = EPOLLIN, .data.u64 = IO_WAKE_ID };
+        if (wake_fd < 0 || epoll_ctl(epoll_fd, EPOLL_CTL_ADD, wake_fd, &event) != 0) {
+                if (wake_fd >= 0) close(wake_fd);
+                close(epoll_fd);
+                return throw_runtime_exception(env, "Cannot create eventfd for waking up epoll_wait()");
+        }
+
+        jint wake_fd_java = wake_fd;
+        (*env)->SetIntArrayRegion(env, wakeFdArray, 0, 1, &wake_fd_java);
+        return epoll_fd;
+}
+
+JNIEXPORT void JNICALL Java_com_termux_terminal_JNI_setIoEvents(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint epollFd, jint fd, jint id, jint events)
+{
+        if (events == 0) {
+                epoll_ctl(epollFd, EPOLL_CTL_DEL, fd, NULL);
+                return;
+        }
+
+        int flags = fcntl(fd, F_GETFL);
+        if (flags != -1 && (flags & O_NONBLOCK) == 0) fcntl(fd, F_SETFL, flags | O_NONBLOCK);
+
+        struct epoll_event event = {
+                .events = ((events & IO_EVENT_READ) ? EPOLLIN : 0) | ((events & IO_EVENT_WRITE) ? EPOLLOUT : 0),
+                .data.u64 = (uint64_t) id
+        };
+        if (epoll_ctl(epollFd, EPOLL_CTL_MOD, fd, &event) != 0 && errno == ENOENT) epoll_ctl(epollFd, EPOLL_CTL_ADD, fd, &event);
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_waitForIo(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint epollFd, jint wakeFd, jintArray readyArray)
+{
+        int max_events = (*env)->GetArrayLength(env, readyArray) / 2;
+        if (max_events > IO_MAX_EVENTS) max_events = IO_MAX_EVENTS;
+
+        struct epoll_event events[IO_MAX_EVENTS];
+        int count;
+        do {
+                count = epoll_wait(epollFd, events, max_events, -1);
+        } while (count < 0 && errno == EINTR);
+        if (count < 0) return throw_runtime_exception(env, "epoll_wait() failed");
+
+        jint ready[2 * IO_MAX_EVENTS];
+        int ready_count = 0;
+        for (int i = 0; i < count; i++) {
+                if (events[i].data.u64 == IO_WAKE_ID) {
+                        uint64_t wakeups;
+                        read(wakeFd, &wakeups, sizeof(wakeups));
+                        continue;
+                }
+                uint32_t e = events[i].events;
+                ready[2 * ready_count] = (jint) events[i].data.u64;
+                ready[2 * ready_count + 1] = ((e & EPOLLIN) ? IO_EVENT_READ : 0) | ((e & EPOLLOUT) ? IO_EVENT_WRITE : 0)
+                        | ((e & (EPOLLHUP | EPOLLERR)) ? IO_EVENT_HANGUP : 0);
+                ready_count++;
+        }
+        (*env)->SetIntArrayRegion(env, readyArray, 0, 2 * ready_count, ready);
+        return ready_count;
+}
+
+JNIEXPORT void JNICALL Java_com_termux_terminal_JNI_wakeIoLoop(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint wakeFd)
+{
+        uint64_t one = 1;
+        write(wakeFd, &one, sizeof(one));
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_read(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint fd, jobject buffer, jint offset, jint length)
+{
+        // The kernel copies straight into the direct buffer, which may be done while blocking since nothing is pinned:
+        jbyte* bytes = (jbyte*) (*env)->GetDirectBufferAddress(env, buffer);
+        if (!bytes) return throw_runtime_exception(env, "JNI call GetDirectBufferAddress(buffer) failed");
+        ssize_t bytes_read;
+        do {
+                bytes_read = read(fd, bytes + offset, length);
+        } while (bytes_read < 0 && errno == EINTR);
+
+        if (bytes_read > 0) return (jint) bytes_read;
+        if (bytes_read < 0 && (errno == EAGAIN || errno == EWOULDBLOCK)) return 0;
+        // End of file, or EIO from a pty master whose slave side has been closed:
+        return -1;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_write(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint fd, jobject buffer, jint offset, jint length)
+{
+        jbyte* bytes = (jbyte*) (*env)->GetDirectBufferAddress(env, buffer);
+        if (!bytes) return throw_runtime_exception(env, "JNI call GetDirectBufferAddress(buffer) failed");
+        ssize_t bytes_written;
+        do {
+                bytes_written = write(fd, bytes + offset, length);
+        } while (bytes_written < 0 && errno == EINTR);
+
+        if (bytes_written >= 0) return (jint) bytes_written;
+        return (errno == EAGAIN || errno == EWOULDBLOCK) ? 0 : -1;
+}
@@ -0,0 +1,145 @@
+package com.termux.app;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class TermuxInstallerTest extends TestCase {
+
+	private File mDirectory;
+	private final List<String> mLinked = Collections.synchronizedList(new ArrayList<String>());
+	private long mDownloadedBytes;
+	private int mExtractedFiles;
+
+	/** Records what is done instead of touching the file system. */
+	private final TermuxInstaller.FileLinker mLinker = new TermuxInstaller.FileLinker() {
+		@Override
+		public void symlink(String oldPath, String newPath) {
+			mLinked.add(newPath + " -> " + oldPath);
+		}
+
+		@Override
+		public void makeExecutable(String path) {
+			mLinked.add("+x " + path);
+		}
+	};
+
+	/** Records the progress without an activity to show it in. */
+	private final TermuxInstaller.ProgressReporter mReporter = new TermuxInstaller.ProgressReporter(null, null) {
+		@Override
+		void start() {
+		}
+
+		@Override
+		void downloaded(long bytes, long totalBytes) {
+			mDownloadedBytes = bytes;
+		}
+
+		@Override
+		synchronized void extracted(int files, int totalFiles, long bytes) {
+			mExtractedFiles = Math.max(mExtractedFiles, files);
+		}
+	};
+
+	@Override
+	protected void setUp() throws Exception {
+		mDirectory = Files.createTempDirectory("termux-installer-test").toFile();
+	}
+
+	@Override
+	protected void tearDown() {
+		TermuxInstaller.deleteFolder(mDirectory);
+	}
+
+	/** Write a zip of alternating entry names and contents, with a null content for a directory. */
+	private File createZip(String... namesAndContents) throws IOException {
+		File file = new File(mDirectory, "source.zip");
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+			for (int i = 0; i < namesAndContents.length; i += 2) {
+				out.putNextEntry(new ZipEntry(namesAndContents[i]));
+				if (namesAndContents[i + 1] != null) out.write(namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+				out.closeEntry();
+			}
+		}
+		return file;
+	}
+
+	private static String readFile(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+	public void testDownloadAndExtract() throws Exception {
+		File source = createZip("bin/", null, "bin/hello", "#!/bin/sh\necho hello\n", "share/", null, "share/doc.txt", "docs",
+				"SYMLINKS.txt", "hello←bin/hi\n../share/doc.txt←bin/doc");
+		File downloaded = new File(mDirectory, "bootstrap.zip");
+		TermuxInstaller.download(source.toURI().toURL(), downloaded, mReporter);
+		assertEquals(source.length(), downloaded.length());
+		assertEquals(source.length(), mDownloadedBytes);
+
+		File staging = new File(mDirectory, "usr-staging");
+		TermuxInstaller.extract(downloaded, staging.getPath(), mLinker, mReporter);
+		assertEquals("#!/bin/sh\necho hello\n", readFile(new File(staging, "bin/hello")));
+		assertEquals("docs", readFile(new File(staging, "share/doc.txt")));
+		assertEquals(2, mExtractedFiles);
+
+		Collections.sort(mLinked);
+		List<String> expected = new ArrayList<>();
+		expected.add("+x " + new File(staging, "bin/hello").getAbsolutePath());
+		expected.add(staging.getPath() + "/bin/doc -> ../share/doc.txt");
+		expected.add(staging.getPath() + "/bin/hi -> hello");
+		Collections.sort(expected);
+		assertEquals(expected, mLinked);
+	}
+
+	public void testMissingSymlinks() throws Exception {
+		File source = createZip("bin/", null, "bin/hello", "hello");
+		try {
+			TermuxInstaller.extract(source, new File(mDirectory, "usr-staging").getPath(), mLinker, mReporter);
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("No SYMLINKS.txt encountered", e.getMessage());
+		}
+		assertTrue(mLinked.isEmpty());
+	}
+
+	public void testFailedExtractionIsThrown() throws Exception {
+		// No directory entry for the file, so that it cannot be written:
+		File source = createZip("bin/hello", "hello", "SYMLINKS.txt", "hello←bin/hi");
+		try {
+			TermuxInstaller.extract(source, new File(mDirectory, "usr-staging").getPath(), mLinker, mReporter);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		assertTrue(mLinked.isEmpty());
+	}
+
+	public void testFailedLinkIsThrown() throws Exception {
+		File source = createZip("bin/", null, "bin/hello", "hello", "SYMLINKS.txt", "hello←bin/hi");
+		try {
+			TermuxInstaller.extract(source, new File(mDirectory, "usr-staging").getPath(), new TermuxInstaller.FileLinker() {
+				@Override
+				public void symlink(String oldPath, String newPath) throws IOException {
+					throw new IOException("symlink");
+				}
+
+				@Override
+				public void makeExecutable(String path) {
+				}
+			}, mReporter);
+			fail();
+		} catch (IOException e) {
+			assertEquals("symlink", e.getMessage());
+		}
+	}
+
+}
@@ -1,5 +1,8 @@
 package com.termux.terminal;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
 import junit.framework.TestCase;
 
 public class ByteQueueTest extends TestCase {
@@ -51,4 +54,195 @@ public class ByteQueueTest extends TestCase {
 		assertEquals(0, q.read(new byte[128], false));
 	}
 
+	public void testOffer() throws Exception {
+		ByteQueue q = new ByteQueue(10);
+		assertEquals(10, q.freeSpace());
+		assertEquals(6, q.offer(new byte[]{1, 2, 3, 4, 5, 6}, 0, 6));
+		assertEquals(4, q.offer(new byte[]{7, 8, 9, 10, 11, 12}, 0, 6));
+		assertEquals(0, q.freeSpace());
+		assertEquals(0, q.offer(new byte[]{13}, 0, 1));
+
+		byte[] arr = new byte[4];
+		assertEquals(4, q.read(arr, false));
+		assertEquals(4, q.freeSpace());
+		assertTrue(q.awaitSpace());
+		q.close();
+		assertEquals(-1, q.offer(new byte[]{13}, 0, 1));
+		assertFalse(q.awaitSpace());
+	}
+
+	public void testPeekAndSkip() throws Exception {
+		ByteQueue q = new ByteQueue(10);
+		assertNull(q.peek());
+		q.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, 0, 8);
+		q.skip(6);
+		q.write(new byte[]{9, 10, 11, 12}, 0, 4);
+
+		// Data wrapping around the end of the buffer is seen as two runs:
+		ByteBuffer data = q.peek();
+		assertEquals(4, data.remaining());
+		assertEquals(7, data.get(data.position()));
+		assertEquals(10, data.get(data.position() + 3));
+		q.skip(data.remaining());
+		data = q.peek();
+		assertEquals(2, data.remaining());
+		assertEquals(11, data.get(data.position()));
+		q.skip(2);
+		assertNull(q.peek());
+		assertEquals(10, q.freeSpace());
+
+		q.write(new byte[]{1}, 0, 1);
+		q.close();
+		assertNull(q.peek());
+	}
+
+	public void testConcurrentProducerAndConsumer() throws Exception {
+		final ByteQueue q = new ByteQueue(7);
+		final int bytesToTransfer = 100000;
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				byte[] chunk = new byte[13];
+				int written = 0;
+				while (written < bytesToTransfer) {
+					int length = Math.min(1 + written % chunk.length, bytesToTransfer - written);
+					for (int i = 0; i < length; i++)
+						chunk[i] = (byte) (written + i);
+					q.write(chunk, 0, length);
+					written += length;
+				}
+			}
+		};
+		producer.start();
+
+		byte[] readBuffer = new byte[5];
+		int read = 0;
+		while (read < bytesToTransfer) {
+			int bytesRead = q.read(readBuffer, true);
+			assertTrue(bytesRead > 0);
+			for (int i = 0; i < bytesRead; i++)
+				assertEquals((byte) (read + i), readBuffer[i]);
+			read += bytesRead;
+		}
+		producer.join();
+		assertEquals(0, q.read(readBuffer, false));
+	}
+
+	public void testCloseWakesBlockedReaderAndWriter() throws Exception {
+		final ByteQueue emptyQueue = new ByteQueue(10);
+		final ByteQueue fullQueue = new ByteQueue(1);
+		final int[] readResult = new int[1];
+		final boolean[] writeResult = new boolean[] { true };
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				readResult[0] = emptyQueue.read(new byte[10], true);
+			}
+		};
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				writeResult[0] = fullQueue.write(new byte[] { 1, 2 }, 0, 2);
+			}
+		};
+		reader.start();
+		writer.start();
+		Thread.sleep(50);
+		emptyQueue.close();
+		fullQueue.close();
+		reader.join();
+		writer.join();
+		assertEquals(-1, readResult[0]);
+		assertFalse(writeResult[0]);
+	}
+
+	public void testConcurrentProducers() throws Exception {
+		// Records longer than the queue, so that each is queued in parts, from two threads as when the emulator replies
+		// while the user types:
+		final ByteQueue q = new ByteQueue(5);
+		final int recordLength = 7, recordsPerThread = 2000;
+		Thread[] producers = new Thread[2];
+		for (int t = 0; t < producers.length; t++) {
+			final byte id = (byte) (t + 1);
+			producers[t] = new Thread() {
+				@Override
+				public void run() {
+					final byte[] record = new byte[recordLength];
+					for (int i = 0; i < recordsPerThread; i++) {
+						record[0] = id;
+						for (int j = 1; j < recordLength; j++)
+							record[j] = (byte) (id * 16 + i % 16);
+						assertTrue(q.write(record, 0, recordLength));
+					}
+				}
+			};
+			producers[t].start();
+		}
+
+		final byte[] readBuffer = new byte[3];
+		final byte[] record = new byte[recordLength];
+		final int[] nextRecord = new int[producers.length];
+		int recordUsed = 0;
+		for (int records = 0; records < producers.length * recordsPerThread;) {
+			final int bytesRead = q.read(readBuffer, true);
+			for (int i = 0; i < bytesRead; i++) {
+				record[recordUsed++] = readBuffer[i];
+				if (recordUsed < recordLength) continue;
+				final int id = record[0];
+				assertTrue(id == 1 || id == 2);
+				final int sequence = nextRecord[id - 1]++;
+				for (int j = 1; j < recordLength; j++)
+					assertEquals((byte) (id * 16 + sequence % 16), record[j]);
+				recordUsed = 0;
+				records++;
+			}
+		}
+		for (Thread producer : producers)
+			producer.join();
+		assertEquals(0, recordUsed);
+		assertEquals(recordsPerThread, nextRecord[0]);
+		assertEquals(recordsPerThread, nextRecord[1]);
+	}
+
+	public void testChannels() throws Exception {
+		final Pipe pipe = Pipe.open();
+		final ByteQueue q = new ByteQueue(5);
+		final byte[] readBuffer = new byte[5];
+		// Written to the pipe and read back, with the free space wrapping around after the first round so that reading
+		// stops at the end of the buffer:
+		assertEquals(3, pipe.sink().write(ByteBuffer.wrap(new byte[] { 0, 1, 2 })));
+		assertEquals(3, q.readFrom(pipe.source()));
+		assertEquals(3, q.read(readBuffer, false));
+		for (int round = 1; round < 3; round++) {
+			final byte[] data = { (byte) round, 1, 2 };
+			pipe.sink().write(ByteBuffer.wrap(data));
+			final int firstRun = q.readFrom(pipe.source());
+			assertTrue(firstRun > 0 && firstRun <= 3);
+			if (firstRun < 3) assertEquals(3 - firstRun, q.readFrom(pipe.source()));
+			assertEquals(3, q.read(readBuffer, false));
+			for (int i = 0; i < 3; i++)
+				assertEquals(data[i], readBuffer[i]);
+		}
+
+		// Queued data wrapping around is written in two runs:
+		assertEquals(4, q.offer(new byte[] { 10, 11, 12, 13 }, 0, 4));
+		assertEquals(1, q.writeTo(pipe.sink()));
+		assertEquals(3, q.writeTo(pipe.sink()));
+		assertEquals(0, q.writeTo(pipe.sink()));
+		final ByteBuffer written = ByteBuffer.allocate(4);
+		while (written.hasRemaining())
+			pipe.source().read(written);
+		assertArrayEquals(new byte[] { 10, 11, 12, 13 }, written.array());
+
+		// Writing into the queue still sees all of the buffer after reading from a channel:
+		assertEquals(5, q.offer(new byte[] { 1, 2, 3, 4, 5 }, 0, 5));
+		pipe.sink().close();
+		assertEquals(0, q.readFrom(pipe.source()));
+		assertEquals(5, q.read(readBuffer, false));
+		assertEquals(-1, q.readFrom(pipe.source()));
+
+		q.close();
+		assertEquals(-1, q.writeTo(pipe.sink()));
+	}
+
 }
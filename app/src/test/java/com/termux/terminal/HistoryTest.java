@@ -1,5 +1,7 @@
 package com.termux.terminal;
 
+import java.io.File;
+import java.io.StringWriter;
 
 public class HistoryTest extends TerminalTestCase {
 
@@ -30,4 +32,251 @@ public class HistoryTest extends TerminalTestCase {
 		enterString("LMN").assertLinesAre("111", "IJK", "LMN", "444").assertHistoryStartsWith("FGH", "CDE");
 	}
 
+	public void testCompactHistory() {
+		final int fullTranscriptRows = TerminalEmulator.FULL_TRANSCRIPT_ROWS;
+		mTerminal = new TerminalEmulator(mOutput, 5, 3, fullTranscriptRows + 300);
+		for (int i = 0; i < fullTranscriptRows + 500; i++)
+			enterString("\033[3" + (i % 8) + "m" + i + "\033[m\r\n");
+
+		// Lines older than the full rows are kept compacted, up to the requested total:
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertEquals(fullTranscriptRows + 300 - 3, screen.getActiveTranscriptRows());
+		int firstKeptLine = fullTranscriptRows + 500 - (fullTranscriptRows + 300 - 3) - 2;
+		assertLineIs(-screen.getActiveTranscriptRows(), String.format("%-5d", firstKeptLine));
+		assertForegroundColorAt(-screen.getActiveTranscriptRows(), 0, firstKeptLine % 8);
+		assertForegroundColorAt(-screen.getActiveTranscriptRows(), 4, TextStyle.COLOR_INDEX_FOREGROUND);
+
+		// The transcript reads through both tiers in order:
+		String transcript = screen.getTranscriptText();
+		assertTrue(transcript.startsWith(firstKeptLine + "\n" + (firstKeptLine + 1) + "\n"));
+		assertTrue(transcript.endsWith((fullTranscriptRows + 498) + "\n" + (fullTranscriptRows + 499)));
+
+		// Changing the number of columns reflows the compacted lines as well, with four digit lines now wrapping:
+		resize(3, 3);
+		transcript = screen.getTranscriptText();
+		assertTrue(transcript.contains("\n999\n1000\n1001\n"));
+		assertTrue(transcript.endsWith((fullTranscriptRows + 498) + "\n" + (fullTranscriptRows + 499)));
+		// Until the older lines have been reflowed, when those no longer fitting are dropped:
+		screen.reflowPendingHistory(Integer.MAX_VALUE);
+		assertEquals(fullTranscriptRows + 300 - 3, screen.getActiveTranscriptRows());
+	}
+
+	public void testLazyReflow() {
+		final int fullTranscriptRows = TerminalEmulator.FULL_TRANSCRIPT_ROWS;
+		mTerminal = new TerminalEmulator(mOutput, 5, 3, fullTranscriptRows + 3000);
+		// Lines wrapping into two rows, with one straddling the compacted history and the circular buffer:
+		final int lines = 1500;
+		for (int i = 0; i < lines; i++)
+			enterString(String.format("%07d", i) + "\r\n");
+		TerminalBuffer screen = mTerminal.getScreen();
+		final int transcriptRowsBefore = screen.getActiveTranscriptRows();
+		assertEquals(2 * lines - 2, transcriptRowsBefore);
+
+		// Only the rows of the circular buffer are reflowed by the resize, with the older history following later:
+		resize(4, 3);
+		assertTrue(screen.hasPendingReflow());
+		final int reflowedRows = screen.getActiveTranscriptRows();
+		assertTrue(reflowedRows < fullTranscriptRows);
+		assertLineIs(-1, String.format("%07d", lines - 2).substring(4) + " ");
+		assertLineIs(-2, String.format("%07d", lines - 2).substring(0, 4));
+		assertFalse(screen.reflowPendingHistory(10));
+		assertEquals(reflowedRows, screen.getActiveTranscriptRows());
+
+		assertTrue(screen.reflowPendingHistory(Integer.MAX_VALUE));
+		assertFalse(screen.hasPendingReflow());
+		assertEquals(transcriptRowsBefore, screen.getActiveTranscriptRows());
+		assertLineIs(-1, String.format("%07d", lines - 2).substring(4) + " ");
+		final String[] transcriptLines = screen.getTranscriptText().split("\n");
+		assertEquals(lines, transcriptLines.length);
+		for (int i = 0; i < lines; i++)
+			assertEquals(String.format("%07d", i), transcriptLines[i]);
+	}
+
+	public void testChainedReflow() {
+		final int fullTranscriptRows = TerminalEmulator.FULL_TRANSCRIPT_ROWS;
+		mTerminal = new TerminalEmulator(mOutput, 5, 3, fullTranscriptRows + 3000);
+		final int lines = 1500;
+		for (int i = 0; i < lines; i++)
+			enterString(line(i) + "\r\n");
+		TerminalBuffer screen = mTerminal.getScreen();
+
+		// A second resize before the first reflow has finished restarts it from the original lines:
+		resize(4, 3);
+		assertTrue(screen.hasPendingReflow());
+		resize(6, 3);
+		assertTrue(screen.hasPendingReflow());
+		String[] transcriptLines = screen.getTranscriptText().split("\n");
+		assertEquals(lines, transcriptLines.length);
+		for (int i = 0; i < lines; i++)
+			assertEquals(line(i), transcriptLines[i]);
+
+		// Searching backward into the pending lines reflows them on a match:
+		int[] match = { Integer.MAX_VALUE, 0, 0 };
+		assertTrue(screen.find("abc", false, false, match));
+		assertFalse(screen.hasPendingReflow());
+		assertEquals(-screen.getActiveTranscriptRows() + 2 * 7, match[0]);
+		assertEquals(0, match[1]);
+
+		transcriptLines = screen.getTranscriptText().split("\n");
+		assertEquals(lines, transcriptLines.length);
+		for (int i = 0; i < lines; i++)
+			assertEquals(line(i), transcriptLines[i]);
+		assertEquals(2 * lines - 3, screen.getActiveTranscriptRows());
+	}
+
+	private static String line(int i) {
+		return i == 7 ? "abc" : String.format("%07d", i);
+	}
+
+	public void testLogicalLines() {
+		final int fullTranscriptRows = TerminalEmulator.FULL_TRANSCRIPT_ROWS;
+		mTerminal = new TerminalEmulator(mOutput, 5, 3, fullTranscriptRows + 3000);
+		// Lines of 0 to 17 characters, so that many wrap and some wrap across the compacted and full history:
+		for (int i = 0; i < 1500; i++) {
+			StringBuilder line = new StringBuilder();
+			for (int j = 0; j < (i * 7) % 18; j++)
+				line.append((char) ('a' + (i + j) % 26));
+			enterString(line + "\r\n");
+		}
+		enterString("0123456789ABCDEFG");
+		assertLogicalLinesMatchRows();
+		assertEquals(-1, mTerminal.getScreen().getLogicalLineStart(1));
+		assertEquals(17, mTerminal.getScreen().getLogicalLineCodePoints(-1));
+
+		resize(5, 6);
+		assertLogicalLinesMatchRows();
+		resize(5, 2);
+		assertLogicalLinesMatchRows();
+
+		// After a change of columns, and again when the older history has been reflowed:
+		resize(4, 3);
+		assertTrue(mTerminal.getScreen().hasPendingReflow());
+		assertLogicalLinesMatchRows();
+		mTerminal.getScreen().reflowPendingHistory(Integer.MAX_VALUE);
+		assertLogicalLinesMatchRows();
+		enterString("\r\nabcdefghi\r\n");
+		assertLogicalLinesMatchRows();
+	}
+
+	/** Check the logical line index against scanning the line wrap flags of rows. */
+	private void assertLogicalLinesMatchRows() {
+		final TerminalBuffer screen = mTerminal.getScreen();
+		final int firstRow = -screen.getActiveTranscriptRows();
+		for (int row = firstRow; row < mTerminal.mRows; row++) {
+			int start = row;
+			while (start > firstRow && screen.getRow(start - 1).mLineWrap)
+				start--;
+			int end = row;
+			while (end < mTerminal.mRows - 1 && screen.getRow(end).mLineWrap)
+				end++;
+			assertEquals("start of row " + row, start, screen.getLogicalLineStart(row));
+			assertEquals("end of row " + row, end, screen.getLogicalLineEnd(row));
+			String text = screen.getSelectedText(0, start, mTerminal.mColumns, end);
+			assertEquals("code points of row " + row, text.codePointCount(0, text.length()), screen.getLogicalLineCodePoints(row));
+		}
+	}
+
+	public void testFind() {
+		final int fullTranscriptRows = TerminalEmulator.FULL_TRANSCRIPT_ROWS;
+		mTerminal = new TerminalEmulator(mOutput, 10, 3, fullTranscriptRows + 3000);
+		for (int i = 0; i < fullTranscriptRows + 2000; i++)
+			enterString(((i == 7 || i == 2500) ? "x一Needle" : "line" + i) + "\r\n");
+		final TerminalBuffer screen = mTerminal.getScreen();
+		final int firstRow = -screen.getActiveTranscriptRows();
+
+		// Forward from the top, finding a compacted line and then one in the circular buffer, after a wide character:
+		int[] match = { Integer.MIN_VALUE, 0, 0 };
+		assertTrue(screen.find("needle", true, true, match));
+		assertEquals(firstRow + 7, match[0]);
+		assertEquals(3, match[1]);
+		assertEquals(9, match[2]);
+		assertTrue(screen.find("needle", true, true, match));
+		assertEquals(firstRow + 2500, match[0]);
+		assertFalse(screen.find("needle", true, true, match));
+		match = new int[] { Integer.MIN_VALUE, 0, 0 };
+		assertFalse(screen.find("needle", false, true, match));
+
+		// Backward from the end:
+		match = new int[] { Integer.MAX_VALUE, 0, 0 };
+		assertTrue(screen.find("Needle", false, false, match));
+		assertEquals(firstRow + 2500, match[0]);
+		assertTrue(screen.find("Needle", false, false, match));
+		assertEquals(firstRow + 7, match[0]);
+		assertFalse(screen.find("Needle", false, false, match));
+
+		final int[] count = new int[1];
+		screen.findAll("line1", false, new TerminalBuffer.SearchCallback() {
+			@Override
+			public boolean onMatch(int row, int startColumn, int endColumn) {
+				assertEquals(0, startColumn);
+				assertEquals(5, endColumn);
+				count[0]++;
+				return true;
+			}
+		});
+		// line1, line10-19, line100-199 and line1000-1999:
+		assertEquals(1 + 10 + 100 + 1000, count[0]);
+	}
+
+	public void testSpilledHistory() throws Exception {
+		File spillDirectory = new File(System.getProperty("java.io.tmpdir"), "HistoryTest-" + System.nanoTime());
+		final int transcriptRows = TerminalEmulator.FULL_TRANSCRIPT_ROWS + 300;
+		final int linesToWrite = transcriptRows + 10 * CompactTranscript.LINES_PER_CHUNK;
+		mTerminal = new TerminalEmulator(mOutput, 6, 3, transcriptRows, spillDirectory);
+		for (int i = 0; i < linesToWrite; i++)
+			enterString("\033[3" + (i % 8) + "m" + i + "\033[m\r\n");
+
+		// No lines have been dropped, with the older ones spilled to a single file:
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertEquals(linesToWrite - 2, screen.getActiveTranscriptRows());
+		assertEquals(1, spillDirectory.listFiles().length);
+		for (int i = 0; i < linesToWrite - 2; i++) {
+			int row = i - screen.getActiveTranscriptRows();
+			assertLineIs(row, String.format("%-6d", i));
+			assertForegroundColorAt(row, 0, i % 8);
+		}
+		String transcript = screen.getTranscriptText();
+		assertTrue(transcript.startsWith("0\n1\n2\n"));
+		assertTrue(transcript.endsWith((linesToWrite - 2) + "\n" + (linesToWrite - 1)));
+
+		// Reflowing history writes a new file and deletes the old one, with the text the same before and after:
+		resize(3, 3);
+		assertEquals(transcript, screen.getTranscriptText());
+		screen.reflowPendingHistory(Integer.MAX_VALUE);
+		assertEquals(transcript, screen.getTranscriptText());
+		assertEquals(1, spillDirectory.listFiles().length);
+
+		mTerminal.close();
+		assertEquals(0, spillDirectory.listFiles().length);
+		assertTrue(screen.getActiveTranscriptRows() <= transcriptRows);
+		spillDirectory.delete();
+	}
+
+	public void testTranscriptSnapshot() throws Exception {
+		File spillDirectory = new File(System.getProperty("java.io.tmpdir"), "HistoryTest-" + System.nanoTime());
+		final int transcriptRows = TerminalEmulator.FULL_TRANSCRIPT_ROWS + 300;
+		mTerminal = new TerminalEmulator(mOutput, 6, 3, transcriptRows, spillDirectory);
+		for (int i = 0; i < transcriptRows + 4 * CompactTranscript.LINES_PER_CHUNK; i++)
+			enterString(i + "\r\n");
+		enterString("  wrapping");
+		final TerminalBuffer screen = mTerminal.getScreen();
+		final String transcript = screen.getTranscriptText();
+		final TranscriptSnapshot snapshot = screen.snapshotTranscript();
+
+		// Neither more history being compacted and spilled nor closing the emulator changes the snapshot:
+		for (int i = 0; i < 2 * CompactTranscript.LINES_PER_CHUNK; i++)
+			enterString("\r\nx" + i);
+		enterString("\033[2J");
+		mTerminal.close();
+		assertEquals(1, spillDirectory.listFiles().length);
+		StringWriter writer = new StringWriter();
+		snapshot.writeText(writer);
+		assertEquals(transcript, writer.toString());
+		assertTrue(transcript.endsWith("\n" + (transcriptRows + 4 * CompactTranscript.LINES_PER_CHUNK - 1) + "\n  wrapping"));
+
+		snapshot.close();
+		assertEquals(0, spillDirectory.listFiles().length);
+		spillDirectory.delete();
+	}
+
 }
@@ -1,5 +1,10 @@
 package com.termux.terminal;
 
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
 public class ScreenBufferTest extends TerminalTest {
 
 	public void testBasics() {
@@ -37,4 +42,51 @@ public class ScreenBufferTest extends TerminalTest {
 		withTerminalSized(5, 3).enterString("ABCDE\r\nFGHIJ").assertLinesAre("ABCDE", "FGHIJ", "     ");
 		assertEquals("ABCDE\nFG", mTerminal.getSelectedText(0, 0, 1, 1));
 	}
+
+	public void testWriteTranscriptText() throws Exception {
+		withTerminalSized(5, 4).enterString("\r\n  hé\r\n\r\n 一x ");
+		final TerminalBuffer screen = mTerminal.getScreen();
+		StringWriter writer = new StringWriter();
+		screen.writeTranscriptText(writer);
+		assertEquals(screen.getTranscriptText(), writer.toString());
+		assertEquals("hé\n\n 一x", writer.toString());
+		assertEquals("  hé\n", screen.getSelectedText(0, 1, 4, 2));
+		assertEquals("hé", screen.getSelectedText(0, 1, 4, 2, true));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		screen.writeTranscriptText(Channels.newChannel(bytes));
+		assertEquals("hé\n\n 一x", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	private static void assertDirtyRows(TerminalBuffer screen, boolean... expected) {
+		for (int row = 0; row < expected.length; row++)
+			assertEquals("row " + row, expected[row], screen.isRowDirty(row));
+	}
+
+	public void testDirtyRows() {
+		withTerminalSized(5, 4);
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertDirtyRows(screen, true, true, true, true);
+		screen.clearDirtyRows();
+		assertDirtyRows(screen, false, false, false, false);
+
+		enterString("\033[2;1Hab");
+		assertDirtyRows(screen, false, true, false, false);
+		screen.clearDirtyRows();
+
+		// Scrolling a region marks the whole region:
+		enterString("\033[2;3r\033[3;1H\n");
+		assertDirtyRows(screen, false, true, true, false);
+		assertEquals(0, screen.getScrolledRowsSinceClear());
+		screen.clearDirtyRows();
+
+		// Scrolling the whole screen shifts the flags along with the content:
+		enterString("\033[r\033[3;1Hx\033[4;1H\n");
+		assertEquals(1, screen.getScrolledRowsSinceClear());
+		assertDirtyRows(screen, false, true, false, true);
+		screen.clearDirtyRows();
+
+		resize(5, 3);
+		assertDirtyRows(screen, true, true, true);
+	}
 }
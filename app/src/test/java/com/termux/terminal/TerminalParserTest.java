@@ -0,0 +1,141 @@
+package com.termux.terminal;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class TerminalParserTest extends TestCase {
+
+	/** Records the actions of the parser in a readable form. */
+	static final class RecordingDispatcher implements TerminalParser.Dispatcher {
+		final StringBuilder mActions = new StringBuilder();
+
+		@Override
+		public void print(int codePoint) {
+			mActions.append("print(").appendCodePoint(codePoint).append(")");
+		}
+
+		@Override
+		public void execute(int controlCharacter) {
+			mActions.append("execute(").append(controlCharacter).append(")");
+		}
+
+		@Override
+		public void escDispatch(int intermediates, int finalCharacter) {
+			mActions.append("esc(");
+			appendIntermediates(intermediates);
+			mActions.append((char) finalCharacter).append(")");
+		}
+
+		@Override
+		public void csiDispatch(int privateMarker, int[] parameters, int parameterCount, int intermediates, int finalCharacter) {
+			mActions.append("csi(");
+			if (privateMarker != 0) mActions.append((char) privateMarker);
+			for (int i = 0; i < parameterCount; i++)
+				mActions.append(i == 0 ? "" : ",").append(parameters[i]);
+			mActions.append(' ');
+			appendIntermediates(intermediates);
+			mActions.append((char) finalCharacter).append(")");
+		}
+
+		@Override
+		public void oscDispatch(CharSequence string, boolean bellTerminated) {
+			mActions.append("osc(").append(string).append(bellTerminated ? ",BEL)" : ",ESC)");
+		}
+
+		@Override
+		public void dcsDispatch(CharSequence string) {
+			mActions.append("dcs(").append(string).append(")");
+		}
+
+		private void appendIntermediates(int intermediates) {
+			for (; intermediates != 0; intermediates >>>= 8)
+				mActions.append((char) (intermediates & 0xFF));
+		}
+	}
+
+	private final RecordingDispatcher mDispatcher = new RecordingDispatcher();
+	private final TerminalParser mParser = new TerminalParser(mDispatcher);
+
+	private void assertParsedAs(String input, String expectedActions) {
+		mDispatcher.mActions.setLength(0);
+		for (int i = 0; i < input.length();) {
+			int codePoint = input.codePointAt(i);
+			mParser.advance(codePoint);
+			i += Character.charCount(codePoint);
+		}
+		assertEquals(expectedActions, mDispatcher.mActions.toString());
+	}
+
+	public void testPrintAndExecute() {
+		assertParsedAs("a\r\nö\u007f", "print(a)execute(13)execute(10)print(ö)");
+		assertTrue(mParser.isInGround());
+	}
+
+	public void testEscapeSequences() {
+		assertParsedAs("\033M", "esc(M)");
+		assertParsedAs("\033(0\033#8", "esc((0)esc(#8)");
+		// Control characters are executed in the middle of a sequence, while ESC starts over:
+		assertParsedAs("\033\n(\033\033D", "execute(10)esc(D)");
+	}
+
+	public void testControlSequences() {
+		assertParsedAs("\033[m", "csi( m)");
+		assertParsedAs("\033[1;22;333m", "csi(1,22,333 m)");
+		assertParsedAs("\033[;5H", "csi(-1,5 H)");
+		assertParsedAs("\033[3;r", "csi(3,-1 r)");
+		assertParsedAs("\033[?1049h", "csi(?1049 h)");
+		assertParsedAs("\033[>c", "csi(> c)");
+		assertParsedAs("\033[2 q", "csi(2  q)");
+		assertParsedAs("\033[?12$p", "csi(?12 $p)");
+		assertParsedAs("\033[$z", "csi( $z)");
+		// Too large values are clamped, and parameters past the maximum ignored:
+		assertParsedAs("\033[99999999C", "csi(" + TerminalParser.MAX_PARAMETER_VALUE + " C)");
+		StringBuilder manyParameters = new StringBuilder("\033[");
+		StringBuilder expected = new StringBuilder("csi(");
+		for (int i = 0; i < TerminalParser.MAX_PARAMETERS + 4; i++) {
+			manyParameters.append(i).append(';');
+			if (i < TerminalParser.MAX_PARAMETERS) expected.append(i == 0 ? "" : ",").append(i);
+		}
+		assertParsedAs(manyParameters.append("m").toString(), expected.append(" m)").toString());
+		// Malformed sequences are ignored up to their final character:
+		assertParsedAs("\033[1?2hA", "print(A)");
+		assertParsedAs("\033[4:3mA", "print(A)");
+		// While a non-ASCII character cancels the sequence:
+		assertParsedAs("\033[1éA", "print(A)");
+	}
+
+	public void testCancel() {
+		assertParsedAs("\033[12\030A", "execute(24)print(A)");
+		assertParsedAs("\033]0;title\032A", "execute(26)print(A)");
+	}
+
+	public void testStrings() {
+		assertParsedAs("\033]0;Hello, wörld\007", "osc(0;Hello, wörld,BEL)");
+		assertParsedAs("\033]2;x\n\033\\", "osc(2;x,ESC)esc(\\)");
+		assertParsedAs("\033P+q436f\033\\", "dcs(+q436f)esc(\\)");
+		// SOS, PM and APC strings are ignored:
+		assertParsedAs("\033_ignored\033\\A", "esc(\\)print(A)");
+
+		// Strings which are too long are dropped, with the character not fitting and the rest displayed:
+		StringBuilder longString = new StringBuilder("\033]0;");
+		for (int i = 2; i < TerminalParser.MAX_STRING_LENGTH; i++)
+			longString.append('x');
+		assertParsedAs(longString.append("AB").toString(), "print(B)");
+	}
+
+	/** Random input never gets the parser stuck, so that CAN always returns to the ground state. */
+	public void testRandomInput() {
+		Random random = new Random(1234);
+		for (int i = 0; i < 100000; i++) {
+			int r = random.nextInt(10);
+			int codePoint = (r < 6) ? random.nextInt(128) : (r < 9 ? "\033[];?$ 0123456789".charAt(random.nextInt(17)) : random.nextInt(0x10000));
+			mParser.advance(codePoint);
+			if (i % 100 == 0) {
+				mParser.advance(24);
+				assertTrue(mParser.isInGround());
+			}
+		}
+	}
+
+}
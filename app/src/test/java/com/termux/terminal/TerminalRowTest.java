@@ -58,6 +58,26 @@ public class TerminalRowTest extends TestCase {
 		assertLineStartsWith(' ', DIARESIS_CODEPOINT, DIARESIS_CODEPOINT, ' ');
 	}
 
+	public void testCombiningCharsLimit() {
+		row.setChar(1, 'a', 0);
+		row.setChar(2, 'b', 0);
+		for (int i = 0; i < 1000; i++)
+			row.setChar(1, DIARESIS_CODEPOINT, 0);
+		assertEquals(COLUMNS - 1 + TerminalRow.MAX_CHARS_PER_COLUMN, row.getSpaceUsed());
+		assertEquals(1 + TerminalRow.MAX_CHARS_PER_COLUMN, row.findStartOfColumn(2));
+		assertLineStartsWith(' ', 'a', DIARESIS_CODEPOINT);
+		assertEquals('b', row.mText[row.findStartOfColumn(2)]);
+
+		// A supplementary combining character not fitting is dropped whole:
+		row.setChar(0, 'c', 0);
+		for (int i = 0; i < TerminalRow.MAX_CHARS_PER_COLUMN / 2 - 1; i++)
+			row.setChar(0, 0x1D167, 0);
+		row.setChar(0, DIARESIS_CODEPOINT, 0);
+		row.setChar(0, 0x1D167, 0);
+		assertEquals(TerminalRow.MAX_CHARS_PER_COLUMN, row.findStartOfColumn(1));
+		assertEquals('a', row.mText[row.findStartOfColumn(1)]);
+	}
+
 	public void testStaticConstants() {
 		assertEquals(1, Character.charCount(ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1));
 		assertEquals(1, Character.charCount(ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_2));
@@ -428,4 +448,60 @@ public class TerminalRowTest extends TestCase {
 		// assertEquals(' ', line.mText[line.findStartOfColumn(COLUMNS - 1)]);
 	}
 
+	public void testColumnIndexAfterRandomWrites() {
+		int[] codePoints = { 'a', ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_TWO_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1,
+				DIARESIS_CODEPOINT };
+		Random random = new Random(4711);
+		for (int i = 0; i < 5000; i++) {
+			int column = random.nextInt(COLUMNS - 1);
+			row.setChar(column, codePoints[random.nextInt(codePoints.length)], 0);
+			if (random.nextInt(10) == 0) {
+				// Compare the index with a scan of the whole row:
+				int charIndex = 0;
+				int currentColumn = 0;
+				while (currentColumn < COLUMNS) {
+					assertEquals("column=" + currentColumn, charIndex, row.findStartOfColumn(currentColumn));
+					int codePoint = Character.codePointAt(row.mText, charIndex);
+					int width = WcWidth.width(codePoint);
+					if (width == 2) assertEquals(charIndex, row.findStartOfColumn(currentColumn + 1));
+					charIndex += Character.charCount(codePoint);
+					while (charIndex < row.getSpaceUsed() && WcWidth.width(Character.codePointAt(row.mText, charIndex)) <= 0)
+						charIndex += Character.charCount(Character.codePointAt(row.mText, charIndex));
+					currentColumn += width;
+				}
+				assertEquals(row.getSpaceUsed(), charIndex);
+			}
+		}
+	}
+
+	public void testSetAsciiCharsOverMixedContent() {
+		int[] codePoints = { 'a', ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_TWO_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1,
+				DIARESIS_CODEPOINT };
+		Random random = new Random(42);
+		for (int iteration = 0; iteration < 1000; iteration++) {
+			TerminalRow expected = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+			row = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+			for (int i = 0; i < COLUMNS; i++) {
+				int column = random.nextInt(COLUMNS - 1);
+				int codePoint = codePoints[random.nextInt(codePoints.length)];
+				expected.setChar(column, codePoint, i);
+				row.setChar(column, codePoint, i);
+			}
+
+			int column = random.nextInt(COLUMNS);
+			int[] ascii = new int[COLUMNS - column];
+			for (int i = 0; i < ascii.length; i++)
+				ascii[i] = 32 + random.nextInt(95);
+			int count = 1 + random.nextInt(ascii.length);
+			for (int i = 0; i < count; i++)
+				expected.setChar(column + i, ascii[i], 7);
+			row.setAsciiChars(column, ascii, 0, count, 7);
+
+			assertEquals(expected.getSpaceUsed(), row.getSpaceUsed());
+			assertEquals(new String(expected.mText, 0, expected.getSpaceUsed()), new String(row.mText, 0, row.getSpaceUsed()));
+			for (int i = 0; i < COLUMNS; i++)
+				assertEquals(expected.getStyle(i), row.getStyle(i));
+		}
+	}
+
 }
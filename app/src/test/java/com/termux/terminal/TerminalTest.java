@@ -257,4 +257,20 @@ public class TerminalTest extends TerminalTestCase {
 		withTerminalSized(3, 3).enterString("abc\r ").assertLinesAre(" bc", "   ", "   ").assertCursorAt(0, 1);
 	}
 
+	public void testAsciiRunsWrapAndScroll() {
+		withTerminalSized(3, 3).enterString("abcdefghijk").assertLinesAre("def", "ghi", "jk ").assertCursorAt(2, 2);
+		assertLineWraps(true, true, false);
+		enterString("l").assertLinesAre("def", "ghi", "jkl").assertCursorAt(2, 2);
+		enterString("m").assertLinesAre("ghi", "jkl", "m  ").assertCursorAt(2, 1);
+
+		// Without autowrap the last column is overwritten:
+		withTerminalSized(5, 3).enterString("\033[?7labcdefg").assertLinesAre("abcdg", "     ", "     ").assertCursorAt(0, 4);
+
+		// Runs are clipped at the right margin:
+		withTerminalSized(5, 3).enterString("\033[?69h\033[2;4s\033[1;2Habcdef").assertLinesAre(" abc ", " def ", "     ");
+
+		// Overwriting wide characters at the run boundaries:
+		withTerminalSized(6, 3).enterString("\u679C\u679C\u679C\r\033[Cabcd").assertLinesAre(" abcd ", "      ", "      ");
+	}
+
 }
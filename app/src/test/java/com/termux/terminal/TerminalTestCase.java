@@ -154,7 +154,7 @@ public abstract class TerminalTestCase extends TestCase {
 					codePoint = c;
 				}
 				assertFalse("Screen should never contain unassigned characters", Character.getType(codePoint) == Character.UNASSIGNED);
-				int width = WcWidth.width(codePoint);
+				int width = mTerminal.getWcWidth().widthOf(codePoint);
 				assertFalse("The first column should not start with combining character", currentColumn == 0 && width < 0);
 				if (width > 0) currentColumn += width;
 			}
@@ -171,7 +171,7 @@ public abstract class TerminalTestCase extends TestCase {
 	}
 
 	protected void assertLineIs(int line, String expected) {
-		TerminalRow l = mTerminal.getScreen().allocateFullLineIfNecessary(mTerminal.getScreen().externalToInternalRow(line));
+		TerminalRow l = mTerminal.getScreen().getRow(line);
 		char[] chars = l.mText;
 		int textLen = l.getSpaceUsed();
 		if (textLen != expected.length()) fail("Expected '" + expected + "' (len=" + expected.length() + "), was='"
@@ -290,7 +290,7 @@ public abstract class TerminalTestCase extends TestCase {
 	}
 
 	public void assertForegroundColorAt(int externalRow, int column, int color) {
-		int style = mTerminal.getScreen().mLines[mTerminal.getScreen().externalToInternalRow(externalRow)].getStyle(column);
+		int style = mTerminal.getScreen().getRow(externalRow).getStyle(column);
 		assertEquals(color, TextStyle.decodeForeColor(style));
 	}
 
@@ -1,6 +1,8 @@
 package com.termux.terminal;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class UnicodeInputTest extends TerminalTestCase {
 
@@ -24,6 +26,29 @@ public class UnicodeInputTest extends TerminalTestCase {
 		assertLineStartsWith(0, TerminalEmulator.UNICODE_REPLACEMENT_CHAR, (int) 'Y', ' ');
 	}
 
+	public void testSequencesSplitBetweenAppends() throws Exception {
+		// Every split of a string mixing ASCII runs, two, three and four byte sequences and a C1 CSI (0xC2 0x9B):
+		byte[] b = "abcdefghijå枝😀\u009b1mX".getBytes("UTF-8");
+		for (int split = 0; split <= b.length; split++) {
+			withTerminalSized(20, 2);
+			mTerminal.append(b, split);
+			mTerminal.append(Arrays.copyOfRange(b, split, b.length), b.length - split);
+			assertLineIs(0, "abcdefghijå枝😀X     ");
+			assertEquals(TextStyle.CHARACTER_ATTRIBUTE_BOLD, TextStyle.decodeEffect(mTerminal.getScreen().getStyleAt(0, 14)));
+		}
+	}
+
+	public void testAppendFromDirectBuffer() throws Exception {
+		// Parsed at absolute indices, with a sequence split between two runs of a ring buffer:
+		withTerminalSized(10, 2);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+		byte[] b = "xxab枝c".getBytes("UTF-8");
+		buffer.put(b);
+		mTerminal.append(buffer, 2, 4);
+		mTerminal.append(buffer, 6, b.length - 6);
+		assertLineIs(0, "ab枝c     ");
+	}
+
 	public void testStuff() {
 		withTerminalSized(80, 24);
 		byte[] b = new byte[]{(byte) 0xf3, (byte) 0x82, (byte) 0x95, (byte) 0x81, (byte) 0x61, (byte) 0x38, (byte) 0xe7, (byte) 0x8f,
@@ -73,6 +98,14 @@ public class UnicodeInputTest extends TerminalTestCase {
 		enterString("\033[2DU").assertLinesAre(" U   ", "     ");
 	}
 
+	public void testWidthPolicy() {
+		mTerminal = new TerminalEmulator(mOutput, 6, 2, 4, null, WcWidth.get(true, true));
+		enterString("α😀b").assertLinesAre("α😀b ", "      ").assertCursorAt(0, 5);
+		// Also when resizing, which reflows the text:
+		mTerminal.resize(3, 2);
+		assertLinesAre("   ", "   ").assertHistoryStartsWith("😀b", "α ");
+	}
+
 	public void testWideCharOverwriting() {
 		withTerminalSized(3, 2).enterString("abc\033[3D枝").assertLinesAre("枝c", "   ");
 	}
@@ -56,7 +56,66 @@ public class WcWidthTest extends TestCase {
 	}
 
 	public void testHangul() {
-		assertWidthIs(2, 0x11A3);
+		assertWidthIs(2, 0x1100);
+		// Medial vowels and final consonants are drawn as part of the preceding initial consonant:
+		assertWidthIs(0, 0x1160);
+		assertWidthIs(0, 0x11A3);
+	}
+
+	public void testLookupTablesMatchComputedWidths() {
+		for (int policy = 0; policy < 4; policy++) {
+			WcWidth wcWidth = WcWidth.get((policy & 2) != 0, (policy & 1) != 0);
+			for (int codePoint = 0; codePoint <= Character.MAX_CODE_POINT; codePoint++)
+				if (wcWidth.widthOf(codePoint) != wcWidth.computeWidth(codePoint))
+					fail("Mismatch for code point " + Integer.toHexString(codePoint) + " with policy " + policy);
+		}
+	}
+
+	public void testPolicies() {
+		assertSame(WcWidth.DEFAULT, WcWidth.get(false, false));
+		WcWidth ambiguousWide = WcWidth.get(true, false);
+		WcWidth emojiWide = WcWidth.get(false, true);
+
+		// GREEK SMALL LETTER ALPHA is East Asian Ambiguous:
+		assertWidthIs(1, 0x03B1);
+		assertEquals(2, ambiguousWide.widthOf(0x03B1));
+		assertEquals(1, emojiWide.widthOf(0x03B1));
+
+		// GRINNING FACE has default emoji presentation:
+		assertWidthIs(1, 0x1F600);
+		assertEquals(1, ambiguousWide.widthOf(0x1F600));
+		assertEquals(2, emojiWide.widthOf(0x1F600));
+
+		// Neither changes the width of other characters:
+		for (WcWidth wcWidth : new WcWidth[] { ambiguousWide, emojiWide }) {
+			assertEquals(1, wcWidth.widthOf('a'));
+			assertEquals(2, wcWidth.widthOf('中'));
+			assertEquals(0, wcWidth.widthOf(0x0302));
+		}
+	}
+
+	public void testUnassigned() {
+		// Unassigned code points are narrow, except in the blocks where they default to wide:
+		assertWidthIs(1, 0x0378);
+		assertWidthIs(1, 0x50000);
+		assertWidthIs(2, 0x3FFFD);
+		// While noncharacters are zero width:
+		assertWidthIs(0, 0xFFFF);
+		assertWidthIs(0, 0x10FFFE);
+	}
+
+	public void testBulkWidths() {
+		char[] chars = "a\u0302枝\uD83D\uDE00b\uD83D".toCharArray();
+		byte[] widths = new byte[chars.length + 1];
+		widths[chars.length] = 9;
+		WcWidth.widths(chars, 0, chars.length, widths);
+		for (int i = 0; i < chars.length; i++) {
+			int expected = Character.isLowSurrogate(chars[i]) && i > 0 && Character.isHighSurrogate(chars[i - 1]) ? 0
+					: (i + 1 < chars.length ? WcWidth.width(chars, i) : WcWidth.width(chars[i]));
+			assertEquals("Index " + i, expected, widths[i]);
+		}
+		assertEquals(9, widths[chars.length]);
+		assertEquals(2, widths[2]);
 	}
 
 }
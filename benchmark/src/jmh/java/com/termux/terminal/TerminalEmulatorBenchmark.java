@@ -0,0 +1,80 @@
+package com.termux.terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TerminalEmulator#append(byte[], int)} on the {@link Workloads}.
+ *
+ * Each invocation feeds a whole workload, and an operation is one byte of input. The throughput score is therefore in
+ * bytes per second, and the "gc.alloc.rate.norm" secondary result of the gc profiler is the number of bytes allocated
+ * per byte of input.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TerminalEmulatorBenchmark {
+
+	/** Output from the emulator (such as replies to device status queries) is discarded. */
+	static final class NullTerminalOutput extends TerminalOutput {
+		@Override
+		public void write(byte[] data, int offset, int count) {
+		}
+
+		@Override
+		public void titleChanged(String oldTitle, String newTitle) {
+		}
+
+		@Override
+		public void clipboardText(String text) {
+		}
+
+		@Override
+		public void onBell() {
+		}
+	}
+
+	/** The size of chunks handed to the emulator, as read from the pty by {@link TerminalSession}. */
+	private static final int CHUNK_SIZE = 4096;
+
+	@Param({ Workloads.CAT_ASCII_LOG, Workloads.LS_COLOR, Workloads.UTF8_CJK, Workloads.VIM_REDRAW, Workloads.SGR_HEAVY })
+	public String workload;
+
+	@Param({ "80", "200" })
+	public int columns;
+
+	@Param({ "24" })
+	public int rows;
+
+	private byte[] mInput;
+	private final byte[] mChunk = new byte[CHUNK_SIZE];
+	private TerminalEmulator mEmulator;
+
+	@Setup
+	public void setUp() throws Exception {
+		mInput = Workloads.load(workload, columns, rows);
+		// Same transcript size as TerminalSession uses:
+		mEmulator = new TerminalEmulator(new NullTerminalOutput(), columns, rows, 5000);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Workloads.SIZE)
+	public TerminalEmulator append() {
+		for (int offset = 0; offset < mInput.length; offset += CHUNK_SIZE) {
+			int length = Math.min(CHUNK_SIZE, mInput.length - offset);
+			System.arraycopy(mInput, offset, mChunk, 0, length);
+			mEmulator.append(mChunk, length);
+		}
+		return mEmulator;
+	}
+
+}
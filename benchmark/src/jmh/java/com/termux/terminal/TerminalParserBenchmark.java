@@ -0,0 +1,82 @@
+package com.termux.terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TerminalParser#advance(int)} alone on the {@link Workloads}, with a dispatcher doing no more than
+ * counting what it receives.
+ *
+ * The workloads are decoded to code points up front, and an operation is one byte of the undecoded input so that the
+ * scores compare with those of {@link TerminalEmulatorBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TerminalParserBenchmark {
+
+	static final class CountingDispatcher implements TerminalParser.Dispatcher {
+		long mCount;
+
+		@Override
+		public void print(int codePoint) {
+			mCount += codePoint;
+		}
+
+		@Override
+		public void execute(int controlCharacter) {
+			mCount++;
+		}
+
+		@Override
+		public void escDispatch(int intermediates, int finalCharacter) {
+			mCount += finalCharacter;
+		}
+
+		@Override
+		public void csiDispatch(int privateMarker, int[] parameters, int parameterCount, int intermediates, int finalCharacter) {
+			mCount += parameterCount + finalCharacter;
+		}
+
+		@Override
+		public void oscDispatch(CharSequence string, boolean bellTerminated) {
+			mCount += string.length();
+		}
+
+		@Override
+		public void dcsDispatch(CharSequence string) {
+			mCount += string.length();
+		}
+	}
+
+	@Param({ Workloads.CAT_ASCII_LOG, Workloads.LS_COLOR, Workloads.UTF8_CJK, Workloads.VIM_REDRAW, Workloads.SGR_HEAVY })
+	public String workload;
+
+	private int[] mCodePoints;
+	private final CountingDispatcher mDispatcher = new CountingDispatcher();
+	private final TerminalParser mParser = new TerminalParser(mDispatcher);
+
+	@Setup
+	public void setUp() throws Exception {
+		mCodePoints = new String(Workloads.load(workload, 80, 24), StandardCharsets.UTF_8).codePoints().toArray();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Workloads.SIZE)
+	public long advance() {
+		for (int codePoint : mCodePoints)
+			mParser.advance(codePoint);
+		return mDispatcher.mCount;
+	}
+
+}
@@ -0,0 +1,171 @@
+package com.termux.terminal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Terminal output streams used as benchmark input, all padded or truncated to exactly {@link #SIZE} bytes so that
+ * results can be normalized per byte.
+ *
+ * A recording of real program output (for instance captured with "script -q /dev/null -c 'ls --color' > ls_color.bin")
+ * is used if a file named "${workload}.bin" exists in the directory given by the "termux.benchmark.recordings" system
+ * property. Otherwise the stream is synthesized from a fixed seed to resemble output of the named program.
+ */
+final class Workloads {
+
+	/** The number of bytes in every workload. */
+	static final int SIZE = 1 << 20;
+
+	static final String CAT_ASCII_LOG = "cat_ascii_log";
+	static final String LS_COLOR = "ls_color";
+	static final String UTF8_CJK = "utf8_cjk";
+	static final String VIM_REDRAW = "vim_redraw";
+	static final String SGR_HEAVY = "sgr_heavy";
+
+	private static final String[] LOG_LEVELS = { "DEBUG", "INFO ", "INFO ", "INFO ", "WARN ", "ERROR" };
+	private static final String[] WORDS = { "request", "session", "buffer", "terminal", "processed", "connection", "worker", "timeout",
+			"compile", "android", "gradle", "task", "cache", "index", "emulator", "render", "queue", "thread" };
+	private static final String[] LS_COLORS = { "0", "01;34", "01;32", "01;36", "01;35", "40;33;01", "01;31", "00;36" };
+
+	static byte[] load(String workload, int columns, int rows) throws IOException {
+		String recordings = System.getProperty("termux.benchmark.recordings");
+		if (recordings != null) {
+			File recording = new File(recordings, workload + ".bin");
+			if (recording.isFile()) return repeatToSize(Files.readAllBytes(recording.toPath()));
+		}
+
+		Random random = new Random(workload.hashCode());
+		StringBuilder out = new StringBuilder();
+		while (out.length() < SIZE) {
+			switch (workload) {
+			case CAT_ASCII_LOG:
+				appendLogLine(out, random);
+				break;
+			case LS_COLOR:
+				appendLsColorLine(out, random, columns);
+				break;
+			case UTF8_CJK:
+				appendCjkLine(out, random, columns);
+				break;
+			case VIM_REDRAW:
+				appendVimRedraw(out, random, columns, rows);
+				break;
+			case SGR_HEAVY:
+				appendSgrLine(out, random, columns);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown workload: " + workload);
+			}
+		}
+		return repeatToSize(out.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static byte[] repeatToSize(byte[] data) {
+		if (data.length == 0) throw new IllegalArgumentException("Empty workload");
+		ByteArrayOutputStream result = new ByteArrayOutputStream(SIZE);
+		while (result.size() < SIZE)
+			result.write(data, 0, Math.min(data.length, SIZE - result.size()));
+		return result.toByteArray();
+	}
+
+	private static String word(Random random) {
+		return WORDS[random.nextInt(WORDS.length)];
+	}
+
+	/** A line as output by a logging framework, with a CR LF line ending as translated by the pty. */
+	private static void appendLogLine(StringBuilder out, Random random) {
+		out.append(String.format("2016-01-%02d %02d:%02d:%02d.%03d %s [worker-%d] com.example.%s: %s %s id=%d in %d ms\r\n",
+				1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000),
+				LOG_LEVELS[random.nextInt(LOG_LEVELS.length)], random.nextInt(16), word(random), word(random), word(random), random.nextInt(100000),
+				random.nextInt(500)));
+	}
+
+	/** A line of "ls --color" output in columns, with each file name wrapped in an SGR sequence and a reset. */
+	private static void appendLsColorLine(StringBuilder out, Random random, int columns) {
+		int column = 0;
+		while (true) {
+			String name = word(random) + (random.nextBoolean() ? "_" + word(random) : "") + (random.nextBoolean() ? ".txt" : "");
+			if (column + name.length() + 2 > columns) break;
+			out.append("\033[0m\033[").append(LS_COLORS[random.nextInt(LS_COLORS.length)]).append('m').append(name).append("\033[0m  ");
+			column += name.length() + 2;
+		}
+		out.append("\r\n");
+	}
+
+	/** A line of text of wide CJK ideographs, kana and hangul with occasional ASCII, wrapping at the right margin. */
+	private static void appendCjkLine(StringBuilder out, Random random, int columns) {
+		int lineLength = random.nextInt(2 * columns);
+		for (int i = 0; i < lineLength; i++) {
+			switch (random.nextInt(8)) {
+			case 0:
+				out.append((char) ('a' + random.nextInt(26)));
+				break;
+			case 1:
+				out.append((char) (0x3041 + random.nextInt(0x56))); // Hiragana.
+				break;
+			case 2:
+				out.append((char) (0xAC00 + random.nextInt(0x2BA4))); // Hangul syllables.
+				break;
+			default:
+				out.append((char) (0x4E00 + random.nextInt(0x5000))); // CJK unified ideographs.
+			}
+		}
+		out.append("\r\n");
+	}
+
+	/**
+	 * A full screen redraw as done by vim or htop: hide cursor, set a scroll region, scroll it with reverse index, and
+	 * repaint every row with absolute cursor positioning and erase-in-line before showing the cursor again.
+	 */
+	private static void appendVimRedraw(StringBuilder out, Random random, int columns, int rows) {
+		out.append("\033[?25l\033[1;").append(rows - 1).append("r\033[1;1H\033M\033[r");
+		for (int row = 1; row < rows; row++) {
+			out.append("\033[").append(row).append(";1H\033[K");
+			out.append("\033[33m").append(String.format("%4d ", row)).append("\033[m");
+			int textColumns = random.nextInt(columns - 5);
+			while (textColumns > 0) {
+				String w = word(random);
+				if (random.nextInt(4) == 0) {
+					out.append("\033[1;3").append(1 + random.nextInt(6)).append('m').append(w).append("\033[m");
+				} else {
+					out.append(w);
+				}
+				out.append(' ');
+				textColumns -= w.length() + 1;
+			}
+			out.append("\033[").append(row).append(';').append(columns).append('H');
+		}
+		out.append("\033[").append(rows).append(";1H\033[7m-- INSERT --\033[m\033[K");
+		out.append("\033[").append(1 + random.nextInt(rows - 1)).append(';').append(1 + random.nextInt(columns)).append("H\033[?25h");
+	}
+
+	/** A line where every word has its own indexed, true color or attribute SGR sequence. */
+	private static void appendSgrLine(StringBuilder out, Random random, int columns) {
+		int column = 0;
+		while (column < columns) {
+			switch (random.nextInt(4)) {
+			case 0:
+				out.append("\033[38;5;").append(random.nextInt(256)).append('m');
+				break;
+			case 1:
+				out.append("\033[38;2;").append(random.nextInt(256)).append(';').append(random.nextInt(256)).append(';').append(random.nextInt(256))
+						.append('m');
+				break;
+			case 2:
+				out.append("\033[1;4;48;5;").append(random.nextInt(256)).append('m');
+				break;
+			default:
+				out.append("\033[0;").append(30 + random.nextInt(8)).append(';').append(40 + random.nextInt(8)).append('m');
+			}
+			String w = word(random);
+			out.append(w).append(' ');
+			column += w.length() + 1;
+		}
+		out.append("\033[0m\r\n");
+	}
+
+}
@@ -0,0 +1,14 @@
+package android.util;
+
+/** Desktop replacement for the android.util.Base64 methods used by the terminal package. Flags are ignored. */
+public final class Base64 {
+
+	public static byte[] decode(String str, int flags) {
+		return java.util.Base64.getMimeDecoder().decode(str);
+	}
+
+	public static String encodeToString(byte[] input, int flags) {
+		return java.util.Base64.getEncoder().encodeToString(input);
+	}
+
+}
@@ -0,0 +1,32 @@
+package android.util;
+
+/** Desktop replacement for the android.util.Log methods used by the terminal package, printing to stderr. */
+public final class Log {
+
+	public static int i(String tag, String msg) {
+		return println("I", tag, msg, null);
+	}
+
+	public static int w(String tag, String msg) {
+		return println("W", tag, msg, null);
+	}
+
+	public static int e(String tag, String msg) {
+		return println("E", tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return println("E", tag, msg, tr);
+	}
+
+	public static int wtf(String tag, String msg, Throwable tr) {
+		return println("F", tag, msg, tr);
+	}
+
+	private static int println(String priority, String tag, String msg, Throwable tr) {
+		System.err.println(priority + "/" + tag + ": " + msg);
+		if (tr != null) tr.printStackTrace();
+		return 0;
+	}
+
+}
@@ -0,0 +1,26 @@
+#!/bin/sh
+# Script to regenerate the width tables of the terminal emulator from the Unicode Character Database:
+#   ./generate-wcwidth.sh 14.0.0
+# The emoji data is part of the UCD from Unicode 13.0.0, set EMOJI_DATA_URL for older versions.
+
+set -e -u
+
+if [ $# != 1 ]; then
+	echo "Usage: $0 UNICODE_VERSION"
+	exit 1
+fi
+
+UNICODE_VERSION=$1
+UCD_URL=https://www.unicode.org/Public/$UNICODE_VERSION/ucd
+EMOJI_DATA_URL=${EMOJI_DATA_URL:-$UCD_URL/emoji/emoji-data.txt}
+
+WORKDIR=`mktemp -d`
+curl -fsSL -o $WORKDIR/UnicodeData.txt $UCD_URL/UnicodeData.txt
+curl -fsSL -o $WORKDIR/EastAsianWidth.txt $UCD_URL/EastAsianWidth.txt
+curl -fsSL -o $WORKDIR/emoji-data.txt $EMOJI_DATA_URL
+
+javac -d $WORKDIR tools/WcWidthGenerator.java
+java -cp $WORKDIR WcWidthGenerator $UNICODE_VERSION $WORKDIR/UnicodeData.txt $WORKDIR/EastAsianWidth.txt \
+	$WORKDIR/emoji-data.txt app/src/main/java/com/termux/terminal/WcWidthTables.java
+
+rm -Rf $WORKDIR
@@ -0,0 +1,151 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Generates app/src/main/java/com/termux/terminal/WcWidthTables.java from files of the Unicode Character Database, see
+ * generate-wcwidth.sh which downloads them for a chosen Unicode version.
+ *
+ * Usage: java WcWidthGenerator UNICODE_VERSION UnicodeData.txt EastAsianWidth.txt emoji-data.txt OUTPUT_FILE
+ */
+public final class WcWidthGenerator {
+
+	private static final int CODE_POINTS = 0x110000;
+
+	/** The ranges which EastAsianWidth.txt documents as defaulting to Wide for unassigned code points. */
+	private static final int[] DEFAULT_WIDE = { 0x3400, 0x4DBF, 0x4E00, 0x9FFF, 0xF900, 0xFAFF, 0x20000, 0x2FFFD, 0x30000, 0x3FFFD };
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 5) {
+			System.err.println("Usage: java WcWidthGenerator UNICODE_VERSION UnicodeData.txt EastAsianWidth.txt emoji-data.txt OUTPUT_FILE");
+			System.exit(1);
+		}
+
+		BitSet assigned = new BitSet(CODE_POINTS);
+		BitSet zeroWidth = new BitSet(CODE_POINTS);
+		readUnicodeData(new File(args[1]), assigned, zeroWidth);
+
+		BitSet wide = new BitSet(CODE_POINTS);
+		BitSet ambiguous = new BitSet(CODE_POINTS);
+		for (int i = 0; i < DEFAULT_WIDE.length; i += 2)
+			wide.set(DEFAULT_WIDE[i], DEFAULT_WIDE[i + 1] + 1);
+		for (String[] fields : readRanges(new File(args[2]))) {
+			int first = firstCodePoint(fields[0]), last = lastCodePoint(fields[0]);
+			boolean isWide = fields[1].equals("W") || fields[1].equals("F");
+			wide.set(first, last + 1, isWide);
+			ambiguous.set(first, last + 1, fields[1].equals("A"));
+		}
+
+		BitSet emojiPresentation = new BitSet(CODE_POINTS);
+		for (String[] fields : readRanges(new File(args[3])))
+			if (fields[1].equals("Emoji_Presentation")) emojiPresentation.set(firstCodePoint(fields[0]), lastCodePoint(fields[0]) + 1);
+
+		// Hangul Jamo medial vowels and final consonants are drawn as part of the preceding initial consonant:
+		zeroWidth.set(0x1160, 0x1200);
+		zeroWidth.set(0xD7B0, 0xD800);
+		// Noncharacters:
+		for (int plane = 0; plane <= 0x10; plane++)
+			zeroWidth.set((plane << 16) | 0xFFFE, (plane + 1) << 16);
+		zeroWidth.set(0xFDD0, 0xFDF0);
+
+		// Properties of unassigned code points other than their default width are of no use:
+		ambiguous.and(assigned);
+		emojiPresentation.and(assigned);
+
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(args[4]), StandardCharsets.UTF_8))) {
+			out.print("package com.termux.terminal;\n\n");
+			out.print("/**\n");
+			out.print(" * Width properties of code points from the Unicode " + args[0] + " Character Database, as ranges of first and last\n");
+			out.print(" * code point.\n");
+			out.print(" *\n");
+			out.print(" * Generated by tools/WcWidthGenerator.java through generate-wcwidth.sh - do not edit.\n");
+			out.print(" */\n");
+			out.print("final class WcWidthTables {\n\n");
+			out.print("\tstatic final String UNICODE_VERSION = \"" + args[0] + "\";\n\n");
+			writeRanges(out, "Nonspacing and enclosing marks, format and control characters and noncharacters.", "ZERO_WIDTH", zeroWidth);
+			writeRanges(out, "East Asian Wide and Fullwidth characters, including unassigned code points defaulting to Wide.", "WIDE", wide);
+			writeRanges(out, "Assigned East Asian Ambiguous characters.", "AMBIGUOUS", ambiguous);
+			writeRanges(out, "Assigned characters with the Emoji_Presentation property.", "EMOJI_PRESENTATION", emojiPresentation);
+			out.print("}\n");
+		}
+	}
+
+	private static void readUnicodeData(File file, BitSet assigned, BitSet zeroWidth) throws IOException {
+		int rangeFirst = -1;
+		for (String line : readLines(file)) {
+			String[] fields = line.split(";", -1);
+			int codePoint = Integer.parseInt(fields[0], 16);
+			int first = codePoint;
+			if (fields[1].endsWith(", First>")) {
+				rangeFirst = codePoint;
+				continue;
+			} else if (fields[1].endsWith(", Last>")) {
+				first = rangeFirst;
+			}
+			String category = fields[2];
+			assigned.set(first, codePoint + 1, !category.equals("Cs") && !category.equals("Co"));
+			if (category.equals("Mn") || category.equals("Me") || category.equals("Cc") || (category.equals("Cf") && codePoint != 0x00AD))
+				zeroWidth.set(first, codePoint + 1);
+		}
+	}
+
+	/** The trimmed fields before any comment of the non-empty lines of a data file with "XXXX..YYYY ; Value" lines. */
+	private static List<String[]> readRanges(File file) throws IOException {
+		List<String[]> result = new ArrayList<>();
+		for (String line : readLines(file)) {
+			String[] fields = line.split(";");
+			for (int i = 0; i < fields.length; i++)
+				fields[i] = fields[i].trim();
+			result.add(fields);
+		}
+		return result;
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+		List<String> result = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int commentStart = line.indexOf('#');
+				if (commentStart != -1) line = line.substring(0, commentStart);
+				if (!line.trim().isEmpty()) result.add(line);
+			}
+		}
+		return result;
+	}
+
+	private static int firstCodePoint(String range) {
+		int separator = range.indexOf("..");
+		return Integer.parseInt(separator == -1 ? range : range.substring(0, separator), 16);
+	}
+
+	private static int lastCodePoint(String range) {
+		int separator = range.indexOf("..");
+		return Integer.parseInt(separator == -1 ? range : range.substring(separator + 2), 16);
+	}
+
+	private static void writeRanges(PrintWriter out, String comment, String name, BitSet codePoints) {
+		out.print("\t/** " + comment + " */\n");
+		out.print("\tstatic final int[] " + name + " = {");
+		int written = 0;
+		for (int first = codePoints.nextSetBit(0); first != -1; first = codePoints.nextSetBit(first)) {
+			int end = codePoints.nextClearBit(first);
+			if (written > 0) out.print(",");
+			out.print((written % 8 == 0) ? "\n\t\t\t" : " ");
+			out.print(String.format("0x%04X, 0x%04X", first, end - 1));
+			written++;
+			first = end;
+		}
+		out.print(" };\n\n");
+	}
+
+}